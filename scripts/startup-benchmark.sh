@@ -0,0 +1,64 @@
+#!/usr/bin/env bash
+#
+# Measures the time to first record of the processor, from process launch to the first record received, against the
+# fake gateway and function of src/test/java/io/projectriff/fakes. Run from anywhere, as
+#
+#   scripts/startup-benchmark.sh [jvm|native] [runs]
+#
+# The native mode runs the executable pointed at by NATIVE_IMAGE (defaults to target/processor), built as in the
+# Dockerfile. Each run uses a fresh consumer group, reading from the earliest offset of a continuously fed topic.
+
+set -euo pipefail
+
+mode=${1:-jvm}
+runs=${2:-10}
+
+cd "$(dirname "$0")/.."
+./mvnw -q -DskipTests test-compile dependency:build-classpath -Dmdep.outputFile=target/test.classpath
+classpath="target/classes:target/test-classes:$(cat target/test.classpath)"
+
+case "$mode" in
+	jvm) processor=(java -cp "$classpath" io.projectriff.processor.Processor) ;;
+	native) processor=("${NATIVE_IMAGE:-target/processor}") ;;
+	*) echo "Unknown mode '$mode', expected jvm or native" >&2; exit 1 ;;
+esac
+
+work=$(mktemp -d)
+java -cp "$classpath" io.projectriff.bindings.LocalStreamBindingsGenerator -b "$work" -g localhost:6565 \
+	-it in -ot out -a text/plain > /dev/null
+java -cp "$classpath" io.projectriff.fakes.FakeServers --produce default_in --rate 1000 > "$work/servers.log" 2>&1 &
+servers=$!
+trap 'kill $servers 2> /dev/null; rm -rf "$work"' EXIT
+until (echo > /dev/tcp/localhost/6565) 2> /dev/null && (echo > /dev/tcp/localhost/8081) 2> /dev/null; do
+	sleep 0.1
+done
+
+millis() {
+	echo $(($(date +%s%N) / 1000000))
+}
+
+results=()
+for run in $(seq 1 "$runs"); do
+	log="$work/processor-$run.log"
+	start=$(millis)
+	FUNCTION=localhost:8081 GROUP="startup-$run-$start" INPUT_NAMES=in OUTPUT_NAMES=out INPUT_START_OFFSETS=earliest \
+		CNB_BINDINGS="$work" "${processor[@]}" > "$log" 2>&1 &
+	pid=$!
+	until grep -q "Received first record" "$log"; do
+		if ! kill -0 $pid 2> /dev/null; then
+			echo "Processor exited before receiving a record:" >&2
+			cat "$log" >&2
+			exit 1
+		fi
+		sleep 0.005
+	done
+	elapsed=$(($(millis) - start))
+	results+=("$elapsed")
+	echo "run $run: first record after $elapsed ms ($(grep -o "Connected to .*" "$log"))"
+	kill -TERM $pid
+	wait $pid || true
+done
+
+sorted=($(printf '%s\n' "${results[@]}" | sort -n))
+echo "$mode time to first record over $runs runs: min=${sorted[0]} ms," \
+	"median=${sorted[$((runs / 2))]} ms, max=${sorted[$((runs - 1))]} ms"
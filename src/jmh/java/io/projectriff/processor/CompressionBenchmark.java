@@ -0,0 +1,107 @@
+package io.projectriff.processor;
+
+import com.github.bsideup.liiklus.protocol.LiiklusEvent;
+import com.github.bsideup.liiklus.protocol.PublishRequest;
+import com.google.protobuf.ByteString;
+import io.grpc.Compressor;
+import io.grpc.Decompressor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the CPU cost of compressing publish requests carrying JSON payloads, and of decompressing them, for each
+ * of the supported codecs. The compressed size of each request is printed during setup, to weigh the cost against
+ * the bytes saved on the wire.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+
+    @Param({Compression.IDENTITY, Compression.GZIP, Compression.SNAPPY, Compression.ZSTD})
+    public String codec;
+
+    @Param({"256", "4096", "65536"})
+    public int payloadSize;
+
+    private PublishRequest request;
+
+    private byte[] compressed;
+
+    private Compressor compressor;
+
+    private Decompressor decompressor;
+
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+    @Setup
+    public void setUp() throws IOException {
+        compressor = Compression.COMPRESSORS.lookupCompressor(codec);
+        decompressor = Compression.DECOMPRESSORS.lookupDecompressor(codec);
+        request = PublishRequest.newBuilder()
+                .setTopic("default_output")
+                .setLiiklusEvent(LiiklusEvent.newBuilder()
+                        .setId("01EQ3JZ9N1XKPK3W9ZC2W5X3RB")
+                        .setType("riff-event")
+                        .setSource("some-group")
+                        .setDataContentType("application/json")
+                        .setData(ByteString.copyFrom(json(payloadSize), StandardCharsets.UTF_8)))
+                .build();
+        compressed = compress().clone();
+        System.out.printf("%n%s: %d bytes -> %d bytes%n", codec, request.getSerializedSize(), compressed.length);
+    }
+
+    @Benchmark
+    public byte[] compress() throws IOException {
+        buffer.reset();
+        try (OutputStream out = compressor.compress(buffer)) {
+            request.writeTo(out);
+        }
+        return buffer.toByteArray();
+    }
+
+    @Benchmark
+    public PublishRequest decompress() throws IOException {
+        try (InputStream in = decompressor.decompress(new ByteArrayInputStream(compressed))) {
+            return PublishRequest.parseFrom(in);
+        }
+    }
+
+    /**
+     * Generates an array of JSON objects of about {@code size} bytes, with the repeated keys and varying values
+     * typical of real events.
+     */
+    private static String json(int size) {
+        Random random = new Random(42);
+        StringBuilder json = new StringBuilder("[");
+        while (json.length() < size) {
+            json.append(json.length() == 1 ? "" : ",")
+                    .append("{\"customerId\":\"").append(Long.toHexString(random.nextLong()))
+                    .append("\",\"amount\":").append(random.nextInt(100_000) / 100.0)
+                    .append(",\"currency\":\"EUR\",\"status\":\"").append(random.nextBoolean() ? "ACCEPTED" : "PENDING")
+                    .append("\"}");
+        }
+        return json.append(']').toString();
+    }
+}
@@ -0,0 +1,85 @@
+package io.projectriff.processor;
+
+import com.google.protobuf.ByteString;
+import io.projectriff.invoker.rpc.InputFrame;
+import io.projectriff.invoker.rpc.OutputFrame;
+import io.projectriff.invoker.rpc.OutputSignal;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Hooks;
+import reactor.core.publisher.Mono;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the overhead of each {@link DebugMode} on a pipeline shaped like the processor's own
+ * receive, window, invoke and publish chain, which gets re-assembled for every window.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DebugModeBenchmark {
+
+    private static final int RECORDS = 10_000;
+
+    @Param({"off", "checkpoint", "traceback"})
+    public String mode;
+
+    @Param({"10", "1000"})
+    public int windowSize;
+
+    private DebugMode debugMode;
+
+    private final ByteString payload = ByteString.copyFromUtf8("{\"hello\": \"world\"}");
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        debugMode = DebugMode.parse(mode);
+        debugMode.install();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Hooks.resetOnOperatorDebug();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public Long pipeline() {
+        return Flux.range(0, RECORDS)
+                .map(i -> InputFrame.newBuilder().setPayload(payload).setArgIndex(0).build())
+                .transform(received -> debugMode.checkpoint(received, "receive"))
+                .window(windowSize)
+                .concatMap(this::window)
+                .count()
+                .block();
+    }
+
+    private Mono<Long> window(Flux<InputFrame> frames) {
+        return frames
+                .map(frame -> OutputSignal.newBuilder()
+                        .setData(OutputFrame.newBuilder().setPayload(frame.getPayload()).setResultIndex(0))
+                        .build())
+                .transform(results -> debugMode.checkpoint(results, "invoke"))
+                .groupBy(signal -> signal.getData().getResultIndex())
+                .flatMap(group -> group.concatMap(Mono::just))
+                .transform(published -> debugMode.checkpoint(published, "publish"))
+                .count();
+    }
+}
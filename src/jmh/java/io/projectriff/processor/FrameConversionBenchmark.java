@@ -0,0 +1,142 @@
+package io.projectriff.processor;
+
+import com.github.bsideup.liiklus.protocol.LiiklusEvent;
+import com.github.bsideup.liiklus.protocol.PublishRequest;
+import com.github.bsideup.liiklus.protocol.ReceiveReply;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import io.grpc.KnownLength;
+import io.grpc.MethodDescriptor;
+import io.grpc.protobuf.ProtoUtils;
+import io.projectriff.invoker.rpc.InputFrame;
+import io.projectriff.invoker.rpc.InputSignal;
+import io.projectriff.invoker.rpc.OutputFrame;
+import io.projectriff.invoker.rpc.OutputSignal;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the per-record conversions of the processor: from received records to function input frames, from
+ * function results to publish requests, and the protobuf serialization of the frames exchanged with the function.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FrameConversionBenchmark {
+
+    @Param({"64", "4096", "262144"})
+    public int payloadSize;
+
+    @Param({"0", "4"})
+    public int headerCount;
+
+    private ReceiveReply receiveReply;
+
+    private InputFrame template;
+
+    private InputFrame inputFrame;
+
+    private OutputFrame outputFrame;
+
+    private byte[] serializedOutputSignal;
+
+    private OutputPublisher outputPublisher;
+
+    private MethodDescriptor.PrototypeMarshaller<OutputSignal> defaultMarshaller;
+
+    private MethodDescriptor.PrototypeMarshaller<OutputSignal> aliasingMarshaller;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        byte[] payload = new byte[payloadSize];
+        new Random(42).nextBytes(payload);
+        Map<String, String> headers = new HashMap<>();
+        for (int i = 0; i < headerCount; i++) {
+            headers.put("header-" + i, "value-" + i);
+        }
+        receiveReply = ReceiveReply.newBuilder()
+                .setLiiklusEventRecord(ReceiveReply.LiiklusEventRecord.newBuilder()
+                        .setOffset(42L)
+                        .setEvent(LiiklusEvent.newBuilder()
+                                .setId("01EQ3JZ9N1XKPK3W9ZC2W5X3RB")
+                                .setType("riff-event")
+                                .setSource("some-group")
+                                .setDataContentType("application/octet-stream")
+                                .setData(ByteString.copyFrom(payload))
+                                .putAllExtensions(headers)))
+                .build();
+        template = InputFrame.newBuilder().setArgIndex(0).build();
+        inputFrame = Processor.toRiffSignal(receiveReply, template);
+        outputFrame = OutputFrame.newBuilder()
+                .setPayload(ByteString.copyFrom(payload))
+                .setContentType("application/octet-stream")
+                .putAllHeaders(headers)
+                .setResultIndex(0)
+                .build();
+        serializedOutputSignal = OutputSignal.newBuilder().setData(outputFrame).build().toByteArray();
+        defaultMarshaller = (MethodDescriptor.PrototypeMarshaller<OutputSignal>) ProtoUtils.marshaller(OutputSignal.getDefaultInstance());
+        aliasingMarshaller = new AliasingInterceptor.AliasingMarshaller<>(defaultMarshaller, AliasingInterceptor.DEFAULT_THRESHOLD);
+        StreamBinding output = new StreamBinding("gateway.example.com:6565", "default_output", Collections.singletonMap(StreamBinding.CONTENT_TYPE, "application/octet-stream"));
+        outputPublisher = new OutputPublisher(Collections.singletonList(output), Collections.emptyMap(), "some-group", 1, EventIdGenerator.monotonic(), PublishBatching.NONE, PipelineMetrics.disabled());
+    }
+
+    @Benchmark
+    public InputFrame toRiffSignal() {
+        return Processor.toRiffSignal(receiveReply, template);
+    }
+
+    @Benchmark
+    public byte[] serializeInputSignal() {
+        return InputSignal.newBuilder().setData(inputFrame).build().toByteArray();
+    }
+
+    @Benchmark
+    public OutputSignal parseOutputSignal() throws InvalidProtocolBufferException {
+        return OutputSignal.parseFrom(serializedOutputSignal);
+    }
+
+    @Benchmark
+    public OutputSignal unmarshalOutputSignal() {
+        return defaultMarshaller.parse(new KnownLengthStream(serializedOutputSignal));
+    }
+
+    @Benchmark
+    public OutputSignal unmarshalOutputSignalAliasing() {
+        return aliasingMarshaller.parse(new KnownLengthStream(serializedOutputSignal));
+    }
+
+    @Benchmark
+    public PublishRequest createPublishRequest() {
+        return outputPublisher.createPublishRequest(outputFrame, "default_output");
+    }
+
+    /**
+     * Mimics the streams gRPC hands to marshallers, whose size is known upfront.
+     */
+    private static final class KnownLengthStream extends ByteArrayInputStream implements KnownLength {
+
+        KnownLengthStream(byte[] bytes) {
+            super(bytes);
+        }
+    }
+}
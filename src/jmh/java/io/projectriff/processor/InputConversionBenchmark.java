@@ -0,0 +1,90 @@
+package io.projectriff.processor;
+
+import com.github.bsideup.liiklus.protocol.LiiklusEvent;
+import com.github.bsideup.liiklus.protocol.ReceiveReply;
+import com.google.protobuf.ByteString;
+import io.projectriff.invoker.rpc.InputFrame;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the conversion of received records to {@link InputFrame}s, when resolving the argument index
+ * with {@code inputs.indexOf(binding)} for every record, as opposed to using a per-input template.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InputConversionBenchmark {
+
+    @Param({"1", "4"})
+    public int inputCount;
+
+    private List<StreamBinding> inputs;
+
+    private StreamBinding lastInput;
+
+    private InputFrame lastTemplate;
+
+    private ReceiveReply receiveReply;
+
+    @Setup
+    public void setUp() {
+        inputs = new ArrayList<>();
+        for (int i = 0; i < inputCount; i++) {
+            Map<String, String> metadata = new HashMap<>();
+            metadata.put(StreamBinding.WINDOWING, "count:100");
+            inputs.add(new StreamBinding("gateway.example.com:6565", "default_input-" + i, metadata));
+        }
+        lastInput = new StreamBinding("gateway.example.com:6565", "default_input-" + (inputCount - 1), new HashMap<>(inputs.get(inputCount - 1).getMetadata()));
+        lastTemplate = InputFrame.newBuilder().setArgIndex(inputCount - 1).build();
+        receiveReply = ReceiveReply.newBuilder()
+                .setLiiklusEventRecord(ReceiveReply.LiiklusEventRecord.newBuilder()
+                        .setOffset(42L)
+                        .setEvent(LiiklusEvent.newBuilder()
+                                .setId("4b5f7d5e-0e3c-4fd2-a3d2-8c5e4e3f0c1a")
+                                .setType("riff-event")
+                                .setSource("some-group")
+                                .setDataContentType("application/json")
+                                .setData(ByteString.copyFromUtf8("{\"hello\": \"world\"}"))
+                                .putExtensions("traceparent", "00-0af7651916cd43dd8448eb211c80319c-b7ad6b7169203331-01")))
+                .build();
+    }
+
+    @Benchmark
+    public InputFrame indexOf() {
+        int inputIndex = inputs.indexOf(lastInput);
+        if (inputIndex == -1) {
+            throw new RuntimeException("Unknown topic: " + lastInput);
+        }
+        LiiklusEvent event = receiveReply.getLiiklusEventRecord().getEvent();
+        return InputFrame.newBuilder()
+                .setPayload(event.getData())
+                .setContentType(event.getDataContentType())
+                .setArgIndex(inputIndex)
+                .putAllHeaders(event.getExtensionsMap())
+                .build();
+    }
+
+    @Benchmark
+    public InputFrame template() {
+        return Processor.toRiffSignal(receiveReply, lastTemplate);
+    }
+}
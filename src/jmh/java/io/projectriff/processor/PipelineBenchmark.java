@@ -0,0 +1,186 @@
+package io.projectriff.processor;
+
+import com.github.bsideup.liiklus.protocol.LiiklusEvent;
+import com.google.protobuf.ByteString;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.projectriff.fakes.FakeLiiklusGateway;
+import io.projectriff.fakes.FakeRiffFunction;
+import io.projectriff.invoker.rpc.ReactorRiffGrpc;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the whole processor pipeline (receive, window, invoke, publish and ack) against in-process fakes of the
+ * gateway and of the function, over {@value #RECORDS} records spread over {@value #PARTITIONS} partitions.
+ *
+ * <p>Scores are per record: throughput is in records per second, and sample times (with their percentiles) are the
+ * time to fully process a run, divided by the number of records in it.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class PipelineBenchmark {
+
+    private static final int PARTITIONS = 4;
+
+    private static final int RECORDS_PER_PARTITION = 25_000;
+
+    private static final int RECORDS = PARTITIONS * RECORDS_PER_PARTITION;
+
+    @Param({"count:100", "count:1000"})
+    public String windowing;
+
+    @Param({"1", "4"})
+    public String partitionRails;
+
+    @Param({"1", "16"})
+    public String publishMaxInFlight;
+
+    @Param({"window", "persistent"})
+    public String invokeMode;
+
+    @Param({"1", "64"})
+    public String invokeBatchSize;
+
+    @Param({"0", "4096"})
+    public String inFlightLimit;
+
+    @Param({"1", "64"})
+    public String publishBatchSize;
+
+    @Param({"256"})
+    public int payloadSize;
+
+    /**
+     * How many function instances windows are balanced over, each behind its own in-process server.
+     */
+    @Param({"1", "4"})
+    public int functionInstances;
+
+    private Server server;
+
+    private ManagedChannel channel;
+
+    private final List<Server> functionServers = new ArrayList<>();
+
+    private final List<ManagedChannel> functionChannels = new ArrayList<>();
+
+    private ProcessorSettings settings;
+
+    private PipelineMetrics metrics;
+
+    /**
+     * Each run uses its own consumer group, so that it reads input topics from the start.
+     */
+    private final AtomicInteger runs = new AtomicInteger();
+
+    @Setup
+    public void setUp() throws IOException {
+        LiiklusEvent event = LiiklusEvent.newBuilder()
+                .setId("01EQ3JZ9N1XKPK3W9ZC2W5X3RB")
+                .setType("riff-event")
+                .setSource("some-group")
+                .setDataContentType("application/octet-stream")
+                .setData(ByteString.copyFrom(new byte[payloadSize]))
+                .build();
+        String name = InProcessServerBuilder.generateName();
+        FakeLiiklusGateway gateway = new FakeLiiklusGateway(PARTITIONS, RECORDS_PER_PARTITION, Duration.ZERO, true);
+        gateway.topic("default_input").fill(RECORDS_PER_PARTITION, event);
+        server = InProcessServerBuilder.forName(name)
+                .addService(gateway)
+                .addService(new FakeRiffFunction())
+                .build()
+                .start();
+        channel = InProcessChannelBuilder.forName(name).build();
+        for (int i = 0; i < functionInstances; i++) {
+            String functionName = InProcessServerBuilder.generateName();
+            functionServers.add(InProcessServerBuilder.forName(functionName)
+                    .addService(new FakeRiffFunction())
+                    .build()
+                    .start());
+            functionChannels.add(InProcessChannelBuilder.forName(functionName).build());
+        }
+
+        Map<String, String> env = new HashMap<>();
+        env.put(ProcessorSettings.WINDOWING, windowing);
+        env.put(ProcessorSettings.PARTITION_RAILS, partitionRails);
+        env.put(ProcessorSettings.PUBLISH_MAX_IN_FLIGHT, publishMaxInFlight);
+        env.put(ProcessorSettings.INVOKE_MODE, invokeMode);
+        env.put(ProcessorSettings.INVOKE_BATCH_SIZE, invokeBatchSize);
+        env.put(ProcessorSettings.IN_FLIGHT_LIMIT, inFlightLimit);
+        env.put(ProcessorSettings.PUBLISH_BATCH_SIZE, publishBatchSize);
+        env.put(ProcessorSettings.ACK_LOG_INTERVAL, "0");
+        settings = ProcessorSettings.fromMap(env);
+        metrics = PipelineMetrics.disabled();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        for (int i = 0; i < functionInstances; i++) {
+            functionChannels.get(i).shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+            functionServers.get(i).shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        }
+        functionChannels.clear();
+        functionServers.clear();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public void run() {
+        List<String> contentTypes = Collections.singletonList("application/octet-stream");
+        Processor processor = new Processor(
+                Collections.singletonList(new StreamBinding("in-process", "default_input", new HashMap<>())),
+                Collections.singletonList(new StreamBinding("in-process", "default_output", Collections.singletonMap(StreamBinding.CONTENT_TYPE, contentTypes.get(0)))),
+                Collections.singletonList("in"),
+                Collections.singletonList("earliest"),
+                Collections.singletonList("out"),
+                contentTypes,
+                "benchmark-" + runs.incrementAndGet(),
+                functionInstances == 1
+                        ? FunctionEndpoints.single(ReactorRiffGrpc.newReactorStub(channel))
+                        : FunctionEndpoints.of(functionAddresses(),
+                        address -> ReactorRiffGrpc.newReactorStub(functionChannels.get(Integer.parseInt(address))),
+                        Duration.ofSeconds(10)),
+                address -> channel,
+                settings,
+                metrics);
+        processor.run();
+    }
+
+    private List<String> functionAddresses() {
+        List<String> addresses = new ArrayList<>(functionInstances);
+        for (int i = 0; i < functionInstances; i++) {
+            addresses.add(String.valueOf(i));
+        }
+        return addresses;
+    }
+}
@@ -0,0 +1,119 @@
+package io.projectriff.processor;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.Parser;
+import com.google.protobuf.UnsafeByteOperations;
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.KnownLength;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Parses large messages streamed back by the server without copying their {@code bytes} fields.
+ *
+ * <p>The default protobuf marshaller reads each message into a (reused) buffer, and then copies every {@code bytes}
+ * field out of it. Above {@code threshold} bytes, messages are instead read into a buffer of their own, which fields
+ * then alias. This halves the copies of large payloads received from the gateway ({@code Receive}) and from the
+ * function ({@code Invoke}), and the resulting {@link com.google.protobuf.ByteString}s are then passed along as is.</p>
+ *
+ * <p>Only applies to methods with streamed responses, as unary replies are small.</p>
+ */
+final class AliasingInterceptor implements ClientInterceptor {
+
+    /**
+     * The message size above which aliasing pays off, compared to the default reused buffer.
+     */
+    static final int DEFAULT_THRESHOLD = 32 * 1024;
+
+    private final int threshold;
+
+    private final ConcurrentMap<MethodDescriptor<?, ?>, MethodDescriptor<?, ?>> aliasingMethods = new ConcurrentHashMap<>();
+
+    AliasingInterceptor(int threshold) {
+        this.threshold = threshold;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(MethodDescriptor<ReqT, RespT> method, CallOptions callOptions, Channel next) {
+        if (method.getType().serverSendsOneMessage()) {
+            return next.newCall(method, callOptions);
+        }
+        MethodDescriptor<ReqT, RespT> aliasing = (MethodDescriptor<ReqT, RespT>) aliasingMethods.computeIfAbsent(method, this::aliasing);
+        return next.newCall(aliasing, callOptions);
+    }
+
+    private <ReqT, RespT> MethodDescriptor<ReqT, RespT> aliasing(MethodDescriptor<ReqT, RespT> method) {
+        MethodDescriptor.Marshaller<RespT> responses = method.getResponseMarshaller();
+        if (!(responses instanceof MethodDescriptor.PrototypeMarshaller)
+                || !(((MethodDescriptor.PrototypeMarshaller<RespT>) responses).getMessagePrototype() instanceof MessageLite)) {
+            return method;
+        }
+        return method.toBuilder(method.getRequestMarshaller(), new AliasingMarshaller<>((MethodDescriptor.PrototypeMarshaller<RespT>) responses, threshold))
+                .build();
+    }
+
+    static final class AliasingMarshaller<T> implements MethodDescriptor.PrototypeMarshaller<T> {
+
+        private final MethodDescriptor.PrototypeMarshaller<T> delegate;
+
+        private final Parser<T> parser;
+
+        private final int threshold;
+
+        @SuppressWarnings("unchecked")
+        AliasingMarshaller(MethodDescriptor.PrototypeMarshaller<T> delegate, int threshold) {
+            this.delegate = delegate;
+            this.parser = (Parser<T>) ((MessageLite) delegate.getMessagePrototype()).getParserForType();
+            this.threshold = threshold;
+        }
+
+        @Override
+        public T getMessagePrototype() {
+            return delegate.getMessagePrototype();
+        }
+
+        @Override
+        public Class<T> getMessageClass() {
+            return delegate.getMessageClass();
+        }
+
+        @Override
+        public InputStream stream(T value) {
+            return delegate.stream(value);
+        }
+
+        @Override
+        public T parse(InputStream stream) {
+            try {
+                int size = stream instanceof KnownLength ? stream.available() : -1;
+                if (size < threshold) {
+                    return delegate.parse(stream);
+                }
+                byte[] buffer = new byte[size];
+                for (int read = 0; read < size; ) {
+                    int count = stream.read(buffer, read, size - read);
+                    if (count < 0) {
+                        throw new IOException(String.format("Expected %d bytes, got %d", size, read));
+                    }
+                    read += count;
+                }
+                // the buffer is never written to again, so it is safe to let fields point into it
+                CodedInputStream input = UnsafeByteOperations.unsafeWrap(buffer).newCodedInput();
+                input.enableAliasing(true);
+                return parser.parseFrom(input);
+            } catch (IOException e) {
+                throw Status.INTERNAL.withDescription("Invalid protobuf byte sequence").withCause(e).asRuntimeException();
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package io.projectriff.processor;
+
+import io.grpc.Status;
+import io.projectriff.invoker.rpc.InputFrame;
+import io.projectriff.invoker.rpc.OutputSignal;
+import io.projectriff.invoker.rpc.ReactorRiffGrpc;
+import reactor.core.publisher.Flux;
+
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * A {@link FunctionInvoker} spreading the windows of a rail over several function endpoints.
+ *
+ * <p>Each window goes to the endpoint picked by {@link FunctionEndpoints#acquire(FunctionEndpoints.Endpoint,
+ * FunctionEndpoints.Endpoint)}, sticking to the endpoint of the previous window unless another one is less loaded.
+ * Should an invocation fail to reach the function (see {@link #TRANSPORT_FAILURES}) before it returned any result, the
+ * endpoint is ejected and the window is invoked again on another endpoint: its frames are retained until the
+ * invocation completes for that purpose. Failures after results have been published are not retried, so as not to
+ * publish them twice, and neither are failures of the function itself, which would fail the same way anywhere.</p>
+ */
+final class BalancedFunctionInvoker implements FunctionInvoker {
+
+    /**
+     * Failures telling an endpoint could not be reached, rather than that the function failed. Resources exhausted
+     * are left out, as they may come from a message too large for any endpoint.
+     */
+    private static final Set<Status.Code> TRANSPORT_FAILURES = EnumSet.of(Status.Code.UNAVAILABLE, Status.Code.DEADLINE_EXCEEDED);
+
+    private final FunctionEndpoints endpoints;
+
+    private final Function<ReactorRiffGrpc.ReactorRiffStub, FunctionInvoker> invokers;
+
+    /**
+     * The invoker to each endpoint this rail used, created on first use.
+     */
+    private final Map<FunctionEndpoints.Endpoint, FunctionInvoker> delegates = new HashMap<>();
+
+    private FunctionEndpoints.Endpoint previous;
+
+    /**
+     * @param invokers creates the invoker to a single endpoint, given its stub
+     */
+    BalancedFunctionInvoker(FunctionEndpoints endpoints, Function<ReactorRiffGrpc.ReactorRiffStub, FunctionInvoker> invokers) {
+        this.endpoints = endpoints;
+        this.invokers = invokers;
+    }
+
+    @Override
+    public Flux<OutputSignal> invoke(Flux<InputFrame> window) {
+        // the window can only be subscribed to once, but may have to be sent to several endpoints
+        return invoke(window.cache(), null, endpoints.size() - 1);
+    }
+
+    private Flux<OutputSignal> invoke(Flux<InputFrame> window, FunctionEndpoints.Endpoint excluded, int retries) {
+        return Flux.defer(() -> {
+            FunctionEndpoints.Endpoint endpoint = endpoints.acquire(previous, excluded);
+            previous = endpoint;
+            FunctionInvoker delegate = delegates.computeIfAbsent(endpoint, e -> invokers.apply(e.getStub()));
+            AtomicBoolean resultsSeen = new AtomicBoolean();
+            return delegate.invoke(window)
+                    .doOnNext(result -> resultsSeen.set(true))
+                    .doOnComplete(() -> endpoints.release(endpoint, null))
+                    .doOnCancel(() -> endpoints.release(endpoint, null))
+                    .onErrorResume(t -> {
+                        boolean unreachable = TRANSPORT_FAILURES.contains(Status.fromThrowable(t).getCode());
+                        endpoints.release(endpoint, unreachable ? t : null);
+                        // the invoker may hold a broken stream, start afresh next time
+                        delegates.remove(endpoint).close();
+                        if (!unreachable || resultsSeen.get() || retries == 0) {
+                            return Flux.error(t);
+                        }
+                        return invoke(window, endpoint, retries - 1);
+                    });
+        });
+    }
+
+    @Override
+    public void close() {
+        delegates.values().forEach(FunctionInvoker::close);
+        delegates.clear();
+    }
+}
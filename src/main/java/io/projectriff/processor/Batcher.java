@@ -0,0 +1,236 @@
+package io.projectriff.processor;
+
+import org.reactivestreams.Subscription;
+import reactor.core.Disposable;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.SignalType;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
+
+/**
+ * Groups items into batches bounded by count and by serialized size, as used to batch both input frames sent to the
+ * function ({@link FrameBatching}) and events published to output streams ({@link PublishBatching}).
+ *
+ * <p>A batch holds up to {@code maxItems} items and up to {@code maxBytes} of serialized items (a single larger item
+ * still makes a batch of its own). A batch that is not full is emitted at most {@code linger} after its first item, or
+ * when the items complete.</p>
+ */
+final class Batcher {
+
+    private final int maxItems;
+
+    private final int maxBytes;
+
+    private final Duration linger;
+
+    Batcher(int maxItems, int maxBytes, Duration linger) {
+        if (maxItems < 1 || maxBytes < 1 || linger.isZero() || linger.isNegative()) {
+            throw new IllegalArgumentException(String.format("Invalid batching: %d items, %d bytes, linger %s", maxItems, maxBytes, linger));
+        }
+        this.maxItems = maxItems;
+        this.maxBytes = maxBytes;
+        this.linger = linger;
+    }
+
+    int getMaxItems() {
+        return maxItems;
+    }
+
+    /**
+     * Whether batches may hold more than one item.
+     */
+    boolean isEnabled() {
+        return maxItems > 1;
+    }
+
+    /**
+     * Only requests as many items as fit in the batch being filled, and only while no closed batch awaits demand, so
+     * that downstream backpressure propagates upstream. A batch closed by the linger without demand is held until
+     * requested.
+     *
+     * @param sizeOf the serialized size of an item, preferably memoized (as by protobuf messages)
+     */
+    <T> Flux<List<T>> batches(Flux<T> items, ToIntFunction<? super T> sizeOf) {
+        return Flux.create(sink -> {
+            Batching<T> batching = new Batching<>(sink, sizeOf);
+            sink.onRequest(n -> batching.drain());
+            sink.onDispose(batching);
+            items.subscribe(batching);
+        }, FluxSink.OverflowStrategy.BUFFER);
+    }
+
+    /**
+     * The batches of a single subscription.
+     */
+    private final class Batching<T> extends BaseSubscriber<T> {
+
+        private final FluxSink<List<T>> sink;
+
+        private final ToIntFunction<? super T> sizeOf;
+
+        /**
+         * Closed batches, awaiting demand.
+         */
+        private final Queue<List<T>> ready = new ArrayDeque<>(2);
+
+        private List<T> batch = new ArrayList<>();
+
+        private long bytes;
+
+        /**
+         * Counts closed batches, so that a linger firing late can tell whether its batch is still being filled.
+         */
+        private long closed;
+
+        private Disposable lingering;
+
+        private boolean subscribed;
+
+        /**
+         * Items requested from upstream and not received yet.
+         */
+        private long outstanding;
+
+        private boolean done;
+
+        private boolean completed;
+
+        private boolean draining;
+
+        private boolean missed;
+
+        private Batching(FluxSink<List<T>> sink, ToIntFunction<? super T> sizeOf) {
+            this.sink = sink;
+            this.sizeOf = sizeOf;
+        }
+
+        @Override
+        protected void hookOnSubscribe(Subscription subscription) {
+            synchronized (this) {
+                subscribed = true;
+            }
+            drain();
+        }
+
+        @Override
+        protected void hookOnNext(T item) {
+            int size = sizeOf.applyAsInt(item);
+            synchronized (this) {
+                outstanding--;
+                if (!batch.isEmpty() && bytes + size > maxBytes) {
+                    close();
+                }
+                batch.add(item);
+                bytes += size;
+                if (batch.size() >= maxItems) {
+                    close();
+                } else if (batch.size() == 1) {
+                    long batchToLinger = closed;
+                    lingering = Schedulers.parallel().schedule(() -> lingered(batchToLinger), linger.toNanos(), TimeUnit.NANOSECONDS);
+                }
+            }
+            drain();
+        }
+
+        @Override
+        protected void hookOnComplete() {
+            synchronized (this) {
+                done = true;
+                if (!batch.isEmpty()) {
+                    close();
+                }
+            }
+            drain();
+        }
+
+        @Override
+        protected void hookOnError(Throwable throwable) {
+            sink.error(throwable);
+        }
+
+        @Override
+        protected void hookFinally(SignalType type) {
+            synchronized (this) {
+                if (lingering != null) {
+                    lingering.dispose();
+                }
+            }
+        }
+
+        private void lingered(long batchToLinger) {
+            synchronized (this) {
+                if (closed != batchToLinger || batch.isEmpty()) {
+                    return;
+                }
+                close();
+            }
+            drain();
+        }
+
+        private void close() {
+            ready.offer(batch);
+            batch = new ArrayList<>();
+            bytes = 0L;
+            closed++;
+            if (lingering != null) {
+                lingering.dispose();
+                lingering = null;
+            }
+        }
+
+        /**
+         * Emits ready batches as long as they are requested, then requests more items if none is left, or completes.
+         * Only one thread at a time emits, others leave it to check again.
+         */
+        private void drain() {
+            synchronized (this) {
+                if (draining) {
+                    missed = true;
+                    return;
+                }
+                draining = true;
+            }
+            for (; ; ) {
+                List<T> next = null;
+                long request = 0L;
+                boolean complete = false;
+                synchronized (this) {
+                    if (!ready.isEmpty() && sink.requestedFromDownstream() > 0) {
+                        next = ready.poll();
+                    } else if (missed) {
+                        missed = false;
+                        continue;
+                    } else {
+                        draining = false;
+                        if (ready.isEmpty() && done) {
+                            complete = !completed;
+                            completed = true;
+                        } else if (ready.isEmpty() && subscribed && outstanding == 0L) {
+                            request = maxItems - batch.size();
+                            outstanding = request;
+                        }
+                    }
+                }
+                if (next != null) {
+                    sink.next(next);
+                    continue;
+                }
+                if (complete) {
+                    sink.complete();
+                } else if (request > 0L) {
+                    request(request);
+                }
+                return;
+            }
+        }
+    }
+}
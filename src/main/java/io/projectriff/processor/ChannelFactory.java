@@ -0,0 +1,216 @@
+package io.projectriff.processor;
+
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ConnectivityState;
+import io.grpc.ManagedChannel;
+import io.grpc.MethodDescriptor;
+import io.grpc.netty.NettyChannelBuilder;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the gRPC channels to the gateways and to the function, as configured by {@link ProcessorSettings}.
+ *
+ * <p>All channels share a single event loop group, using the native epoll transport when available. Channels use
+ * pooled Netty buffers and parse large streamed messages without copying their payloads (see
+ * {@link AliasingInterceptor}). They support all {@link Compression} codecs, compressing large enough messages of
+ * calls that ask for it. Each gateway may be reached over several channels, hence connections, unary calls being
+ * spread over them in a round-robin fashion while streaming calls stick to the channel picked by their
+ * {@link #AFFINITY}.</p>
+ *
+ * <p>Channels start connecting as soon as they are created, so that connections are established concurrently with the
+ * rest of the startup.</p>
+ */
+final class ChannelFactory {
+
+    /**
+     * How long to wait before reconnecting a channel that failed to connect, while awaiting readiness.
+     */
+    private static final Duration CONNECT_RETRY_DELAY = Duration.ofMillis(50);
+
+    /**
+     * Call option picking which of the channels to a gateway carries streaming calls, so that related streams (such
+     * as the {@code Subscribe} and {@code Receive} calls of an input) reach the same gateway instance. Streaming
+     * calls without it all go over the first channel.
+     */
+    static final CallOptions.Key<Integer> AFFINITY = CallOptions.Key.createWithDefault("riff-channel-affinity", 0);
+
+    private final ProcessorSettings settings;
+
+    private final EventLoopGroup eventLoopGroup;
+
+    private final Class<? extends io.netty.channel.Channel> channelType;
+
+    private final AliasingInterceptor aliasingInterceptor = new AliasingInterceptor(AliasingInterceptor.DEFAULT_THRESHOLD);
+
+    private final CompressionInterceptor compressionInterceptor;
+
+    private final List<ManagedChannel> channels = new CopyOnWriteArrayList<>();
+
+    ChannelFactory(ProcessorSettings settings) {
+        this.settings = settings;
+        this.compressionInterceptor = new CompressionInterceptor(settings.getCompressionThreshold());
+        DefaultThreadFactory threadFactory = new DefaultThreadFactory("riff-grpc", true);
+        if (settings.isChannelNativeTransport() && Epoll.isAvailable()) {
+            this.eventLoopGroup = new EpollEventLoopGroup(settings.getChannelEventLoopThreads(), threadFactory);
+            this.channelType = EpollSocketChannel.class;
+        } else {
+            this.eventLoopGroup = new NioEventLoopGroup(settings.getChannelEventLoopThreads(), threadFactory);
+            this.channelType = NioSocketChannel.class;
+        }
+    }
+
+    /**
+     * Returns a channel to the gateway at the given address, backed by a pool of
+     * {@link ProcessorSettings#GATEWAY_CHANNELS} connections.
+     */
+    Channel gateway(String address) {
+        int size = settings.getGatewayChannels();
+        if (size == 1) {
+            return create(address);
+        }
+        Channel[] pool = new Channel[size];
+        for (int i = 0; i < size; i++) {
+            pool[i] = create(address);
+        }
+        return new RoundRobinChannel(pool);
+    }
+
+    /**
+     * Returns a channel to the function at the given address.
+     */
+    Channel function(String address) {
+        return create(address);
+    }
+
+    /**
+     * Waits for all channels created so far to be connected. Channels start connecting as soon as created, and are
+     * retried quickly (rather than with the default gRPC backoff) as peers are typically starting at the same time.
+     */
+    Mono<Void> awaitReady(Duration timeout) {
+        return Flux.fromIterable(channels)
+                .flatMap(channel -> Mono.<Void>create(sink -> whenReady(channel, sink)))
+                .then()
+                .timeout(timeout, Mono.error(() -> new IllegalStateException(String.format("Could not connect to %s within %s", unready(), timeout))));
+    }
+
+    /**
+     * Shuts all channels down, and then the event loop group, waiting at most {@code timeout} for each of them.
+     */
+    void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        for (ManagedChannel channel : channels) {
+            channel.shutdown();
+        }
+        for (ManagedChannel channel : channels) {
+            if (!channel.awaitTermination(timeout, unit)) {
+                channel.shutdownNow();
+            }
+        }
+        eventLoopGroup.shutdownGracefully(0, timeout, unit);
+    }
+
+    private ManagedChannel create(String address) {
+        NettyChannelBuilder builder = NettyChannelBuilder.forTarget(address)
+                .usePlaintext()
+                .eventLoopGroup(eventLoopGroup)
+                .channelType(channelType)
+                .withOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .flowControlWindow(settings.getChannelFlowControlWindow())
+                .maxInboundMessageSize(settings.getChannelMaxInboundMessageSize())
+                .compressorRegistry(Compression.COMPRESSORS)
+                .decompressorRegistry(Compression.DECOMPRESSORS)
+                .intercept(aliasingInterceptor, compressionInterceptor);
+        if (!settings.getChannelKeepAliveTime().isZero()) {
+            builder.keepAliveTime(settings.getChannelKeepAliveTime().toNanos(), TimeUnit.NANOSECONDS)
+                    .keepAliveWithoutCalls(true);
+        }
+        if (settings.isChannelDirectExecutor()) {
+            builder.directExecutor();
+        }
+        ManagedChannel channel = builder.build();
+        // connect eagerly, rather than upon the first call
+        channel.getState(true);
+        channels.add(channel);
+        return channel;
+    }
+
+    private static void whenReady(ManagedChannel channel, MonoSink<Void> sink) {
+        ConnectivityState state = channel.getState(true);
+        switch (state) {
+            case READY:
+                sink.success();
+                break;
+            case SHUTDOWN:
+                sink.error(new IllegalStateException("Channel to " + channel.authority() + " shut down"));
+                break;
+            case TRANSIENT_FAILURE:
+                Disposable retry = Schedulers.parallel().schedule(() -> {
+                    channel.resetConnectBackoff();
+                    whenReady(channel, sink);
+                }, CONNECT_RETRY_DELAY.toMillis(), TimeUnit.MILLISECONDS);
+                sink.onCancel(retry);
+                break;
+            default:
+                channel.notifyWhenStateChanged(state, () -> whenReady(channel, sink));
+        }
+    }
+
+    private List<String> unready() {
+        List<String> unready = new ArrayList<>();
+        for (ManagedChannel channel : channels) {
+            if (channel.getState(false) != ConnectivityState.READY) {
+                unready.add(channel.authority());
+            }
+        }
+        return unready;
+    }
+
+    /**
+     * Spreads unary calls over several channels to the same target, and pins streaming calls to one of them according
+     * to their {@link #AFFINITY}.
+     */
+    static final class RoundRobinChannel extends Channel {
+
+        private final Channel[] channels;
+
+        private final AtomicInteger next = new AtomicInteger();
+
+        RoundRobinChannel(Channel[] channels) {
+            this.channels = channels;
+        }
+
+        @Override
+        public <ReqT, RespT> ClientCall<ReqT, RespT> newCall(MethodDescriptor<ReqT, RespT> method, CallOptions callOptions) {
+            int index = method.getType() == MethodDescriptor.MethodType.UNARY
+                    ? next.getAndIncrement()
+                    : callOptions.getOption(AFFINITY);
+            return channels[Math.floorMod(index, channels.length)].newCall(method, callOptions);
+        }
+
+        @Override
+        public String authority() {
+            return channels[0].authority();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package io.projectriff.processor;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+import io.grpc.Codec;
+import io.grpc.CompressorRegistry;
+import io.grpc.DecompressorRegistry;
+import io.grpc.stub.AbstractStub;
+import org.xerial.snappy.SnappyFramedInputStream;
+import org.xerial.snappy.SnappyFramedOutputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The message compression codecs the processor may use on its gRPC channels, on top of the ones gRPC ships with.
+ *
+ * <p>All codecs are registered for decompression, and thus advertised to the gateways and the function, which may then
+ * compress what they send back. Whether to compress what the processor sends is configured per output stream and for
+ * the function, and only applies to messages of at least {@link ProcessorSettings#COMPRESSION_THRESHOLD} bytes (see
+ * {@link CompressionInterceptor}). The peer must support the chosen codec: all gRPC servers support {@code gzip}.</p>
+ *
+ * <p>{@code snappy} and {@code zstd} rely on JNI libraries, which are not configured for the native image: they are
+ * only available when running on the JVM.</p>
+ */
+final class Compression {
+
+    /**
+     * Disables compression.
+     */
+    static final String IDENTITY = "identity";
+
+    static final String GZIP = "gzip";
+
+    static final String SNAPPY = "snappy";
+
+    static final String ZSTD = "zstd";
+
+    /**
+     * Whether running as a native image, where the JNI-backed codecs are left out. The property is set both while
+     * building the image and when it runs.
+     */
+    static final boolean NATIVE_IMAGE = System.getProperty("org.graalvm.nativeimage.imagecode") != null;
+
+    static final List<String> CODECS = codecs(NATIVE_IMAGE);
+
+    static final CompressorRegistry COMPRESSORS;
+
+    static final DecompressorRegistry DECOMPRESSORS;
+
+    static {
+        // a registry of our own, rather than registering codecs JVM-wide on the default one
+        COMPRESSORS = CompressorRegistry.newEmptyInstance();
+        COMPRESSORS.register(Codec.Identity.NONE);
+        COMPRESSORS.register(new Codec.Gzip());
+        if (NATIVE_IMAGE) {
+            DECOMPRESSORS = DecompressorRegistry.getDefaultInstance();
+        } else {
+            COMPRESSORS.register(new SnappyCodec());
+            COMPRESSORS.register(new ZstdCodec());
+            // the default registry is immutable, this derives a new one
+            DECOMPRESSORS = DecompressorRegistry.getDefaultInstance()
+                    .with(new SnappyCodec(), true)
+                    .with(new ZstdCodec(), true);
+        }
+    }
+
+    private Compression() {
+    }
+
+    /**
+     * Validates a codec name, as used in settings and stream metadata.
+     */
+    static String parse(String value) {
+        String name = value.trim().toLowerCase();
+        if (!CODECS.contains(name) && codecs(false).contains(name)) {
+            throw new IllegalArgumentException(String.format("Compression '%s' is only available on the JVM, expected one of %s", value, CODECS));
+        }
+        if (!CODECS.contains(name)) {
+            throw new IllegalArgumentException(String.format("Unknown compression '%s', expected one of %s", value, CODECS));
+        }
+        return name;
+    }
+
+    static List<String> codecs(boolean nativeImage) {
+        return nativeImage ? Arrays.asList(IDENTITY, GZIP) : Arrays.asList(IDENTITY, GZIP, SNAPPY, ZSTD);
+    }
+
+    /**
+     * Returns a stub compressing its messages with the given codec.
+     */
+    static <S extends AbstractStub<S>> S apply(S stub, String name) {
+        return IDENTITY.equals(name) ? stub : stub.withCompression(name);
+    }
+
+    /**
+     * Snappy, in its framed format. Much cheaper than gzip, for a lower ratio.
+     */
+    static final class SnappyCodec implements Codec {
+
+        @Override
+        public String getMessageEncoding() {
+            return SNAPPY;
+        }
+
+        @Override
+        public OutputStream compress(OutputStream os) throws IOException {
+            return new SnappyFramedOutputStream(os);
+        }
+
+        @Override
+        public InputStream decompress(InputStream is) throws IOException {
+            return new SnappyFramedInputStream(is);
+        }
+    }
+
+    /**
+     * Zstandard at its default level, with a ratio close to gzip for a fraction of its cost.
+     */
+    static final class ZstdCodec implements Codec {
+
+        @Override
+        public String getMessageEncoding() {
+            return ZSTD;
+        }
+
+        @Override
+        public OutputStream compress(OutputStream os) throws IOException {
+            return new ZstdOutputStream(os);
+        }
+
+        @Override
+        public InputStream decompress(InputStream is) throws IOException {
+            return new ZstdInputStream(is);
+        }
+    }
+}
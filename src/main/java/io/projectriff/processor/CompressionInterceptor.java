@@ -0,0 +1,44 @@
+package io.projectriff.processor;
+
+import com.google.protobuf.MessageLite;
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.ForwardingClientCall;
+import io.grpc.MethodDescriptor;
+
+/**
+ * Only compresses messages of at least {@code threshold} bytes, on calls that asked for compression.
+ *
+ * <p>Small messages barely compress, if at all, and would still pay for a compressor and its buffers. Deciding per
+ * message is cheap, as protobuf messages memoize their serialized size, which is computed anyway when they are
+ * sent.</p>
+ */
+final class CompressionInterceptor implements ClientInterceptor {
+
+    private final int threshold;
+
+    CompressionInterceptor(int threshold) {
+        this.threshold = threshold;
+    }
+
+    @Override
+    public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(MethodDescriptor<ReqT, RespT> method, CallOptions callOptions, Channel next) {
+        ClientCall<ReqT, RespT> call = next.newCall(method, callOptions);
+        if (callOptions.getCompressor() == null || Compression.IDENTITY.equals(callOptions.getCompressor())) {
+            return call;
+        }
+        return new ForwardingClientCall.SimpleForwardingClientCall<ReqT, RespT>(call) {
+            @Override
+            public void sendMessage(ReqT message) {
+                delegate().setMessageCompression(shouldCompress(message));
+                super.sendMessage(message);
+            }
+        };
+    }
+
+    boolean shouldCompress(Object message) {
+        return !(message instanceof MessageLite) || ((MessageLite) message).getSerializedSize() >= threshold;
+    }
+}
@@ -0,0 +1,75 @@
+package io.projectriff.processor;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Hooks;
+import reactor.core.publisher.Mono;
+
+import java.util.Arrays;
+
+/**
+ * How much assembly information the reactive pipeline records, to help diagnose errors.
+ *
+ * <p>Debugging aids are not free: with {@link #TRACEBACK}, every operator captures a stack trace when assembled,
+ * which is significant as the processor assembles a new chain for each invocation window.</p>
+ */
+enum DebugMode {
+
+    /**
+     * No debugging aid, the default.
+     */
+    OFF,
+
+    /**
+     * Light checkpoints (without stack traces) at each stage boundary: receive, invoke and publish. Errors then report
+     * the stage they traversed, at a negligible cost.
+     */
+    CHECKPOINT {
+        @Override
+        <T> Flux<T> checkpoint(Flux<T> flux, String description) {
+            return flux.checkpoint(description);
+        }
+
+        @Override
+        <T> Mono<T> checkpoint(Mono<T> mono, String description) {
+            return mono.checkpoint(description);
+        }
+    },
+
+    /**
+     * Full assembly tracing of every operator, through {@link Hooks#onOperatorDebug()}.
+     */
+    TRACEBACK {
+        @Override
+        void install() {
+            Hooks.onOperatorDebug();
+        }
+    };
+
+    /**
+     * Installs the global hooks (if any) this mode requires. To be called once, before assembling the pipeline.
+     */
+    void install() {
+    }
+
+    /**
+     * Marks a stage boundary of the pipeline.
+     */
+    <T> Flux<T> checkpoint(Flux<T> flux, String description) {
+        return flux;
+    }
+
+    /**
+     * Marks a stage boundary of the pipeline.
+     */
+    <T> Mono<T> checkpoint(Mono<T> mono, String description) {
+        return mono;
+    }
+
+    static DebugMode parse(String value) {
+        try {
+            return valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(String.format("Unknown debug mode '%s', expected one of %s", value, Arrays.toString(values())), e);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package io.projectriff.processor;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Generates the ids of the CloudEvents published to output streams.
+ *
+ * <p>Ids need to be unique across all replicas of a processor (<em>ie</em> sharing the same consumer group),
+ * and are generated for every single result, so implementations should neither lock nor block.</p>
+ */
+@FunctionalInterface
+interface EventIdGenerator {
+
+    String nextId();
+
+    /**
+     * Random UUIDs, drawing from the shared {@link java.security.SecureRandom} instance for every id.
+     */
+    static EventIdGenerator uuid() {
+        return () -> UUID.randomUUID().toString();
+    }
+
+    /**
+     * Time-ordered ids seeded once per processor instance, see {@link MonotonicEventIdGenerator}.
+     */
+    static EventIdGenerator monotonic() {
+        return new MonotonicEventIdGenerator();
+    }
+
+    /**
+     * Returns the generator known by the given name, either {@code ulid} or {@code uuid}.
+     */
+    static EventIdGenerator named(String name) {
+        switch (name.trim().toLowerCase()) {
+            case "ulid":
+                return monotonic();
+            case "uuid":
+                return uuid();
+            default:
+                throw new IllegalArgumentException(String.format("Unknown event id generator '%s', expected one of %s", name, Arrays.asList("ulid", "uuid")));
+        }
+    }
+}
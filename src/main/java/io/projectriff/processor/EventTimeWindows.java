@@ -0,0 +1,154 @@
+package io.projectriff.processor;
+
+import reactor.core.publisher.Flux;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Tumbling or sliding windows of event time (see {@link TrackedFrame#getEventTime()}), closed by watermarks.
+ *
+ * <p>Windows are aligned on the epoch, span {@code size} and start every {@code slide} (equal to {@code size} for
+ * tumbling windows), so that a record belongs to {@code size / slide} windows. Each partition has a watermark lagging
+ * {@code maxOutOfOrderness} behind the highest event time seen on it, and windows close once the lowest watermark
+ * among the partitions of the rail has passed their end. Partitions that have not delivered any record for
+ * {@code idleTimeout} (of wall-clock time) don't hold windows back, and once all of them are idle, all open windows
+ * close.</p>
+ *
+ * <p>Windows are emitted as they close, in event time order, with their records in the order they were received. A
+ * record arriving after some of its windows have closed only goes to those still open, or else to the oldest window
+ * that can still be opened, rather than being dropped. As windows are processed one at a time, the original record is
+ * put in its latest window, and {@link TrackedFrame#copy() copies} in the others, so that it is only acked once all
+ * of them have been processed.</p>
+ */
+final class EventTimeWindows implements WindowingStrategy {
+
+    private static final Object TICK = new Object();
+
+    private final long size;
+
+    private final long slide;
+
+    private final long maxOutOfOrderness;
+
+    private final long idleTimeoutNanos;
+
+    private final Duration tickInterval;
+
+    EventTimeWindows(Duration size, Duration slide, Duration maxOutOfOrderness, Duration idleTimeout) {
+        if (size.toMillis() < 1 || slide.toMillis() < 1 || slide.compareTo(size) > 0) {
+            throw new IllegalArgumentException(String.format("Invalid window size %s and slide %s", size, slide));
+        }
+        if (maxOutOfOrderness.isNegative() || idleTimeout.toMillis() < 1) {
+            throw new IllegalArgumentException(String.format("Invalid out-of-orderness %s or idle timeout %s", maxOutOfOrderness, idleTimeout));
+        }
+        this.size = size.toMillis();
+        this.slide = slide.toMillis();
+        this.maxOutOfOrderness = maxOutOfOrderness.toMillis();
+        this.idleTimeoutNanos = idleTimeout.toNanos();
+        this.tickInterval = idleTimeout.dividedBy(2);
+    }
+
+    @Override
+    public boolean requiresEventTime() {
+        return true;
+    }
+
+    @Override
+    public Flux<Flux<TrackedFrame>> window(Flux<TrackedFrame> records) {
+        return Flux.defer(() -> {
+            Windows windows = new Windows();
+            return records.publish(shared -> Flux.<Object>merge(
+                    shared,
+                    // so that idle partitions are noticed even without any record coming, ticks missed while windows
+                    // are being processed don't matter
+                    Flux.interval(tickInterval).onBackpressureDrop().map(tick -> TICK).takeUntilOther(shared.then())))
+                    .concatMapIterable(signal -> signal == TICK
+                            ? windows.close(windows.watermark())
+                            : windows.add((TrackedFrame) signal))
+                    .concatWith(Flux.defer(() -> Flux.fromIterable(windows.close(Long.MAX_VALUE))))
+                    .map(Flux::fromIterable);
+        });
+    }
+
+    /**
+     * The windows of a single rail. Only ever accessed by one thread at a time.
+     */
+    private final class Windows {
+
+        /**
+         * The records of open windows, by window start.
+         */
+        private final TreeMap<Long, List<TrackedFrame>> open = new TreeMap<>();
+
+        /**
+         * The highest event time seen on each active partition, and when it last delivered a record (in nanos). Idle
+         * partitions are forgotten, as they don't hold windows back anymore.
+         */
+        private final Map<OffsetTracker.PartitionOffsets, long[]> partitions = new HashMap<>();
+
+        /**
+         * The start of the last window closed, windows starting at or before it can't be opened anymore.
+         */
+        private long closedUpTo = Long.MIN_VALUE;
+
+        List<List<TrackedFrame>> add(TrackedFrame record) {
+            long eventTime = record.getEventTime();
+            long[] partition = partitions.computeIfAbsent(record.getPartition(), p -> new long[]{Long.MIN_VALUE, 0L});
+            partition[0] = Math.max(partition[0], eventTime);
+            partition[1] = System.nanoTime();
+
+            boolean placed = false;
+            for (long start = Math.floorDiv(eventTime, slide) * slide; start > eventTime - size && start > closedUpTo; start -= slide) {
+                open.computeIfAbsent(start, s -> new ArrayList<>()).add(placed ? record.copy() : record);
+                placed = true;
+            }
+            if (!placed) {
+                // late, all its windows are closed
+                open.computeIfAbsent(closedUpTo + slide, s -> new ArrayList<>()).add(record);
+            }
+            return close(watermark());
+        }
+
+        /**
+         * Returns the lowest watermark among active partitions, or {@link Long#MAX_VALUE} if all are idle.
+         */
+        long watermark() {
+            long now = System.nanoTime();
+            long watermark = Long.MAX_VALUE;
+            for (Iterator<long[]> it = partitions.values().iterator(); it.hasNext(); ) {
+                long[] partition = it.next();
+                if (now - partition[1] < idleTimeoutNanos) {
+                    watermark = Math.min(watermark, partition[0] - maxOutOfOrderness);
+                } else {
+                    it.remove();
+                }
+            }
+            return watermark;
+        }
+
+        /**
+         * Closes the windows ending at or before the watermark, returning their records.
+         */
+        List<List<TrackedFrame>> close(long watermark) {
+            List<List<TrackedFrame>> closed = Collections.emptyList();
+            for (Map.Entry<Long, List<TrackedFrame>> first = open.firstEntry();
+                 first != null && first.getKey() <= watermark - size;
+                 first = open.firstEntry()) {
+                if (closed.isEmpty()) {
+                    closed = new ArrayList<>(1);
+                }
+                open.pollFirstEntry();
+                closedUpTo = first.getKey();
+                closed.add(first.getValue());
+            }
+            return closed;
+        }
+    }
+}
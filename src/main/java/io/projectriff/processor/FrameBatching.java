@@ -0,0 +1,39 @@
+package io.projectriff.processor;
+
+import io.projectriff.invoker.rpc.InputBatch;
+import io.projectriff.invoker.rpc.InputFrame;
+import io.projectriff.invoker.rpc.InputSignal;
+import reactor.core.publisher.Flux;
+
+import java.time.Duration;
+
+/**
+ * Packs input frames into {@link InputBatch} signals, for functions that acknowledged {@link FunctionInvoker#BATCHES}.
+ * Batches are bounded as described by {@link Batcher}, and a batch that is not full is also sent when the window
+ * completes.
+ */
+final class FrameBatching {
+
+    /**
+     * Sends every frame in its own signal.
+     */
+    static final FrameBatching NONE = new FrameBatching(1, Integer.MAX_VALUE, Duration.ofMillis(1));
+
+    private final Batcher batcher;
+
+    FrameBatching(int maxFrames, int maxBytes, Duration linger) {
+        this.batcher = new Batcher(maxFrames, maxBytes, linger);
+    }
+
+    boolean isEnabled() {
+        return batcher.isEnabled();
+    }
+
+    Flux<InputSignal> signals(Flux<InputFrame> frames) {
+        if (!isEnabled()) {
+            return frames.map(frame -> InputSignal.newBuilder().setData(frame).build());
+        }
+        return batcher.batches(frames, InputFrame::getSerializedSize)
+                .map(batch -> InputSignal.newBuilder().setBatch(InputBatch.newBuilder().addAllFrames(batch)).build());
+    }
+}
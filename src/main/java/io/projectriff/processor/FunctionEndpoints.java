@@ -0,0 +1,205 @@
+package io.projectriff.processor;
+
+import io.projectriff.invoker.rpc.ReactorRiffGrpc;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * The function instances (replicas) invocations are spread over, with their load and health.
+ *
+ * <p>Each invocation goes to the healthy endpoint with the fewest outstanding invocations, preferring the endpoint
+ * the caller used last on ties, so that the partitions of a rail keep being served by the same instance while the
+ * load is balanced. An endpoint whose invocation failed is ejected for {@code ejectionTime}. Should all endpoints be
+ * ejected, the one ejected first is used anyway.</p>
+ */
+final class FunctionEndpoints {
+
+    private static final Logger logger = LoggerFactory.getLogger(FunctionEndpoints.class);
+
+    /**
+     * Marks function addresses to expand to all the addresses their host name resolves to.
+     */
+    static final String DNS_SCHEME = "dns:///";
+
+    private final List<Endpoint> endpoints;
+
+    private final long ejectionNanos;
+
+    private FunctionEndpoints(List<Endpoint> endpoints, Duration ejectionTime) {
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("At least one function endpoint is required");
+        }
+        this.endpoints = endpoints;
+        this.ejectionNanos = ejectionTime.toNanos();
+    }
+
+    static FunctionEndpoints single(ReactorRiffGrpc.ReactorRiffStub stub) {
+        return new FunctionEndpoints(Collections.singletonList(new Endpoint("function", stub)), Duration.ZERO);
+    }
+
+    /**
+     * @param stubs creates the stub to the function at a given address
+     */
+    static FunctionEndpoints of(List<String> addresses, Function<String, ReactorRiffGrpc.ReactorRiffStub> stubs, Duration ejectionTime) {
+        List<Endpoint> endpoints = new ArrayList<>(addresses.size());
+        for (String address : addresses) {
+            endpoints.add(new Endpoint(address, stubs.apply(address)));
+        }
+        return new FunctionEndpoints(endpoints, ejectionTime);
+    }
+
+    /**
+     * Parses the function location, a comma separated list of {@code host:port} addresses. Addresses marked with a
+     * {@value #DNS_SCHEME} prefix (<em>eg</em> a headless service) are expanded to all the addresses their host name
+     * resolves to, each then used as an instance. As all loopback addresses reach the same host, only the first one is
+     * kept, and duplicate addresses are dropped.
+     */
+    static List<String> parseAddresses(String value) {
+        Set<String> addresses = new LinkedHashSet<>();
+        for (String entry : value.split(",")) {
+            String address = entry.trim();
+            if (address.startsWith(DNS_SCHEME)) {
+                addresses.addAll(resolve(address));
+            } else if (!address.isEmpty()) {
+                addresses.add(address);
+            }
+        }
+        return new ArrayList<>(addresses);
+    }
+
+    private static List<String> resolve(String address) {
+        String hostAndPort = address.substring(DNS_SCHEME.length());
+        int colon = hostAndPort.lastIndexOf(':');
+        if (colon < 0 || hostAndPort.indexOf(']', colon) >= 0) {
+            // no port to append to resolved addresses, let the channel resolve it
+            return Collections.singletonList(address);
+        }
+        String host = hostAndPort.substring(0, colon);
+        String port = hostAndPort.substring(colon + 1);
+        try {
+            List<String> resolved = new ArrayList<>();
+            boolean loopback = false;
+            for (InetAddress inetAddress : InetAddress.getAllByName(host)) {
+                if (inetAddress.isLoopbackAddress()) {
+                    if (loopback) {
+                        continue;
+                    }
+                    loopback = true;
+                }
+                resolved.add(inetAddress instanceof Inet6Address
+                        ? "[" + inetAddress.getHostAddress() + "]:" + port
+                        : inetAddress.getHostAddress() + ":" + port);
+            }
+            logger.info("Function {} resolved to {}", address, resolved);
+            return resolved;
+        } catch (UnknownHostException e) {
+            // not resolvable yet, let the channel retry
+            return Collections.singletonList(address);
+        }
+    }
+
+    int size() {
+        return endpoints.size();
+    }
+
+    Endpoint first() {
+        return endpoints.get(0);
+    }
+
+    List<Endpoint> all() {
+        return endpoints;
+    }
+
+    /**
+     * Returns the endpoint to invoke next, and counts the invocation as outstanding on it.
+     *
+     * @param previous the endpoint the caller used last, if any
+     * @param excluded an endpoint not to use, <em>eg</em> because it just failed, if any
+     */
+    Endpoint acquire(Endpoint previous, Endpoint excluded) {
+        long now = System.nanoTime();
+        Endpoint best = null;
+        Endpoint firstEjected = null;
+        synchronized (this) {
+            for (Endpoint endpoint : endpoints) {
+                if (endpoint == excluded && endpoints.size() > 1) {
+                    continue;
+                }
+                if (endpoint.ejectedUntil - now > 0) {
+                    if (firstEjected == null || endpoint.ejectedUntil - firstEjected.ejectedUntil < 0) {
+                        firstEjected = endpoint;
+                    }
+                    continue;
+                }
+                int outstanding = endpoint.outstanding.get();
+                if (best == null || outstanding < best.outstanding.get()
+                        || outstanding == best.outstanding.get() && endpoint == previous) {
+                    best = endpoint;
+                }
+            }
+            if (best == null) {
+                best = firstEjected != null ? firstEjected : first();
+            }
+            best.outstanding.incrementAndGet();
+        }
+        return best;
+    }
+
+    /**
+     * Marks an invocation acquired with {@link #acquire(Endpoint, Endpoint)} as done, ejecting the endpoint if it
+     * failed.
+     */
+    void release(Endpoint endpoint, Throwable failure) {
+        endpoint.outstanding.decrementAndGet();
+        if (failure != null && endpoints.size() > 1) {
+            endpoint.ejectedUntil = System.nanoTime() + ejectionNanos;
+            logger.warn("Invocation of function {} failed ({}), ejecting it for {} ms", endpoint.address, failure.toString(),
+                    ejectionNanos / 1_000_000);
+        }
+    }
+
+    static final class Endpoint {
+
+        private final String address;
+
+        private final ReactorRiffGrpc.ReactorRiffStub stub;
+
+        private final AtomicInteger outstanding = new AtomicInteger();
+
+        private volatile long ejectedUntil = System.nanoTime();
+
+        Endpoint(String address, ReactorRiffGrpc.ReactorRiffStub stub) {
+            this.address = address;
+            this.stub = stub;
+        }
+
+        String getAddress() {
+            return address;
+        }
+
+        ReactorRiffGrpc.ReactorRiffStub getStub() {
+            return stub;
+        }
+
+        int getOutstanding() {
+            return outstanding.get();
+        }
+
+        @Override
+        public String toString() {
+            return address;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package io.projectriff.processor;
+
+import io.projectriff.invoker.rpc.InputFrame;
+import io.projectriff.invoker.rpc.InputSignal;
+import io.projectriff.invoker.rpc.OutputSignal;
+import io.projectriff.invoker.rpc.ReactorRiffGrpc;
+import io.projectriff.invoker.rpc.StartFrame;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Invokes the function over RPC, one invocation window at a time.
+ *
+ * <p>Windows are handed to a given invoker sequentially: a window is only invoked once the results of the previous
+ * one have completed.</p>
+ */
+interface FunctionInvoker {
+
+    /**
+     * The {@link StartFrame} capability for long-lived invocation streams, with in-band window boundaries.
+     */
+    String WINDOW_BOUNDARIES = "window-boundaries";
+
+    /**
+     * The {@link StartFrame} capability for batches of input frames and of results.
+     */
+    String BATCHES = "batches";
+
+    /**
+     * The {@link StartFrame} capability for per-stream dictionaries of repeated headers.
+     */
+    String HEADER_DICTIONARY = "header-dictionary";
+
+    /**
+     * Invokes the function with the frames of a single window, returning its results, either single frames or
+     * batches of them (see {@link Processor#extractWindowResults(Flux)}).
+     */
+    Flux<OutputSignal> invoke(Flux<InputFrame> window);
+
+    /**
+     * Releases the resources held by this invoker, if any.
+     */
+    default void close() {
+    }
+
+    /**
+     * Opens a new invocation stream for every window, starting with the given frame, whose capabilities must have
+     * been acknowledged by the function.
+     */
+    static FunctionInvoker perWindow(ReactorRiffGrpc.ReactorRiffStub stub, StartFrame start, FrameBatching batching, HeaderEncoding headers) {
+        if (!headers.isEnabled()) {
+            InputSignal startSignal = InputSignal.newBuilder().setStart(start).build();
+            return window -> stub.invoke(Flux.concat(
+                    Mono.just(startSignal),
+                    batching.signals(window)));
+        }
+        return window -> Flux.defer(() -> {
+            HeaderEncoding.Encoder encoder = headers.newStream();
+            InputSignal startSignal = InputSignal.newBuilder()
+                    .setStart(start.toBuilder().addAllHeaderDictionary(encoder.initial()))
+                    .build();
+            return stub.invoke(Flux.concat(
+                    Mono.just(startSignal),
+                    encoder.encode(batching.signals(window))));
+        });
+    }
+
+    /**
+     * Keeps a single invocation stream open, marking window boundaries in-band. The capabilities of the given frame
+     * must have been acknowledged by the function, and include {@link #WINDOW_BOUNDARIES}.
+     */
+    static FunctionInvoker persistent(ReactorRiffGrpc.ReactorRiffStub stub, StartFrame start, FrameBatching batching, HeaderEncoding headers) {
+        return new PersistentFunctionInvoker(stub, start, batching, headers.newStream());
+    }
+
+    /**
+     * Opens a probe invocation stream asking for the given capabilities, and returns those the function acknowledged
+     * within {@code timeout}. Functions unaware of capabilities never acknowledge anything, so that the probe then
+     * times out.
+     */
+    static Mono<List<String>> negotiate(ReactorRiffGrpc.ReactorRiffStub stub, StartFrame start, List<String> capabilities, Duration timeout) {
+        InputSignal probe = InputSignal.newBuilder()
+                .setStart(start.toBuilder().addAllCapabilities(capabilities))
+                .build();
+        return stub.invoke(Flux.concat(Mono.just(probe), Flux.never()))
+                .next()
+                .map(signal -> signal.getStartAck().getCapabilitiesList().stream()
+                        .filter(capabilities::contains)
+                        .collect(Collectors.toList()))
+                .timeout(timeout, Mono.just(Collections.emptyList()))
+                .onErrorReturn(Collections.emptyList())
+                .defaultIfEmpty(Collections.emptyList());
+    }
+
+    /**
+     * How windows are mapped to invocation streams.
+     */
+    enum Mode {
+
+        /**
+         * One invocation stream per window.
+         */
+        WINDOW,
+
+        /**
+         * A long-lived invocation stream, if the function supports it, else one invocation stream per window.
+         */
+        PERSISTENT;
+
+        static Mode parse(String value) {
+            try {
+                return valueOf(value.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(String.format("Unknown invoke mode '%s', expected one of %s", value, Arrays.toString(values()).toLowerCase()), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package io.projectriff.processor;
+
+import io.projectriff.invoker.rpc.Header;
+import io.projectriff.invoker.rpc.HeaderDictionary;
+import io.projectriff.invoker.rpc.InputBatch;
+import io.projectriff.invoker.rpc.InputFrame;
+import io.projectriff.invoker.rpc.InputSignal;
+import reactor.core.publisher.Flux;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Replaces header pairs that repeat across input frames with references to a per-stream dictionary, for functions
+ * that acknowledged {@link FunctionInvoker#HEADER_DICTIONARY}.
+ *
+ * <p>Each invocation stream gets its own {@link Encoder}. Its dictionary starts with the pairs learned by the previous
+ * stream, declared in the {@code StartFrame}, and then grows with new pairs (up to {@code maxSize} entries), which
+ * are declared in-band before the first frame referencing them.</p>
+ *
+ * <p>A pair only enters a dictionary once it has been seen before (by any stream), so that per-event values such as
+ * trace ids don't fill dictionaries up with entries that are never referenced again.</p>
+ */
+final class HeaderEncoding {
+
+    /**
+     * Leaves headers as they are.
+     */
+    static final HeaderEncoding NONE = new HeaderEncoding(0);
+
+    /**
+     * Longer values are unlikely to repeat, and are never added to dictionaries.
+     */
+    private static final int MAX_VALUE_LENGTH = 256;
+
+    /**
+     * How many pairs seen once are remembered, beyond which they are forgotten all at once.
+     */
+    private static final int MAX_CANDIDATES_PER_ENTRY = 4;
+
+    private final int maxSize;
+
+    /**
+     * Pairs seen once, which enter dictionaries if seen again.
+     */
+    private final Set<Header> candidates = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The dictionary new streams start with.
+     */
+    private final AtomicReference<List<Header>> seed = new AtomicReference<>(Collections.emptyList());
+
+    HeaderEncoding(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    Encoder newStream() {
+        return new Encoder(seed.get());
+    }
+
+    /**
+     * Encodes the signals of a single invocation stream. Not thread safe, as signals of a stream are sent in order.
+     */
+    final class Encoder {
+
+        private final List<Header> entries;
+
+        /**
+         * Indices of the entries, by key then by value, so that lookups don't allocate.
+         */
+        private final Map<String, Map<String, Integer>> ids = new HashMap<>();
+
+        private Encoder(List<Header> initial) {
+            this.entries = new ArrayList<>(initial);
+            for (int i = 0; i < initial.size(); i++) {
+                ids.computeIfAbsent(initial.get(i).getKey(), k -> new HashMap<>()).put(initial.get(i).getValue(), i);
+            }
+        }
+
+        /**
+         * Returns the dictionary to declare in the {@code StartFrame}.
+         */
+        List<Header> initial() {
+            return Collections.unmodifiableList(new ArrayList<>(entries));
+        }
+
+        Flux<InputSignal> encode(Flux<InputSignal> signals) {
+            if (!isEnabled()) {
+                return signals;
+            }
+            return signals.concatMapIterable(this::encode)
+                    .doOnComplete(() -> seed.set(initial()));
+        }
+
+        private List<InputSignal> encode(InputSignal signal) {
+            List<Header> additions = new ArrayList<>(0);
+            InputSignal encoded;
+            switch (signal.getFrameCase()) {
+                case DATA:
+                    encoded = InputSignal.newBuilder().setData(encode(signal.getData(), additions)).build();
+                    break;
+                case BATCH:
+                    InputBatch.Builder batch = InputBatch.newBuilder();
+                    for (InputFrame frame : signal.getBatch().getFramesList()) {
+                        batch.addFrames(encode(frame, additions));
+                    }
+                    encoded = InputSignal.newBuilder().setBatch(batch).build();
+                    break;
+                default:
+                    return Collections.singletonList(signal);
+            }
+            if (additions.isEmpty()) {
+                return Collections.singletonList(encoded);
+            }
+            InputSignal dictionary = InputSignal.newBuilder()
+                    .setDictionary(HeaderDictionary.newBuilder().addAllHeaders(additions))
+                    .build();
+            List<InputSignal> result = new ArrayList<>(2);
+            result.add(dictionary);
+            result.add(encoded);
+            return result;
+        }
+
+        private InputFrame encode(InputFrame frame, List<Header> additions) {
+            if (frame.getHeadersCount() == 0) {
+                return frame;
+            }
+            InputFrame.Builder builder = frame.toBuilder().clearHeaders();
+            for (Map.Entry<String, String> header : frame.getHeadersMap().entrySet()) {
+                Integer id = id(header.getKey(), header.getValue(), additions);
+                if (id != null) {
+                    builder.addHeaderRefs(id);
+                } else {
+                    builder.putHeaders(header.getKey(), header.getValue());
+                }
+            }
+            return builder.build();
+        }
+
+        /**
+         * Returns the index of the given pair, adding it to the dictionary if possible and seen before, or null.
+         */
+        private Integer id(String key, String value, List<Header> additions) {
+            Map<String, Integer> values = ids.get(key);
+            Integer id = values == null ? null : values.get(value);
+            if (id != null || entries.size() >= maxSize || value.length() > MAX_VALUE_LENGTH) {
+                return id;
+            }
+            Header header = Header.newBuilder().setKey(key).setValue(value).build();
+            if (!seenBefore(header)) {
+                return null;
+            }
+            id = entries.size();
+            entries.add(header);
+            additions.add(header);
+            ids.computeIfAbsent(key, k -> new HashMap<>()).put(value, id);
+            return id;
+        }
+
+        private boolean seenBefore(Header header) {
+            if (candidates.remove(header)) {
+                return true;
+            }
+            if (candidates.size() >= maxSize * MAX_CANDIDATES_PER_ENTRY) {
+                candidates.clear();
+            }
+            candidates.add(header);
+            return false;
+        }
+    }
+}
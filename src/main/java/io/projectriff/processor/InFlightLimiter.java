@@ -0,0 +1,196 @@
+package io.projectriff.processor;
+
+import org.reactivestreams.Subscription;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+
+import java.time.Duration;
+
+/**
+ * Bounds the number of records in flight, <em>ie</em> received from the gateways but not fully processed yet, by
+ * only requesting more records from the input streams as others complete.
+ *
+ * <p>This ties the demand to the gateways to the processing capacity of the function and of the outputs, so that
+ * a slow function does not let received records pile up in memory. With a latency target, the limit adapts in an
+ * AIMD fashion: it grows additively (by {@code step} records per window) as long as windows complete within the
+ * target while the limit is actually reached, and is cut down multiplicatively (at most once per target period) when
+ * they don't, staying between {@code minLimit} (at least {@code step}) and {@code maxLimit}.</p>
+ *
+ * <p>As records only complete with their window, a limit too low for windows to ever fill up would stall processing
+ * for good: {@code minLimit} is the number of records that guarantees at least one window can close.</p>
+ */
+final class InFlightLimiter {
+
+    /**
+     * How much of the limit is kept upon a latency overshoot.
+     */
+    private static final double DECREASE_FACTOR = 0.75;
+
+    /**
+     * The smallest adaptive limit, also the additive increase step.
+     */
+    private static final int DEFAULT_STEP = 64;
+
+    private final int maxLimit;
+
+    private final long targetNanos;
+
+    private final int step;
+
+    private final int minLimit;
+
+    private int limit;
+
+    /**
+     * The records requested from the gateways and not completed yet, whether they have been received or not.
+     */
+    private long outstanding;
+
+    /**
+     * The records received and not completed yet.
+     */
+    private long inFlight;
+
+    private long lastDecrease;
+
+    private Subscription upstream;
+
+    /**
+     * @param maxLimit the fixed limit, or the upper bound of the adaptive one. {@code 0} disables limiting
+     * @param minLimit the fewest records in flight that let windows close, which the limit never goes below
+     * @param latencyTarget the target latency of windows, from their end to the publication of their results, or
+     *                      {@code 0} for a fixed limit
+     */
+    InFlightLimiter(int maxLimit, int minLimit, Duration latencyTarget, PipelineMetrics metrics) {
+        if (maxLimit <= 0 && !latencyTarget.isZero()) {
+            throw new IllegalArgumentException("An adaptive in-flight limit requires a maximum limit");
+        }
+        if (maxLimit > 0 && maxLimit < minLimit) {
+            throw new IllegalArgumentException(String.format("An in-flight limit of %d is below the %d records windows need to close", maxLimit, minLimit));
+        }
+        this.maxLimit = maxLimit;
+        this.targetNanos = latencyTarget.toNanos();
+        this.step = Math.min(DEFAULT_STEP, Math.max(1, maxLimit));
+        this.minLimit = Math.max(step, minLimit);
+        this.limit = targetNanos == 0L ? maxLimit : this.minLimit;
+        this.lastDecrease = System.nanoTime();
+        if (isEnabled()) {
+            metrics.inFlightLimiter(this);
+        }
+    }
+
+    boolean isEnabled() {
+        return maxLimit > 0;
+    }
+
+    synchronized int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Returns how many records have been requested from the gateways, but not received yet.
+     */
+    synchronized long getDemand() {
+        return outstanding - inFlight;
+    }
+
+    /**
+     * Only lets records through while fewer than the limit are in flight. To be applied once, on all records.
+     */
+    <T> Flux<T> gate(Flux<T> records) {
+        if (!isEnabled()) {
+            return records;
+        }
+        return Flux.create(sink -> {
+            BaseSubscriber<T> subscriber = new BaseSubscriber<T>() {
+                @Override
+                protected void hookOnSubscribe(Subscription subscription) {
+                    subscribed(subscription);
+                }
+
+                @Override
+                protected void hookOnNext(T record) {
+                    received();
+                    sink.next(record);
+                }
+
+                @Override
+                protected void hookOnComplete() {
+                    sink.complete();
+                }
+
+                @Override
+                protected void hookOnError(Throwable throwable) {
+                    sink.error(throwable);
+                }
+            };
+            sink.onDispose(subscriber);
+            records.subscribe(subscriber);
+        }, FluxSink.OverflowStrategy.BUFFER);
+    }
+
+    /**
+     * Signals that records are fully processed, letting as many new ones in.
+     *
+     * @param latencyNanos how long it took to process the window they belong to, once closed
+     */
+    void completed(int records, long latencyNanos) {
+        if (!isEnabled()) {
+            return;
+        }
+        Subscription subscription;
+        long request;
+        synchronized (this) {
+            // only grow when the limit is what holds records back
+            boolean saturated = inFlight + step > limit;
+            inFlight -= records;
+            outstanding -= records;
+            if (targetNanos != 0L) {
+                adapt(latencyNanos, saturated);
+            }
+            subscription = upstream;
+            request = takeRequest();
+        }
+        if (request > 0) {
+            subscription.request(request);
+        }
+    }
+
+    private void subscribed(Subscription subscription) {
+        long request;
+        synchronized (this) {
+            upstream = subscription;
+            request = takeRequest();
+        }
+        subscription.request(request);
+    }
+
+    private synchronized void received() {
+        inFlight++;
+    }
+
+    private void adapt(long latencyNanos, boolean saturated) {
+        long now = System.nanoTime();
+        if (latencyNanos > targetNanos) {
+            if (now - lastDecrease >= targetNanos) {
+                limit = Math.max(minLimit, (int) (limit * DECREASE_FACTOR));
+                lastDecrease = now;
+            }
+        } else if (saturated) {
+            limit = Math.min(maxLimit, limit + step);
+        }
+    }
+
+    /**
+     * Returns how many more records may be requested, accounting for them as outstanding.
+     */
+    private long takeRequest() {
+        if (upstream == null || outstanding >= limit) {
+            return 0L;
+        }
+        long request = limit - outstanding;
+        outstanding = limit;
+        return request;
+    }
+}
@@ -0,0 +1,59 @@
+package io.projectriff.processor;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An {@link EventIdGenerator} producing 128 bit, ULID-like ids, rendered as 26 characters of Crockford's base32.
+ *
+ * <p>Each id is made of
+ * <ul>
+ *     <li>48 bits of wall-clock time, in milliseconds, so that ids are roughly time-ordered,</li>
+ *     <li>32 random bits drawn once per processor instance, to tell replicas apart,</li>
+ *     <li>48 bits of a per-instance counter, starting at a random value and incremented for each id.</li>
+ * </ul>
+ * Only the counter is shared between threads, and it is updated without locking.</p>
+ */
+final class MonotonicEventIdGenerator implements EventIdGenerator {
+
+    private static final char[] CROCKFORD_BASE32 = "0123456789ABCDEFGHJKMNPQRSTVWXYZ".toCharArray();
+
+    private static final int LENGTH = 26;
+
+    private static final long COUNTER_MASK = 0xFFFF_FFFF_FFFFL;
+
+    private final long instance;
+
+    private final AtomicLong counter;
+
+    MonotonicEventIdGenerator() {
+        this(new SecureRandom());
+    }
+
+    MonotonicEventIdGenerator(SecureRandom seed) {
+        this.instance = seed.nextInt() & 0xFFFF_FFFFL;
+        this.counter = new AtomicLong(seed.nextLong() & COUNTER_MASK);
+    }
+
+    @Override
+    public String nextId() {
+        long time = System.currentTimeMillis() & 0xFFFF_FFFF_FFFFL;
+        long count = counter.getAndIncrement() & COUNTER_MASK;
+        long high = time << 16 | instance >>> 16;
+        long low = (instance & 0xFFFFL) << 48 | count;
+        return encode(high, low);
+    }
+
+    /**
+     * Renders 128 bits (as a 130 bit quantity, left padded with zeros) five bits at a time, least significant last.
+     */
+    private static String encode(long high, long low) {
+        char[] chars = new char[LENGTH];
+        for (int i = LENGTH - 1; i >= 0; i--) {
+            chars[i] = CROCKFORD_BASE32[(int) (low & 0x1F)];
+            low = low >>> 5 | high << 59;
+            high = high >>> 5;
+        }
+        return new String(chars);
+    }
+}
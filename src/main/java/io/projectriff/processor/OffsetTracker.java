@@ -0,0 +1,340 @@
+package io.projectriff.processor;
+
+import com.github.bsideup.liiklus.protocol.AckRequest;
+import com.github.bsideup.liiklus.protocol.ReactorLiiklusServiceGrpc;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.UnicastProcessor;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps track of in-flight offsets, per input topic and partition, and acks them back to the gateway once the
+ * corresponding records have been fully processed, <em>ie</em> once the invocation window they belong to has completed
+ * and all of its results have been published.
+ *
+ * <p>Records may complete out of order. Only the highest offset below which every tracked record of a partition
+ * has completed is ever acked, so that a restart never skips a record that was not fully processed (at-least-once).
+ * Acks are coalesced and sent every {@code batchSize} completed records or every {@code interval}, whichever
+ * comes first.</p>
+ *
+ * <p>The state of a partition lives as long as it is assigned, across resubscriptions after gateway failures. Once
+ * revoked, the state is dropped, after a last ack of what was committed by then: records of that generation still in
+ * flight complete without effect, and a later assignment of the partition starts afresh.</p>
+ */
+final class OffsetTracker {
+
+    private static final Logger logger = LoggerFactory.getLogger(OffsetTracker.class);
+
+    private final String group;
+
+    private final int batchSize;
+
+    private final Duration interval;
+
+    private final Duration summaryInterval;
+
+    private final PipelineMetrics metrics;
+
+    private final ConcurrentMap<String, PartitionOffsets> partitions = new ConcurrentHashMap<>();
+
+    /**
+     * Revoked partitions, waiting for their last ack.
+     */
+    private final Queue<PartitionOffsets> revoked = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger completedSinceFlush = new AtomicInteger();
+
+    private final UnicastProcessor<Long> flushRequests = UnicastProcessor.create();
+
+    private final FluxSink<Long> flushSink = flushRequests.sink();
+
+    OffsetTracker(String group, int batchSize, Duration interval, Duration summaryInterval, PipelineMetrics metrics) {
+        this.group = group;
+        this.batchSize = batchSize;
+        this.interval = interval;
+        this.summaryInterval = summaryInterval;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Returns the (unique) state associated with the given partition of an input stream, until it is revoked, for a
+     * new receive stream of that partition. To be {@link #release(StreamBinding, PartitionOffsets, boolean) released}
+     * once the stream ends.
+     */
+    PartitionOffsets partition(StreamBinding input, ReactorLiiklusServiceGrpc.ReactorLiiklusServiceStub stub, int partition) {
+        return partitions.compute(key(input, partition), (k, existing) -> {
+            PartitionOffsets offsets = existing != null
+                    ? existing
+                    : new PartitionOffsets(stub, input.getTopic(), partition, metrics.ackLatency(input.getTopic(), partition));
+            offsets.receivers++;
+            return offsets;
+        });
+    }
+
+    /**
+     * Signals that a receive stream of a partition ended. If it completed, the partition was revoked: unless it has
+     * already been assigned again, its state is dropped and what it committed so far is acked. If it failed, the
+     * state is kept for the stream to resume.
+     */
+    void release(StreamBinding input, PartitionOffsets partition, boolean revoked) {
+        boolean[] dropped = {false};
+        partitions.computeIfPresent(key(input, partition.getPartition()), (k, existing) -> {
+            if (existing != partition || --partition.receivers > 0 || !revoked) {
+                return existing;
+            }
+            partition.revoke();
+            dropped[0] = true;
+            return null;
+        });
+        if (dropped[0]) {
+            this.revoked.offer(partition);
+            requestFlush();
+        }
+    }
+
+    private static String key(StreamBinding input, int partition) {
+        return input.getGatewayAddress() + "/" + input.getTopic() + "/" + partition;
+    }
+
+    /**
+     * Marks the given records as fully processed, possibly triggering an early flush of committed offsets. Copies of
+     * records (see {@link TrackedFrame#copy()}) are ignored.
+     */
+    void completed(Collection<TrackedFrame> records) {
+        int count = 0;
+        for (TrackedFrame record : records) {
+            if (!record.isCopy()) {
+                record.getPartition().completed(record.getOffset());
+                count++;
+            }
+        }
+        int completed = count;
+        // Resetting in the same update as the addition, so that completions of concurrent callers are never lost
+        int before = completedSinceFlush.getAndUpdate(n -> n + completed >= batchSize ? 0 : n + completed);
+        if (before + completed >= batchSize) {
+            requestFlush();
+        }
+    }
+
+    /**
+     * Asks for committed offsets to be acked as soon as possible, <em>eg</em> because a partition got revoked.
+     */
+    void requestFlush() {
+        flushSink.next(0L);
+    }
+
+    /**
+     * Starts periodically acking committed offsets (and logging a summary of them, if enabled), until disposed.
+     */
+    Disposable start() {
+        Disposable acks = Flux.merge(flushRequests, Flux.interval(interval))
+                .onBackpressureLatest()
+                .concatMap(tick -> flush(), 1)
+                .subscribe();
+        if (summaryInterval.isZero() || !logger.isInfoEnabled()) {
+            return acks;
+        }
+        Disposable summaries = Flux.interval(summaryInterval, summaryInterval)
+                .subscribe(tick -> logSummary());
+        return Disposables.composite(acks, summaries);
+    }
+
+    /**
+     * Logs the offsets acked since the previous summary, for all partitions that progressed.
+     */
+    private void logSummary() {
+        StringBuilder progress = new StringBuilder();
+        for (PartitionOffsets partition : partitions.values()) {
+            long[] summary = partition.takeSummary();
+            if (summary != null) {
+                progress.append(progress.length() == 0 ? "" : ", ")
+                        .append(partition.getTopic()).append('/').append(partition.getPartition())
+                        .append('=').append(summary[0])
+                        .append(" (+").append(summary[1]).append(')');
+            }
+        }
+        if (progress.length() > 0) {
+            logger.info("Acked offsets for group {} over the last {}: {}", group, summaryInterval, progress);
+        }
+    }
+
+    /**
+     * Acks the highest committed offset of every partition that progressed since last time, including the last ack
+     * of revoked ones.
+     */
+    Mono<Void> flush() {
+        List<PartitionOffsets> lastAcks = new ArrayList<>();
+        for (PartitionOffsets partition = revoked.poll(); partition != null; partition = revoked.poll()) {
+            lastAcks.add(partition);
+        }
+        return Flux.concat(Flux.fromIterable(lastAcks), Flux.fromIterable(partitions.values()))
+                .flatMap(partition -> partition.ack(group))
+                .then();
+    }
+
+    /**
+     * The state of a single partition of an input stream: offsets handed to the function that are not yet committed,
+     * the highest committed offset and the last acked one.
+     */
+    static final class PartitionOffsets {
+
+        private final ReactorLiiklusServiceGrpc.ReactorLiiklusServiceStub stub;
+
+        private final String topic;
+
+        private final int partition;
+
+        private final Timer ackLatency;
+
+        /**
+         * Offsets of in-flight records, in increasing order, mapped to whether they have been fully processed.
+         */
+        private final TreeMap<Long, Boolean> inFlight = new TreeMap<>();
+
+        private long committed = -1L;
+
+        private long acked = -1L;
+
+        /**
+         * The last acked offset as of the previous summary, so that summaries only mention progress.
+         */
+        private long summarized = -1L;
+
+        /**
+         * The last offset received, whether processed or not, so that a resumed receive stream skips what is already
+         * in flight. Only written by the (single) receive stream of the partition.
+         */
+        private volatile long lastReceived = -1L;
+
+        /**
+         * Whether the partition has been revoked, after which records of this generation are ignored.
+         */
+        private boolean revoked;
+
+        /**
+         * How many receive streams use this state, only accessed when computing the entry of the partition.
+         */
+        private int receivers;
+
+        PartitionOffsets(ReactorLiiklusServiceGrpc.ReactorLiiklusServiceStub stub, String topic, int partition, Timer ackLatency) {
+            this.stub = stub;
+            this.topic = topic;
+            this.partition = partition;
+            this.ackLatency = ackLatency;
+        }
+
+        String getTopic() {
+            return topic;
+        }
+
+        int getPartition() {
+            return partition;
+        }
+
+        void received(long offset) {
+            lastReceived = offset;
+        }
+
+        long getLastReceived() {
+            return lastReceived;
+        }
+
+        synchronized void track(long offset) {
+            if (!revoked) {
+                inFlight.put(offset, Boolean.FALSE);
+            }
+        }
+
+        synchronized void completed(long offset) {
+            if (revoked || inFlight.replace(offset, Boolean.TRUE) == null) {
+                return;
+            }
+            for (Map.Entry<Long, Boolean> head = inFlight.firstEntry(); head != null && head.getValue(); head = inFlight.firstEntry()) {
+                committed = head.getKey();
+                inFlight.pollFirstEntry();
+            }
+        }
+
+        /**
+         * Ends this generation of the partition: offsets in flight will be received again from the committed one, by
+         * this processor or another, so they are forgotten.
+         */
+        synchronized void revoke() {
+            revoked = true;
+            inFlight.clear();
+            lastReceived = -1L;
+        }
+
+        /**
+         * Returns the highest offset that can be safely acked, or -1 if it has not changed since the last call.
+         */
+        synchronized long takeCommitted() {
+            if (committed > acked) {
+                acked = committed;
+                return committed;
+            }
+            return -1L;
+        }
+
+        /**
+         * Returns the last acked offset and how far it moved since the previous call, or null if it did not.
+         */
+        synchronized long[] takeSummary() {
+            if (acked <= summarized) {
+                return null;
+            }
+            long[] summary = {acked, summarized < 0 ? acked + 1 : acked - summarized};
+            summarized = acked;
+            return summary;
+        }
+
+        private synchronized void ackFailed(long offset) {
+            if (acked == offset) {
+                // Force a new attempt on next flush
+                acked = -1L;
+            }
+        }
+
+        private Mono<Void> ack(String group) {
+            long offset = takeCommitted();
+            if (offset < 0) {
+                return Mono.empty();
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug("ACKing {} for group {}: offset={}, part={}", topic, group, offset, partition);
+            }
+            long start = System.nanoTime();
+            return stub.ack(AckRequest.newBuilder()
+                    .setGroup(group)
+                    .setOffset(offset)
+                    .setPartition(partition)
+                    .setTopic(topic)
+                    .build())
+                    .doOnSuccess(empty -> ackLatency.record(System.nanoTime() - start, TimeUnit.NANOSECONDS))
+                    .then()
+                    .onErrorResume(e -> {
+                        logger.warn("Failed to ACK {} for group {}: offset={}, part={}", topic, group, offset, partition, e);
+                        ackFailed(offset);
+                        return Mono.empty();
+                    });
+        }
+    }
+}
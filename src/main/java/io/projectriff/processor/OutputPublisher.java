@@ -0,0 +1,196 @@
+package io.projectriff.processor;
+
+import com.github.bsideup.liiklus.protocol.LiiklusEvent;
+import com.github.bsideup.liiklus.protocol.PublishRequest;
+import com.github.bsideup.liiklus.protocol.ReactorLiiklusServiceGrpc;
+import io.grpc.Status;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Timer;
+import io.projectriff.invoker.rpc.OutputFrame;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.GroupedFlux;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Serializes function results back to their output streams.
+ *
+ * <p>Results are de-muxed per output, so that independent outputs make progress in parallel. Each output keeps
+ * up to {@code maxInFlight} publish requests in flight, whose replies are consumed in order. As requests to a single
+ * output may then be served concurrently by the gateway, strict ordering of events at rest is only guaranteed
+ * when {@code maxInFlight} is 1.</p>
+ *
+ * <p>With {@link PublishBatching batching} enabled, the results for a given output are instead coalesced, across
+ * windows, in batches sent over a long-lived {@link PublishBatchStream}, which preserves ordering. Gateways that don't
+ * implement {@code PublishBatch} are detected on first use, and then published to one event at a time.</p>
+ */
+final class OutputPublisher {
+
+    private static final Logger logger = LoggerFactory.getLogger(OutputPublisher.class);
+
+    /**
+     * The ordered output streams for the function, in parsed form.
+     */
+    private final List<StreamBinding> outputs;
+
+    /**
+     * The gateway stub to use for each output stream, in the same order.
+     */
+    private final List<ReactorLiiklusServiceGrpc.ReactorLiiklusServiceStub> stubs;
+
+    /**
+     * Used as the source of published events.
+     */
+    private final String group;
+
+    private final int maxInFlight;
+
+    private final EventIdGenerator idGenerator;
+
+    private final PipelineMetrics metrics;
+
+    private final List<Timer> publishLatencies;
+
+    private final List<Counter> publishFailures;
+
+    private final PublishBatching batching;
+
+    /**
+     * Whether the gateway of each output supports {@code PublishBatch}, null until known.
+     */
+    private final AtomicReferenceArray<Boolean> batchSupport;
+
+    /**
+     * The {@code PublishBatch} stream of each output, in the same order.
+     */
+    private final List<PublishBatchStream> batchStreams;
+
+    OutputPublisher(List<StreamBinding> outputs,
+                    Map<String, ReactorLiiklusServiceGrpc.ReactorLiiklusServiceStub> liiklusInstancesPerAddress,
+                    String group,
+                    int maxInFlight,
+                    EventIdGenerator idGenerator,
+                    PublishBatching batching,
+                    PipelineMetrics metrics) {
+        this.outputs = outputs;
+        // spreads the PublishBatch streams of the outputs over the channels to their gateway
+        this.stubs = IntStream.range(0, outputs.size())
+                .mapToObj(i -> Compression.apply(liiklusInstancesPerAddress.get(outputs.get(i).getGatewayAddress()),
+                        Compression.parse(outputs.get(i).getMetadata().getOrDefault(StreamBinding.COMPRESSION, Compression.IDENTITY)))
+                        .withOption(ChannelFactory.AFFINITY, i))
+                .collect(Collectors.toList());
+        this.group = group;
+        this.maxInFlight = maxInFlight;
+        this.idGenerator = idGenerator;
+        this.metrics = metrics;
+        this.publishLatencies = outputs.stream().map(output -> metrics.publishLatency(output.getTopic())).collect(Collectors.toList());
+        this.publishFailures = outputs.stream().map(output -> metrics.publishFailures(output.getTopic())).collect(Collectors.toList());
+        this.batching = batching;
+        this.batchSupport = new AtomicReferenceArray<>(outputs.size());
+        this.batchStreams = IntStream.range(0, outputs.size())
+                .mapToObj(i -> new PublishBatchStream(stubs.get(i), outputs.get(i).getTopic(), batching, metrics, publishLatencies.get(i), publishFailures.get(i)))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Publishes all results of a single invocation, completing once every one of them has been acknowledged by its
+     * gateway.
+     */
+    Mono<Void> publish(Flux<OutputFrame> results) {
+        return results
+                .map(this::checkedResultIndex)
+                .groupBy(OutputFrame::getResultIndex)
+                .flatMap(this::publishToOutput, Math.max(1, outputs.size()))
+                .then();
+    }
+
+    private OutputFrame checkedResultIndex(OutputFrame frame) {
+        if (frame.getResultIndex() < 0 || frame.getResultIndex() >= outputs.size()) {
+            throw new RuntimeException("Unknown result index: " + frame.getResultIndex());
+        }
+        return frame;
+    }
+
+    private Mono<Void> publishToOutput(GroupedFlux<Integer, OutputFrame> frames) {
+        int resultIndex = frames.key();
+        if (!batching.isEnabled()) {
+            return publishEach(frames, resultIndex);
+        }
+        return supportsBatches(resultIndex)
+                .flatMap(supported -> supported ? publishBatches(frames, resultIndex) : publishEach(frames, resultIndex));
+    }
+
+    /**
+     * Returns whether the gateway of an output supports {@code PublishBatch}, probing it with an empty stream the
+     * first time.
+     */
+    private Mono<Boolean> supportsBatches(int resultIndex) {
+        Boolean known = batchSupport.get(resultIndex);
+        if (known != null) {
+            return Mono.just(known);
+        }
+        StreamBinding output = outputs.get(resultIndex);
+        return stubs.get(resultIndex).publishBatch(Flux.empty())
+                .then(Mono.just(Boolean.TRUE))
+                .onErrorResume(e -> Status.fromThrowable(e).getCode() == Status.Code.UNIMPLEMENTED, e -> {
+                    logger.info("Gateway {} does not support batch publishing, publishing events to {} one at a time", output.getGatewayAddress(), output.getTopic());
+                    return Mono.just(Boolean.FALSE);
+                })
+                .doOnNext(supported -> batchSupport.set(resultIndex, supported));
+    }
+
+    private Mono<Void> publishEach(Flux<OutputFrame> frames, int resultIndex) {
+        String topic = outputs.get(resultIndex).getTopic();
+        ReactorLiiklusServiceGrpc.ReactorLiiklusServiceStub stub = stubs.get(resultIndex);
+        Timer latency = publishLatencies.get(resultIndex);
+        Counter failures = publishFailures.get(resultIndex);
+        return frames.flatMapSequential(frame -> Mono.defer(() -> {
+            long start = System.nanoTime();
+            metrics.publishesInFlight().incrementAndGet();
+            return stub.publish(createPublishRequest(frame, topic))
+                    .doOnSuccess(reply -> latency.record(System.nanoTime() - start, TimeUnit.NANOSECONDS))
+                    .doOnError(e -> failures.increment())
+                    .doFinally(signal -> metrics.publishesInFlight().decrementAndGet());
+        }), maxInFlight).then();
+    }
+
+    private Mono<Void> publishBatches(Flux<OutputFrame> frames, int resultIndex) {
+        String topic = outputs.get(resultIndex).getTopic();
+        return batchStreams.get(resultIndex).publish(frames.map(frame -> createPublishRequest(frame, topic)));
+    }
+
+    /**
+     * Ends the {@code PublishBatch} streams, once what was published so far has been acknowledged.
+     */
+    void close() {
+        batchStreams.forEach(PublishBatchStream::close);
+    }
+
+    /**
+     * This converts an RPC representation of an {@link OutputFrame} to an at-rest CloudEvent, and creates a publish request for it.
+     */
+    PublishRequest createPublishRequest(OutputFrame next, String topic) {
+        // the payload ByteString is shared, not copied
+        LiiklusEvent.Builder event = LiiklusEvent.newBuilder()
+                .setData(next.getPayload())
+                .setDataContentType(next.getContentType())
+                .setType("riff-event") // TODO
+                .setSource(this.group) // TODO
+                .setId(idGenerator.nextId());
+        if (next.getHeadersCount() > 0) {
+            event.putAllExtensions(next.getHeadersMap());
+        }
+        return PublishRequest.newBuilder()
+                .setLiiklusEvent(event)
+                .setTopic(topic)
+                .build();
+    }
+}
@@ -0,0 +1,149 @@
+package io.projectriff.processor;
+
+import io.projectriff.invoker.rpc.InputFrame;
+import io.projectriff.invoker.rpc.InputSignal;
+import io.projectriff.invoker.rpc.OutputSignal;
+import io.projectriff.invoker.rpc.ReactorRiffGrpc;
+import io.projectriff.invoker.rpc.StartFrame;
+import io.projectriff.invoker.rpc.WindowBoundary;
+import org.reactivestreams.Subscription;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.UnicastProcessor;
+
+/**
+ * A {@link FunctionInvoker} keeping a single invocation stream open for all windows.
+ *
+ * <p>The frames of each window are followed by a {@link WindowBoundary}, which the function echoes once it has sent
+ * all the results for that window. As windows are invoked one at a time, every result received belongs to the
+ * window in flight, and the boundary echoed must be that of the window in flight. Should the stream fail, complete or
+ * echo another boundary, the window in flight and all subsequent ones fail.</p>
+ *
+ * <p>Results are only requested from the function as they are requested from the window in flight, plus one signal
+ * of slack so that the boundary can always be received.</p>
+ */
+final class PersistentFunctionInvoker implements FunctionInvoker {
+
+    private final UnicastProcessor<Flux<InputSignal>> windows = UnicastProcessor.create();
+
+    private final FluxSink<Flux<InputSignal>> windowSink = windows.sink();
+
+    private final Responses responses = new Responses();
+
+    /**
+     * The results of the window in flight, if any.
+     */
+    private volatile UnicastProcessor<OutputSignal> current;
+
+    /**
+     * The sequence number of the window in flight.
+     */
+    private volatile long currentWindow;
+
+    private volatile Throwable failure;
+
+    private final FrameBatching batching;
+
+    private final HeaderEncoding.Encoder headers;
+
+    private long nextWindow;
+
+    PersistentFunctionInvoker(ReactorRiffGrpc.ReactorRiffStub stub, StartFrame start, FrameBatching batching, HeaderEncoding.Encoder headers) {
+        this.batching = batching;
+        this.headers = headers;
+        InputSignal startSignal = InputSignal.newBuilder()
+                .setStart(start.toBuilder().addAllHeaderDictionary(headers.initial()))
+                .build();
+        stub.invoke(Flux.concat(Mono.just(startSignal), windows.concatMap(window -> window)))
+                .subscribe(responses);
+    }
+
+    @Override
+    public Flux<OutputSignal> invoke(Flux<InputFrame> window) {
+        return Flux.defer(() -> {
+            if (failure != null) {
+                return Flux.error(failure);
+            }
+            UnicastProcessor<OutputSignal> results = UnicastProcessor.create();
+            currentWindow = nextWindow;
+            current = results;
+            InputSignal boundary = InputSignal.newBuilder()
+                    .setBoundary(WindowBoundary.newBuilder().setWindow(nextWindow++))
+                    .build();
+            windowSink.next(headers.encode(batching.signals(window)).concatWith(Mono.just(boundary)));
+            return results.doOnRequest(responses::request);
+        });
+    }
+
+    @Override
+    public void close() {
+        windowSink.complete();
+        responses.dispose();
+    }
+
+    private void onFailure(Throwable t) {
+        failure = t;
+        UnicastProcessor<OutputSignal> results = current;
+        if (results != null) {
+            results.onError(t);
+        }
+    }
+
+    /**
+     * Dispatches the signals of the invocation stream to the window in flight.
+     */
+    private final class Responses extends BaseSubscriber<OutputSignal> {
+
+        @Override
+        protected void hookOnSubscribe(Subscription subscription) {
+            // the slack
+            subscription.request(1L);
+        }
+
+        @Override
+        protected void hookOnNext(OutputSignal signal) {
+            UnicastProcessor<OutputSignal> results = current;
+            switch (signal.getFrameCase()) {
+                case DATA:
+                case BATCH:
+                    if (results == null) {
+                        failed(new IllegalStateException("The function sent results while no window is in flight"));
+                        return;
+                    }
+                    results.onNext(signal);
+                    break;
+                case BOUNDARY:
+                    long window = signal.getBoundary().getWindow();
+                    if (results == null || window != currentWindow) {
+                        failed(new IllegalStateException(String.format("The function echoed the boundary of window %d, while %s is in flight",
+                                window, results == null ? "no window" : "window " + currentWindow)));
+                        return;
+                    }
+                    current = null;
+                    request(1L);
+                    results.onComplete();
+                    break;
+                default:
+                    // the start ack, or signals this processor does not know about
+                    request(1L);
+            }
+        }
+
+        @Override
+        protected void hookOnError(Throwable throwable) {
+            onFailure(throwable);
+        }
+
+        @Override
+        protected void hookOnComplete() {
+            onFailure(new IllegalStateException("The function closed the invocation stream"));
+        }
+
+        private void failed(Throwable t) {
+            cancel();
+            onFailure(t);
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package io.projectriff.processor;
+
+import com.github.bsideup.liiklus.protocol.GetEndOffsetsRequest;
+import com.github.bsideup.liiklus.protocol.GetOffsetsRequest;
+import com.github.bsideup.liiklus.protocol.ReactorLiiklusServiceGrpc;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.jvm.JvmGcMetrics;
+import io.micrometer.core.instrument.binder.jvm.JvmMemoryMetrics;
+import io.micrometer.core.instrument.binder.jvm.JvmThreadMetrics;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Meters of the receive, invoke, publish and ack stages of the processor.
+ *
+ * <p>Meters that are updated for every record are meant to be looked up once (<em>eg</em> per partition or per
+ * output) and then kept around by the caller. When metrics are disabled, all meters are no-ops.</p>
+ */
+final class PipelineMetrics {
+
+    private static final Logger logger = LoggerFactory.getLogger(PipelineMetrics.class);
+
+    private static final String PREFIX = "riff.processor.";
+
+    private final MeterRegistry registry;
+
+    /**
+     * The server exposing the scrape endpoint, or null when metrics are disabled.
+     */
+    private final HttpServer server;
+
+    private final boolean enabled;
+
+    private final DistributionSummary windowRecords;
+
+    private final Timer windowDuration;
+
+    private final Timer invokeLatency;
+
+    private final AtomicLong recordsInFlight;
+
+    private final AtomicLong publishesInFlight;
+
+    private final Counter lagFailures;
+
+    private final ConcurrentMap<String, AtomicLong> lags = new ConcurrentHashMap<>();
+
+    private PipelineMetrics(MeterRegistry registry, HttpServer server) {
+        this.registry = registry;
+        this.server = server;
+        this.enabled = server != null;
+        this.windowRecords = DistributionSummary.builder(PREFIX + "window.records")
+                .description("Number of records per invocation window")
+                .register(registry);
+        this.windowDuration = Timer.builder(PREFIX + "window.duration")
+                .description("Time during which an invocation window accepts records")
+                .register(registry);
+        this.invokeLatency = Timer.builder(PREFIX + "invoke.latency")
+                .description("Time between the end of a window and the completion of the function results for it")
+                .publishPercentileHistogram()
+                .register(registry);
+        this.recordsInFlight = registry.gauge(PREFIX + "records.in.flight", new AtomicLong());
+        this.publishesInFlight = registry.gauge(PREFIX + "publish.in.flight", new AtomicLong());
+        this.lagFailures = Counter.builder(PREFIX + "lag.failures")
+                .description("Failed attempts at looking up the lag of the consumer group")
+                .register(registry);
+    }
+
+    /**
+     * Returns no-op metrics.
+     */
+    static PipelineMetrics disabled() {
+        return new PipelineMetrics(new CompositeMeterRegistry(), null);
+    }
+
+    /**
+     * Returns metrics exposed in the Prometheus format at {@code http://<host>:<port>/metrics}.
+     */
+    static PipelineMetrics prometheus(int port) throws IOException {
+        PrometheusMeterRegistry registry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+        new JvmMemoryMetrics().bindTo(registry);
+        new JvmGcMetrics().bindTo(registry);
+        new JvmThreadMetrics().bindTo(registry);
+
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = registry.scrape().getBytes(UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.setExecutor(null);
+        server.start();
+        return new PipelineMetrics(registry, server);
+    }
+
+    /**
+     * Stops exposing metrics, if they were.
+     */
+    void close() {
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    Counter received(String topic, int partition) {
+        return Counter.builder(PREFIX + "received")
+                .description("Records received from input streams")
+                .tags(partitionTags(topic, partition))
+                .register(registry);
+    }
+
+    void windowCompleted(int records, long durationNanos) {
+        windowRecords.record(records);
+        windowDuration.record(Duration.ofNanos(durationNanos));
+    }
+
+    Timer invokeLatency() {
+        return invokeLatency;
+    }
+
+    AtomicLong recordsInFlight() {
+        return recordsInFlight;
+    }
+
+    AtomicLong publishesInFlight() {
+        return publishesInFlight;
+    }
+
+    /**
+     * Exposes the current limit of records in flight, and the demand to the gateways it results in.
+     */
+    void inFlightLimiter(InFlightLimiter limiter) {
+        Gauge.builder(PREFIX + "in.flight.limit", limiter, InFlightLimiter::getLimit)
+                .description("Maximum number of records received but not fully processed yet")
+                .register(registry);
+        Gauge.builder(PREFIX + "receive.demand", limiter, InFlightLimiter::getDemand)
+                .description("Records requested from the gateways but not received yet")
+                .register(registry);
+    }
+
+    void functionEndpoints(FunctionEndpoints endpoints) {
+        for (FunctionEndpoints.Endpoint endpoint : endpoints.all()) {
+            Gauge.builder(PREFIX + "function.outstanding", endpoint, FunctionEndpoints.Endpoint::getOutstanding)
+                    .description("Invocations in flight to a function instance")
+                    .tag("endpoint", endpoint.getAddress())
+                    .register(registry);
+        }
+    }
+
+    void spillBuffer(SpillBuffer spill) {
+        Gauge.builder(PREFIX + "spill.used", spill, SpillBuffer::getUsedBytes)
+                .description("Bytes of results spilled and not published yet")
+                .baseUnit("bytes")
+                .register(registry);
+    }
+
+    Timer publishLatency(String topic) {
+        return Timer.builder(PREFIX + "publish.latency")
+                .description("Time to publish a single result to an output stream")
+                .tag("topic", topic)
+                .publishPercentileHistogram()
+                .register(registry);
+    }
+
+    Counter publishFailures(String topic) {
+        return Counter.builder(PREFIX + "publish.failures")
+                .description("Failed attempts at publishing results to an output stream")
+                .tag("topic", topic)
+                .register(registry);
+    }
+
+    Timer ackLatency(String topic, int partition) {
+        return Timer.builder(PREFIX + "ack.latency")
+                .description("Time to ack committed offsets back to the gateway")
+                .tags(partitionTags(topic, partition))
+                .register(registry);
+    }
+
+    /**
+     * Periodically computes the lag of the consumer group on every partition of the given input streams, as the
+     * difference between the end offset of the partition and the last offset acked by the group (see
+     * {@link #lag(long, long)}). Failed lookups are counted and leave the lag as it was.
+     */
+    Disposable monitorLag(List<StreamBinding> inputs,
+                          Map<String, ReactorLiiklusServiceGrpc.ReactorLiiklusServiceStub> liiklusInstancesPerAddress,
+                          String group,
+                          Duration interval) {
+        if (!enabled) {
+            return Disposables.disposed();
+        }
+        return Flux.interval(Duration.ZERO, interval)
+                .onBackpressureDrop()
+                .concatMap(tick -> Flux.fromIterable(inputs)
+                        .flatMap(input -> updateLag(input, liiklusInstancesPerAddress.get(input.getGatewayAddress()), group)))
+                .subscribe();
+    }
+
+    private Mono<Void> updateLag(StreamBinding input, ReactorLiiklusServiceGrpc.ReactorLiiklusServiceStub stub, String group) {
+        return Mono.zip(
+                stub.getEndOffsets(GetEndOffsetsRequest.newBuilder().setTopic(input.getTopic()).build()),
+                stub.getOffsets(GetOffsetsRequest.newBuilder().setTopic(input.getTopic()).setGroup(group).build()))
+                .doOnNext(offsets -> offsets.getT1().getOffsetsMap().forEach((partition, end) -> {
+                    long acked = offsets.getT2().getOffsetsOrDefault(partition, -1L);
+                    lag(input.getTopic(), partition).set(lag(end, acked));
+                }))
+                .then()
+                .onErrorResume(e -> {
+                    lagFailures.increment();
+                    logger.debug("Could not look up the lag of group {} on {}", group, input.getTopic(), e);
+                    return Mono.empty();
+                });
+    }
+
+    /**
+     * Returns the number of records of a partition not acked yet. Both the end offset reported by the gateway and the
+     * acked offset are offsets of records (the last one written, and the last one completed) so a group that acked
+     * the end offset is caught up, and one that acked nothing (-1) lags by the whole partition.
+     */
+    static long lag(long end, long acked) {
+        return Math.max(0L, end - acked);
+    }
+
+    private AtomicLong lag(String topic, int partition) {
+        return lags.computeIfAbsent(topic + "/" + partition, k -> registry.gauge(PREFIX + "lag",
+                partitionTags(topic, partition),
+                new AtomicLong()));
+    }
+
+    private static Tags partitionTags(String topic, int partition) {
+        return Tags.of("topic", topic, "partition", Integer.toString(partition));
+    }
+}
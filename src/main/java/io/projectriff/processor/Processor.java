@@ -1,30 +1,41 @@
 package io.projectriff.processor;
 
+import ch.qos.logback.classic.LoggerContext;
 import com.github.bsideup.liiklus.protocol.*;
-import com.google.protobuf.Empty;
 import io.grpc.Channel;
-import io.grpc.netty.NettyChannelBuilder;
+import io.grpc.StatusException;
+import io.grpc.StatusRuntimeException;
+import io.micrometer.core.instrument.Counter;
 import io.projectriff.invoker.rpc.*;
-import org.reactivestreams.Publisher;
+import org.slf4j.ILoggerFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.Disposable;
+import reactor.core.Disposables;
 import reactor.core.publisher.Flux;
-import reactor.core.publisher.Hooks;
 import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
 import reactor.core.publisher.UnicastProcessor;
-import reactor.util.function.Tuple2;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.retry.Retry;
 
 import java.io.File;
-import java.io.IOException;
-import java.net.ConnectException;
-import java.net.Socket;
-import java.net.URI;
-import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -47,13 +58,17 @@ import static com.github.bsideup.liiklus.protocol.SubscribeRequest.AutoOffsetRes
  */
 public class Processor {
 
+    private static final Logger logger = LoggerFactory.getLogger(Processor.class);
+
     /**
      * ENV VAR key holding the directory path where streams metadata can be found.
      */
     public static final String CNB_BINDINGS = "CNB_BINDINGS";
 
     /**
-     * ENV VAR key holding the address of the function RPC, as a {@code host:port} string.
+     * ENV VAR key holding the address of the function RPC, as a {@code host:port} string. Several instances of the
+     * function can be listed, separated by commas, and addresses prefixed with {@code dns:///} are expanded to all the
+     * addresses their host name resolves to.
      */
     private static final String FUNCTION = "FUNCTION";
 
@@ -78,9 +93,20 @@ public class Processor {
     private static final String GROUP = "GROUP";
 
     /**
-     * The number of retries when testing http connection to the function.
+     * How long to wait at startup for the connections to the function and to the gateways.
+     */
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(20);
+
+    /**
+     * The limit of records in flight when none is set and records are spread over several rails, so that a slow rail
+     * can't make records pile up in its queue.
+     */
+    private static final int DEFAULT_RAILS_IN_FLIGHT_LIMIT = 100_000;
+
+    /**
+     * Canonical header keys and values, shared by the records held in memory.
      */
-    private static final int NUM_RETRIES = 20;
+    private static final StringInterner HEADERS = new StringInterner(4096, 256);
 
     /**
      * Keeps track of a single gRPC stub per gateway address.
@@ -122,17 +148,107 @@ public class Processor {
      */
     private final String group;
 
+    /**
+     * Keeps track of in-flight offsets and acks them once fully processed.
+     */
+    private final OffsetTracker offsetTracker;
+
+    /**
+     * Serializes function results back to the output streams.
+     */
+    private final OutputPublisher outputPublisher;
+
+    /**
+     * Decides how input records are arranged in invocation windows.
+     */
+    private final WindowingStrategy windowingStrategy;
+
+    /**
+     * Which debugging aids to add to the pipeline.
+     */
+    private final DebugMode debugMode;
+
+    /**
+     * The number of independent invocation pipelines (rails) input partitions are spread over.
+     */
+    private final int partitionRails;
+
+    /**
+     * Meters of the pipeline stages.
+     */
+    private final PipelineMetrics metrics;
+
+    /**
+     * How often to compute consumer lag on input partitions.
+     */
+    private final Duration lagInterval;
+
+    /**
+     * Whether to try and keep a long-lived invocation stream open, rather than one per window.
+     */
+    private final FunctionInvoker.Mode invokeMode;
+
+    /**
+     * How to pack input frames in batches, if the function supports it.
+     */
+    private final FrameBatching batching;
+
+    /**
+     * How to encode repeated headers sent to the function, if the function supports it.
+     */
+    private final HeaderEncoding headerEncoding;
+
+    /**
+     * How many records to request ahead from each input partition.
+     */
+    private final int receivePrefetch;
+
+    /**
+     * How long to wait for the function to acknowledge invocation capabilities.
+     */
+    private final Duration negotiationTimeout;
+
+    /**
+     * Bounds the records in flight, if configured to.
+     */
+    private final InFlightLimiter inFlightLimiter;
+
+    /**
+     * The initial and maximum delays before resubscribing to an input stream whose gateway was lost.
+     */
+    private final Duration resubscribeBackoff;
+
+    private final Duration resubscribeMaxBackoff;
+
+    /**
+     * Where results wait to be published, if configured to, else null.
+     */
+    private final SpillBuffer spill;
+
     /**
      * This is used in a shutdown hook to force completion of the input signals Flux via takeUntilOther().
      */
     private UnicastProcessor killSignal = UnicastProcessor.create();
 
     /**
-     * The RPC stub used to communicate with the function process.
+     * Released once {@link #run()} returns, <em>ie</em> once all received records have been processed (or failed)
+     * and the final offsets acked.
+     */
+    private final CountDownLatch terminated = new CountDownLatch(1);
+
+    /**
+     * When the processor started, in milliseconds since the epoch, to report the time to the first record received.
+     */
+    private long startTime = System.currentTimeMillis();
+
+    private final AtomicBoolean firstRecordReceived = new AtomicBoolean();
+
+    /**
+     * The function processes to communicate with, over RPC.
      *
      * @see "riff-rpc.proto for the wire format and service definition"
      */
-    private final ReactorRiffGrpc.ReactorRiffStub riffStub;
+    private final FunctionEndpoints functions;
 
     public static void main(String[] args) throws Exception {
 
@@ -140,14 +256,23 @@ public class Processor {
 
         checkEnvironmentVariables();
 
-        Hooks.onOperatorDebug();
+        ProcessorSettings settings = ProcessorSettings.fromEnvironment();
+        settings.getDebugMode().install();
+        PipelineMetrics metrics = settings.getMetricsPort().isPresent()
+                ? PipelineMetrics.prometheus(settings.getMetricsPort().getAsInt())
+                : PipelineMetrics.disabled();
 
-        String functionAddress = System.getenv(FUNCTION);
+        List<String> functionAddresses = FunctionEndpoints.parseAddresses(System.getenv(FUNCTION));
+        // connections are established while the rest of the startup goes on
+        ChannelFactory channels = new ChannelFactory(settings);
+        FunctionEndpoints functions = FunctionEndpoints.of(functionAddresses,
+                address -> Compression.apply(ReactorRiffGrpc.newReactorStub(channels.function(address)), settings.getFunctionCompression()),
+                settings.getFunctionEjectionTime());
 
         List<String> startOffsets = Arrays.asList(System.getenv(INPUT_START_OFFSETS).split(","));
         List<String> inputNames = Arrays.asList(System.getenv(INPUT_NAMES).split(","));
         if (startOffsets.size() != inputNames.size()) {
-            System.err.format("%s (%d element(s)) should have as many elements as %s (%d element(s))", INPUT_START_OFFSETS, startOffsets.size(), INPUT_NAMES, inputNames.size());
+            logger.error("{} ({} element(s)) should have as many elements as {} ({} element(s))", INPUT_START_OFFSETS, startOffsets.size(), INPUT_NAMES, inputNames.size());
             System.exit(2);
         }
         List<String> outputNames = Arrays.asList(System.getenv(OUTPUT_NAMES).split(","));
@@ -157,10 +282,6 @@ public class Processor {
         List<StreamBinding> inputStreamBindings = streamBindingReader.readInputStreamBindings(inputNames.size());
         List<StreamBinding> outputStreamBindings = streamBindingReader.readOutputStreamBindings(outputNames.size());
 
-        assertHttpConnectivity(functionAddress);
-        Channel fnChannel = NettyChannelBuilder.forTarget(functionAddress)
-                .usePlaintext()
-                .build();
 
         Processor processor = new Processor(
                 inputStreamBindings,
@@ -170,57 +291,68 @@ public class Processor {
                 outputNames,
                 outputStreamBindings.stream().map(binding -> binding.getMetadata().get(StreamBinding.CONTENT_TYPE)).collect(Collectors.toList()),
                 System.getenv(GROUP),
-                ReactorRiffGrpc.newReactorStub(fnChannel));
-
-        System.out.format("Connected to %s, after %d ms\n", functionAddress, System.currentTimeMillis() - t0);
-
-        Runtime.getRuntime().addShutdownHook(new Thread() {
-            @Override
-            public void run() {
-                processor.killSignal.sink().complete();
-                try {
-                    Thread.sleep(500);
-                } catch (InterruptedException e) {
-                }
+                functions,
+                channels::gateway,
+                settings,
+                metrics);
+
+        channels.awaitReady(CONNECT_TIMEOUT).block();
+        logger.info("Connected to {}, after {} ms", functionAddresses, System.currentTimeMillis() - t0);
+        processor.startTime = t0;
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            long deadline = System.nanoTime() + settings.getShutdownTimeout().toNanos();
+            try {
+                processor.drain(settings.getShutdownTimeout());
+                channels.shutdown(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                metrics.close();
+                stopLogging();
             }
-        });
+        }, "riff-shutdown"));
 
 
         processor.run();
 
     }
 
+    /**
+     * Stops the logging context, flushing events still queued in the async appender. Done here rather than with a
+     * Logback shutdown hook, which would run concurrently with draining and lose what it logs.
+     */
+    private static void stopLogging() {
+        ILoggerFactory loggerFactory = LoggerFactory.getILoggerFactory();
+        if (loggerFactory instanceof LoggerContext) {
+            ((LoggerContext) loggerFactory).stop();
+        }
+    }
+
     private static void checkEnvironmentVariables() {
         List<String> envVars = Arrays.asList(FUNCTION, GROUP, INPUT_NAMES, OUTPUT_NAMES, INPUT_START_OFFSETS, CNB_BINDINGS);
         if (envVars.stream()
                 .anyMatch(v -> (System.getenv(v) == null || System.getenv(v).trim().length() == 0))) {
-            System.err.format("Missing one of the following environment variables: %s%n", envVars);
-            envVars.forEach(v -> System.err.format("  %s = %s%n", v, System.getenv(v)));
+            logger.error("Missing one of the following environment variables: {}", envVars);
+            envVars.forEach(v -> logger.error("  {} = {}", v, System.getenv(v)));
             System.exit(1);
         }
     }
 
-    private static void assertHttpConnectivity(String functionAddress) throws URISyntaxException, IOException, InterruptedException {
-        URI uri = new URI("http://" + functionAddress);
-        for (int i = 1; i <= NUM_RETRIES; i++) {
-            try (Socket s = new Socket(uri.getHost(), uri.getPort())) {
-            } catch (ConnectException t) {
-                if (i == NUM_RETRIES) {
-                    throw t;
-                }
-                Thread.sleep(i * 100);
-            }
-        }
-    }
-
-    private Processor(List<StreamBinding> inputs,
-                      List<StreamBinding> outputs,
-                      List<String> inputNames,
-                      List<String> startOffsets,
-                      List<String> outputNames,
-                      List<String> outputContentTypes,
-                      String group,
-                      ReactorRiffGrpc.ReactorRiffStub riffStub) {
+    /**
+     * @param gatewayChannels creates the channel to a gateway, given its address. Called once per distinct address
+     */
+    Processor(List<StreamBinding> inputs,
+              List<StreamBinding> outputs,
+              List<String> inputNames,
+              List<String> startOffsets,
+              List<String> outputNames,
+              List<String> outputContentTypes,
+              String group,
+              FunctionEndpoints functions,
+              Function<String, Channel> gatewayChannels,
+              ProcessorSettings settings,
+              PipelineMetrics metrics) {
 
         this.inputs = inputs;
         this.outputs = outputs;
@@ -230,139 +362,396 @@ public class Processor {
         Set<StreamBinding> allGateways = new HashSet<>(inputs);
         allGateways.addAll(outputs);
 
-        this.liiklusInstancesPerAddress = indexByAddress(allGateways);
+        this.liiklusInstancesPerAddress = indexByAddress(allGateways, gatewayChannels);
         this.outputContentTypes = outputContentTypes;
-        this.riffStub = riffStub;
+        this.functions = functions;
         this.group = group;
+        this.metrics = metrics;
+        this.lagInterval = settings.getLagInterval();
+        this.offsetTracker = new OffsetTracker(group, settings.getAckBatchSize(), settings.getAckInterval(), settings.getAckLogInterval(), metrics);
+        this.outputPublisher = new OutputPublisher(outputs, liiklusInstancesPerAddress, group, settings.getPublishMaxInFlight(), settings.getEventIdGenerator(), settings.getPublishBatching(), metrics);
+        this.windowingStrategy = WindowingStrategies.parse(settings.getWindowing()
+                .orElseGet(() -> inputs.stream()
+                        .map(input -> input.getMetadata().get(StreamBinding.WINDOWING))
+                        .filter(Objects::nonNull)
+                        .findFirst()
+                        .orElse(WindowingStrategies.DEFAULT)));
+        this.debugMode = settings.getDebugMode();
+        this.partitionRails = settings.getPartitionRails();
+        this.invokeMode = settings.getInvokeMode();
+        this.batching = settings.getInvokeBatching();
+        this.headerEncoding = new HeaderEncoding(settings.getHeaderDictionarySize());
+        this.receivePrefetch = settings.getReceivePrefetch();
+        this.negotiationTimeout = settings.getNegotiationTimeout();
+        int minInFlightLimit = minInFlightLimit(windowingStrategy, partitionRails);
+        // the queues of rails are unbounded, so several rails always get a limit
+        int inFlightLimit = settings.getInFlightLimit()
+                .orElse(partitionRails > 1 ? Math.max(DEFAULT_RAILS_IN_FLIGHT_LIMIT, minInFlightLimit) : 0);
+        if (inFlightLimit > 0 && inFlightLimit < minInFlightLimit) {
+            throw new IllegalArgumentException(String.format("%s should be at least %d with %d-record windows over %d rails, got %d",
+                    ProcessorSettings.IN_FLIGHT_LIMIT, minInFlightLimit, windowingStrategy.recordsToClose(), partitionRails, inFlightLimit));
+        }
+        this.inFlightLimiter = new InFlightLimiter(inFlightLimit, minInFlightLimit, settings.getInFlightLatencyTarget(), metrics);
+        this.resubscribeBackoff = settings.getResubscribeBackoff();
+        this.resubscribeMaxBackoff = settings.getResubscribeMaxBackoff();
+        this.spill = settings.getSpillDir()
+                .map(dir -> SpillBuffer.open(dir, settings.getSpillSize(), outputPublisher::publish, resubscribeBackoff, resubscribeMaxBackoff))
+                .orElse(null);
+        if (spill != null) {
+            metrics.spillBuffer(spill);
+        }
     }
 
     public void run() {
-        Flux.fromIterable(inputs)
-                .zipWithIterable(startOffsets)
-                .flatMap(inputTopic -> {
-                    ReactorLiiklusServiceGrpc.ReactorLiiklusServiceStub inputLiiklus = liiklusInstancesPerAddress.get(inputTopic.getT1().getGatewayAddress());
-                    return inputLiiklus.subscribe(subscribeRequestForInput(inputTopic))
-                            .filter(SubscribeReply::hasAssignment)
-                            .map(SubscribeReply::getAssignment)
-                            .flatMap(
-                                    assignment -> inputLiiklus
-                                            .receive(receiveRequestForAssignment(assignment))
-                                            .delayUntil(receiveReply -> ack(inputTopic.getT1(), inputLiiklus, receiveReply, assignment))
-                            )
-                            .map(receiveReply -> toRiffSignal(receiveReply, inputTopic.getT1()));
-                })
-                .takeUntilOther(killSignal)
-                .transform(this::riffWindowing)
-                .map(this::invoke)
-                .concatMap(this::extractWindowResults)
-                .concatMap(this::publishOutput)
-                .blockLast();
+        try {
+            process();
+        } finally {
+            terminated.countDown();
+        }
+    }
+
+    /**
+     * Stops receiving records and waits for those already received to be processed, <em>ie</em> for open windows to
+     * be closed, invoked and published, and for the final offsets to be acked.
+     *
+     * @return whether the processor drained within {@code timeout}
+     */
+    boolean drain(Duration timeout) throws InterruptedException {
+        long start = System.nanoTime();
+        logger.info("Draining in-flight records, for at most {}", timeout);
+        killSignal.sink().complete();
+        if (!terminated.await(timeout.toNanos(), TimeUnit.NANOSECONDS)) {
+            logger.warn("In-flight records not processed within {}, they will be processed again after restart", timeout);
+            return false;
+        }
+        logger.info("Drained in-flight records in {} ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return true;
+    }
+
+    private void process() {
+        Disposable acks = offsetTracker.start();
+        Disposable lag = metrics.monitorLag(inputs, liiklusInstancesPerAddress, group, lagInterval);
+        Disposable spilling = spill != null ? spill.start() : Disposables.disposed();
+        Supplier<FunctionInvoker> invokers = functionInvokers();
+        Flux<TrackedFrame> records = Flux.range(0, inputs.size())
+                .flatMap(this::receive, inputs.size(), receivePrefetch)
+                .transform(inFlightLimiter::gate)
+                .doOnNext(this::logFirstRecord)
+                .takeUntilOther(killSignal);
+        Flux<Void> pipeline = partitionRails == 1
+                ? records.transform(rail -> processRail(rail, invokers))
+                : records.groupBy(this::railOf)
+                        .flatMap(rail -> rail.publishOn(Schedulers.parallel(), receivePrefetch).transform(r -> processRail(r, invokers)), partitionRails);
+        if (spill != null) {
+            // spilled results that can't be published stop the processor, as they would without spilling
+            pipeline = pipeline.takeUntilOther(spill.failure());
+        }
+        pipeline.blockLast();
+
+        if (spill != null) {
+            spill.complete().block();
+            spilling.dispose();
+            spill.close();
+        }
+        outputPublisher.close();
+        // the final commit of whatever the last windows processed
+        offsetTracker.flush().block();
+        acks.dispose();
+        lag.dispose();
+    }
+
+    private void logFirstRecord(TrackedFrame record) {
+        if (!firstRecordReceived.get() && firstRecordReceived.compareAndSet(false, true)) {
+            logger.info("Received first record after {} ms", System.currentTimeMillis() - startTime);
+        }
+    }
+
+    /**
+     * Returns the rail a record is processed on. All records of a given partition go to the same rail, so that
+     * ordering within a partition is preserved.
+     */
+    private int railOf(TrackedFrame record) {
+        return Math.floorMod(31 * record.getFrame().getArgIndex() + record.getPartition().getPartition(), partitionRails);
+    }
+
+    /**
+     * Windows the records of a rail and invokes the function for each window, one at a time. Each rail gets its own
+     * concurrent invocations.
+     */
+    private Flux<Void> processRail(Flux<TrackedFrame> records, Supplier<FunctionInvoker> invokers) {
+        return Flux.using(invokers,
+                invoker -> records
+                        // tracked as they come, as windows may be processed in another order than records arrived
+                        .doOnNext(TrackedFrame::track)
+                        .transform(windowingStrategy::window)
+                        .concatMap(window -> processWindow(window, invoker), 1),
+                FunctionInvoker::close);
+    }
+
+    /**
+     * Returns how to create the function invoker of each rail, negotiating long-lived invocation streams with the
+     * function if asked to. All instances of the function are expected to be alike, so that only the first one is
+     * asked.
+     */
+    private Supplier<FunctionInvoker> functionInvokers() {
+        List<String> wanted = new ArrayList<>();
+        if (invokeMode == FunctionInvoker.Mode.PERSISTENT) {
+            wanted.add(FunctionInvoker.WINDOW_BOUNDARIES);
+        }
+        if (batching.isEnabled()) {
+            wanted.add(FunctionInvoker.BATCHES);
+        }
+        if (headerEncoding.isEnabled()) {
+            wanted.add(FunctionInvoker.HEADER_DICTIONARY);
+        }
+        List<String> supported = wanted.isEmpty()
+                ? Collections.emptyList()
+                : FunctionInvoker.negotiate(functions.first().getStub(), startFrame(), wanted, negotiationTimeout).block();
+        if (!supported.containsAll(wanted)) {
+            logger.info("The function only supports {} of the {} invocation capabilities, falling back to the default behavior for the others", supported, wanted);
+        }
+        StartFrame start = startFrame().toBuilder().addAllCapabilities(supported).build();
+        FrameBatching negotiatedBatching = supported.contains(FunctionInvoker.BATCHES) ? batching : FrameBatching.NONE;
+        HeaderEncoding negotiatedHeaders = supported.contains(FunctionInvoker.HEADER_DICTIONARY) ? headerEncoding : HeaderEncoding.NONE;
+        Function<ReactorRiffGrpc.ReactorRiffStub, FunctionInvoker> invokers = supported.contains(FunctionInvoker.WINDOW_BOUNDARIES)
+                ? stub -> FunctionInvoker.persistent(stub, start, negotiatedBatching, negotiatedHeaders)
+                : stub -> FunctionInvoker.perWindow(stub, start, negotiatedBatching, negotiatedHeaders);
+        if (functions.size() > 1) {
+            metrics.functionEndpoints(functions);
+            return () -> new BalancedFunctionInvoker(functions, invokers);
+        }
+        if (supported.contains(FunctionInvoker.WINDOW_BOUNDARIES)) {
+            return () -> invokers.apply(functions.first().getStub());
+        }
+        FunctionInvoker perWindow = invokers.apply(functions.first().getStub());
+        return () -> perWindow;
     }
 
-    private <T> Flux<Flux<T>> riffWindowing(Flux<T> linear) {
-        return linear.window(Duration.ofSeconds(60));
+    /**
+     * Subscribes to the input stream bound to argument {@code argIndex} and converts every record received on any of
+     * its assigned partitions to a frame for that argument.
+     *
+     * <p>Should the gateway be lost, the stream is subscribed to again after a jittered backoff, resuming each
+     * partition after the last record received, so that records already in flight are not read again.</p>
+     */
+    private Flux<TrackedFrame> receive(int argIndex) {
+        StreamBinding input = inputs.get(argIndex);
+        InputFrame template = InputFrame.newBuilder().setArgIndex(argIndex).build();
+        // Subscribe and Receive have to reach the same gateway instance
+        ReactorLiiklusServiceGrpc.ReactorLiiklusServiceStub inputLiiklus = liiklusInstancesPerAddress.get(input.getGatewayAddress())
+                .withOption(ChannelFactory.AFFINITY, argIndex);
+        AtomicInteger failures = new AtomicInteger();
+        // only worth reading from each record when windows depend on it
+        boolean eventTime = windowingStrategy.requiresEventTime();
+        return Flux.defer(() -> inputLiiklus.subscribe(subscribeRequestForInput(input, startOffsets.get(argIndex))))
+                .filter(SubscribeReply::hasAssignment)
+                .map(SubscribeReply::getAssignment)
+                .flatMap(assignment -> {
+                    OffsetTracker.PartitionOffsets partition = offsetTracker.partition(input, inputLiiklus, assignment.getPartition());
+                    Counter received = metrics.received(input.getTopic(), assignment.getPartition());
+                    long resumeAfter = partition.getLastReceived();
+                    return inputLiiklus
+                            .receive(receiveRequestForAssignment(assignment, resumeAfter))
+                            // gateways can't tell a last known offset of 0 from none, and may not honor it at all
+                            .filter(receiveReply -> offsetOf(receiveReply) > resumeAfter)
+                            .doOnNext(receiveReply -> received.increment())
+                            .map(receiveReply -> {
+                                long offset = offsetOf(receiveReply);
+                                partition.received(offset);
+                                InputFrame frame = toRiffSignal(receiveReply, template);
+                                return eventTime
+                                        ? new TrackedFrame(frame, partition, offset, eventTimeOf(receiveReply))
+                                        : new TrackedFrame(frame, partition, offset);
+                            })
+                            // upon completion, the partition has been revoked: commit what has been processed so
+                            // far, and should it be assigned again, start over from the committed offset
+                            .doFinally(signal -> offsetTracker.release(input, partition, signal == SignalType.ON_COMPLETE));
+                }, Integer.MAX_VALUE, receivePrefetch)
+                .doOnNext(record -> {
+                    if (failures.get() != 0) {
+                        failures.set(0);
+                    }
+                })
+                .retryWhen(Retry.from(signals -> signals.concatMap(signal -> resubscribeDelay(input, signal.failure(), failures.getAndIncrement()))))
+                .transform(received -> debugMode.checkpoint(received, "receive from " + input.getTopic()));
     }
 
-    private Flux<OutputSignal> extractWindowResults(Flux<OutputSignal> outputSignals) {
-        return outputSignals;
+    /**
+     * Decides whether to resubscribe to an input stream after a failure, and when. Only gRPC errors (<em>eg</em> a
+     * lost gateway) are retried, with an exponential backoff reset by every record received.
+     */
+    private Mono<Long> resubscribeDelay(StreamBinding input, Throwable failure, int consecutiveFailures) {
+        if (!(failure instanceof StatusRuntimeException) && !(failure instanceof StatusException)) {
+            return Mono.error(failure);
+        }
+        long max = Math.min(resubscribeMaxBackoff.toNanos(), resubscribeBackoff.toNanos() << Math.min(consecutiveFailures, 30));
+        long delay = max / 2 + ThreadLocalRandom.current().nextLong(max / 2 + 1);
+        logger.warn("Lost input stream {} from {} ({}), resubscribing in {} ms", input.getTopic(), input.getGatewayAddress(),
+                failure.getMessage(), TimeUnit.NANOSECONDS.toMillis(delay));
+        return Mono.delay(Duration.ofNanos(delay));
     }
 
-    private Publisher<? extends PublishReply> publishOutput(OutputSignal m) {
-        OutputFrame next = m.getData();
-        StreamBinding output = outputs.get(next.getResultIndex());
-        ReactorLiiklusServiceGrpc.ReactorLiiklusServiceStub outputLiiklus = liiklusInstancesPerAddress.get(output.getGatewayAddress());
-        return outputLiiklus.publish(createPublishRequest(next, output.getTopic()));
+    /**
+     * Invokes the function with the frames of a single window and publishes its results, or spills them. Only once all
+     * results have been published are the window records considered processed, and their offsets eligible for ack.
+     */
+    private Mono<Void> processWindow(Flux<TrackedFrame> window, FunctionInvoker invoker) {
+        return Mono.defer(() -> {
+            List<TrackedFrame> records = new ArrayList<>();
+            long start = System.nanoTime();
+            AtomicLong windowEnd = new AtomicLong();
+            // copies of records in other windows are only in flight once
+            AtomicInteger originals = new AtomicInteger();
+            Flux<InputFrame> frames = window
+                    .doOnNext(record -> {
+                        records.add(record);
+                        if (!record.isCopy()) {
+                            originals.incrementAndGet();
+                            metrics.recordsInFlight().incrementAndGet();
+                        }
+                    })
+                    .doOnComplete(() -> {
+                        windowEnd.set(System.nanoTime());
+                        // windows may be emitted long after their first record was received, once they close
+                        long opened = records.isEmpty() ? start : records.get(0).getReceivedNanos();
+                        metrics.windowCompleted(records.size(), windowEnd.get() - opened);
+                    })
+                    .map(TrackedFrame::getFrame);
+            Runnable processed = () -> {
+                offsetTracker.completed(records);
+                metrics.recordsInFlight().addAndGet(-originals.get());
+                inFlightLimiter.completed(originals.get(), windowEnd.get() == 0L ? 0L : System.nanoTime() - windowEnd.get());
+            };
+            return invoker.invoke(frames)
+                    .transform(Processor::extractWindowResults)
+                    .doOnComplete(() -> {
+                        if (windowEnd.get() != 0L) {
+                            metrics.invokeLatency().record(System.nanoTime() - windowEnd.get(), TimeUnit.NANOSECONDS);
+                        }
+                    })
+                    .transform(results -> debugMode.checkpoint(results, "invoke"))
+                    .as(results -> spill != null
+                            ? spill.spill(results, processed)
+                            : outputPublisher.publish(results).then(Mono.fromRunnable(processed)))
+                    .transform(published -> debugMode.checkpoint(published, "publish"));
+        });
     }
 
-    private Mono<Empty> ack(StreamBinding topic, ReactorLiiklusServiceGrpc.ReactorLiiklusServiceStub stub, ReceiveReply receiveReply, Assignment assignment) {
-        System.out.format("ACKing %s for group %s: offset=%d, part=%d%n", topic.getTopic(), this.group, receiveReply.getRecord().getOffset(), assignment.getPartition());
-        return stub.ack(AckRequest.newBuilder()
-                .setGroup(this.group)
-                .setOffset(receiveReply.getRecord().getOffset())
-                .setPartition(assignment.getPartition())
-                .setTopic(topic.getTopic())
-                .build());
+    /**
+     * Unpacks the results of a window, whether sent one by one or in batches, ignoring other signals.
+     */
+    static Flux<OutputFrame> extractWindowResults(Flux<OutputSignal> outputSignals) {
+        return outputSignals.concatMapIterable(signal -> {
+            switch (signal.getFrameCase()) {
+                case DATA:
+                    return Collections.singletonList(signal.getData());
+                case BATCH:
+                    return signal.getBatch().getFramesList();
+                default:
+                    return Collections.emptyList();
+            }
+        });
     }
 
     private static Map<String, ReactorLiiklusServiceGrpc.ReactorLiiklusServiceStub> indexByAddress(
-            Collection<StreamBinding> streamBindings) {
+            Collection<StreamBinding> streamBindings, Function<String, Channel> gatewayChannels) {
         return streamBindings.stream()
                 .map(StreamBinding::getGatewayAddress)
                 .distinct()
                 .collect(Collectors.toMap(
                         address -> address,
-                        address -> ReactorLiiklusServiceGrpc.newReactorStub(
-                                NettyChannelBuilder.forTarget(address)
-                                        .usePlaintext()
-                                        .build())
+                        address -> ReactorLiiklusServiceGrpc.newReactorStub(gatewayChannels.apply(address))
                         )
                 )
                 ;
     }
 
-    private Flux<OutputSignal> invoke(Flux<InputFrame> in) {
-        InputSignal start = InputSignal.newBuilder()
-                .setStart(StartFrame.newBuilder()
-                        .addAllExpectedContentTypes(this.outputContentTypes)
-                        .addAllInputNames(this.inputNames)
-                        .addAllOutputNames(this.outputNames)
-                        .build())
+    /**
+     * Returns the fewest records in flight that guarantee a window can close: with one record short of a full window
+     * stuck on each rail, one more record completes a window on one of them.
+     */
+    static int minInFlightLimit(WindowingStrategy windowingStrategy, int partitionRails) {
+        int recordsToClose = windowingStrategy.recordsToClose();
+        return recordsToClose <= 0 ? 0 : (int) Math.min(Integer.MAX_VALUE, (long) partitionRails * (recordsToClose - 1) + 1);
+    }
+
+
+    private StartFrame startFrame() {
+        return StartFrame.newBuilder()
+                .addAllExpectedContentTypes(this.outputContentTypes)
+                .addAllInputNames(this.inputNames)
+                .addAllOutputNames(this.outputNames)
                 .build();
+    }
 
-        return riffStub.invoke(Flux.concat(
-                Flux.just(start), //
-                in.map(frame -> InputSignal.newBuilder().setData(frame).build())));
+    private static long offsetOf(ReceiveReply receiveReply) {
+        return receiveReply.getReplyCase() == LIIKLUS_EVENT_RECORD
+                ? receiveReply.getLiiklusEventRecord().getOffset()
+                : receiveReply.getRecord().getOffset();
     }
 
     /**
-     * This converts an RPC representation of an {@link OutputFrame} to an at-rest CloudEvent, and creates a publish request for it.
+     * Returns when a record happened, in milliseconds since the epoch: its timestamp in the gateway if any (cheap to
+     * read), else the {@code time} of its event, else now.
      */
-    private PublishRequest createPublishRequest(OutputFrame next, String topic) {
-        return PublishRequest.newBuilder()
-                .setLiiklusEvent(
-                        LiiklusEvent.newBuilder()
-                                .setData(next.getPayload())
-                                .setDataContentType(next.getContentType())
-                                .setType("riff-event") // TODO
-                                .setSource(this.group) // TODO
-                                .putAllExtensions(next.getHeadersMap())
-                                .setId(UUID.randomUUID().toString())
-                )
-                .setTopic(topic)
-                .build();
+    static long eventTimeOf(ReceiveReply receiveReply) {
+        if (receiveReply.getReplyCase() == LIIKLUS_EVENT_RECORD) {
+            ReceiveReply.LiiklusEventRecord record = receiveReply.getLiiklusEventRecord();
+            if (record.hasTimestamp()) {
+                return record.getTimestamp().getSeconds() * 1000L + record.getTimestamp().getNanos() / 1_000_000;
+            }
+            String time = record.getEvent().getTime();
+            if (!time.isEmpty()) {
+                try {
+                    return OffsetDateTime.parse(time).toInstant().toEpochMilli();
+                } catch (DateTimeParseException e) {
+                    // not RFC 3339, fall through
+                }
+            }
+        }
+        return System.currentTimeMillis();
     }
 
-    private static ReceiveRequest receiveRequestForAssignment(Assignment assignment) {
-        return ReceiveRequest.newBuilder().setAssignment(assignment).setFormat(LIIKLUS_EVENT).build();
+    /**
+     * @param lastKnownOffset the last offset received from the partition, if any, to resume after it
+     */
+    private static ReceiveRequest receiveRequestForAssignment(Assignment assignment, long lastKnownOffset) {
+        ReceiveRequest.Builder request = ReceiveRequest.newBuilder().setAssignment(assignment).setFormat(LIIKLUS_EVENT);
+        if (lastKnownOffset >= 0) {
+            request.setLastKnownOffset(lastKnownOffset);
+        }
+        return request.build();
     }
 
     /**
      * This converts a liiklus received message (in CloudEvent format) into an RPC {@link InputFrame}.
+     *
+     * @param template a frame pre-populated with the fields that only depend on the input stream, such as {@code argIndex}
      */
-    private InputFrame toRiffSignal(ReceiveReply receiveReply, StreamBinding streamBinding) {
-        int inputIndex = inputs.indexOf(streamBinding);
-        if (inputIndex == -1) {
-            throw new RuntimeException("Unknown topic: " + streamBinding);
-        }
+    static InputFrame toRiffSignal(ReceiveReply receiveReply, InputFrame template) {
         if (receiveReply.getReplyCase() == LIIKLUS_EVENT_RECORD) {
             LiiklusEvent event = receiveReply.getLiiklusEventRecord().getEvent();
-            return InputFrame.newBuilder()
+            // the payload ByteString is shared, not copied
+            InputFrame.Builder frame = template.toBuilder()
                     .setPayload(event.getData())
-                    .setContentType(event.getDataContentType())
-                    .setArgIndex(inputIndex)
-                    .putAllHeaders(event.getExtensionsMap())
-                    .build();
+                    .setContentType(event.getDataContentType());
+            if (event.getExtensionsCount() > 0) {
+                for (Map.Entry<String, String> extension : event.getExtensionsMap().entrySet()) {
+                    frame.putHeaders(HEADERS.intern(extension.getKey()), HEADERS.intern(extension.getValue()));
+                }
+            }
+            return frame.build();
         } else {
             throw new RuntimeException("Expected messages in CloudEvent format, got " + receiveReply.getReplyCase());
         }
 
     }
 
-    private SubscribeRequest subscribeRequestForInput(Tuple2<StreamBinding, String> topicAddressAndOffset) {
+    private SubscribeRequest subscribeRequestForInput(StreamBinding input, String startOffset) {
         return SubscribeRequest.newBuilder()
-                .setTopic(topicAddressAndOffset.getT1().getTopic())
+                .setTopic(input.getTopic())
                 .setGroup(group)
-                .setAutoOffsetReset(topicAddressAndOffset.getT2().equals("earliest") ? EARLIEST : LATEST)
+                .setAutoOffsetReset(startOffset.equals("earliest") ? EARLIEST : LATEST)
                 .build();
     }
 }
\ No newline at end of file
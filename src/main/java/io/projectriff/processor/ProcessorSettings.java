@@ -0,0 +1,570 @@
+package io.projectriff.processor;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Optional tuning knobs of the {@link Processor}, read from ENV VARs.
+ *
+ * <p>Unlike the mandatory settings checked at startup by {@link Processor}, every value here comes with a default,
+ * so that a processor deployed without any of them behaves sensibly.</p>
+ */
+final class ProcessorSettings {
+
+    /**
+     * ENV VAR key holding the number of fully processed records after which committed offsets are acked, without
+     * waiting for {@link #ACK_INTERVAL}.
+     */
+    static final String ACK_BATCH_SIZE = "ACK_BATCH_SIZE";
+
+    /**
+     * ENV VAR key holding the maximum delay between two acks of committed offsets, as a duration (eg {@code 500ms}).
+     */
+    static final String ACK_INTERVAL = "ACK_INTERVAL";
+
+    /**
+     * ENV VAR key holding the interval at which to log a summary of acked offsets, or {@code 0} to disable summaries.
+     * Individual acks are logged at DEBUG level.
+     */
+    static final String ACK_LOG_INTERVAL = "ACK_LOG_INTERVAL";
+
+    /**
+     * ENV VAR key holding the maximum number of concurrent publish requests per output stream.
+     */
+    static final String PUBLISH_MAX_IN_FLIGHT = "PUBLISH_MAX_IN_FLIGHT";
+
+    /**
+     * ENV VAR key holding the maximum number of events published to an output stream in a single batch, {@code 1}
+     * disabling batching. Only used if the gateway supports batches.
+     */
+    static final String PUBLISH_BATCH_SIZE = "PUBLISH_BATCH_SIZE";
+
+    /**
+     * ENV VAR key holding the maximum size of a batch of published events, in bytes.
+     */
+    static final String PUBLISH_BATCH_BYTES = "PUBLISH_BATCH_BYTES";
+
+    /**
+     * ENV VAR key holding how long a batch of published events that is not full may wait for more events.
+     */
+    static final String PUBLISH_BATCH_LINGER = "PUBLISH_BATCH_LINGER";
+
+    /**
+     * ENV VAR key holding the windowing specification, taking precedence over input bindings metadata.
+     *
+     * @see WindowingStrategies#parse(String)
+     */
+    static final String WINDOWING = "WINDOWING";
+
+    /**
+     * ENV VAR key holding the debugging aid to enable, one of {@code off}, {@code checkpoint} or {@code traceback}.
+     */
+    static final String DEBUG_MODE = "DEBUG_MODE";
+
+    /**
+     * ENV VAR key holding how to generate ids of published events, either {@code ulid} or {@code uuid}.
+     */
+    static final String EVENT_ID_GENERATOR = "EVENT_ID_GENERATOR";
+
+    /**
+     * ENV VAR key holding the number of independent invocation pipelines input partitions are spread over.
+     */
+    static final String PARTITION_RAILS = "PARTITION_RAILS";
+
+    /**
+     * ENV VAR key holding the port on which to expose metrics in the Prometheus format. Metrics are disabled if unset.
+     */
+    static final String METRICS_PORT = "METRICS_PORT";
+
+    /**
+     * ENV VAR key holding the interval at which to compute the consumer group lag on input partitions.
+     */
+    static final String LAG_INTERVAL = "LAG_INTERVAL";
+
+    /**
+     * ENV VAR key holding the HTTP/2 flow-control window of gRPC channels, in bytes.
+     */
+    static final String CHANNEL_FLOW_CONTROL_WINDOW = "CHANNEL_FLOW_CONTROL_WINDOW";
+
+    /**
+     * ENV VAR key holding the maximum size of messages received over gRPC channels, in bytes.
+     */
+    static final String CHANNEL_MAX_INBOUND_MESSAGE_SIZE = "CHANNEL_MAX_INBOUND_MESSAGE_SIZE";
+
+    /**
+     * ENV VAR key holding the delay after which an idle gRPC connection is probed with a keepalive ping, or {@code 0}
+     * to disable keepalive.
+     */
+    static final String CHANNEL_KEEPALIVE_TIME = "CHANNEL_KEEPALIVE_TIME";
+
+    /**
+     * ENV VAR key holding whether to use the native (epoll) transport for gRPC channels, when available.
+     */
+    static final String CHANNEL_NATIVE_TRANSPORT = "CHANNEL_NATIVE_TRANSPORT";
+
+    /**
+     * ENV VAR key holding the number of event loop threads shared by all gRPC channels.
+     */
+    static final String CHANNEL_EVENT_LOOP_THREADS = "CHANNEL_EVENT_LOOP_THREADS";
+
+    /**
+     * ENV VAR key holding whether gRPC callbacks run directly on event loop threads, rather than on an executor.
+     */
+    static final String CHANNEL_DIRECT_EXECUTOR = "CHANNEL_DIRECT_EXECUTOR";
+
+    /**
+     * ENV VAR key holding the number of channels (hence of connections) opened to each gateway.
+     */
+    static final String GATEWAY_CHANNELS = "GATEWAY_CHANNELS";
+
+    /**
+     * ENV VAR key holding how windows are mapped to invocation streams, either {@code window} (one stream per window)
+     * or {@code persistent} (a long-lived stream, if the function supports it).
+     */
+    static final String INVOKE_MODE = "INVOKE_MODE";
+
+    /**
+     * ENV VAR key holding the maximum number of input frames packed in a single signal to the function, {@code 1}
+     * disabling batching. Only used if the function supports batches.
+     */
+    static final String INVOKE_BATCH_SIZE = "INVOKE_BATCH_SIZE";
+
+    /**
+     * ENV VAR key holding the maximum size of a batch of input frames, in bytes.
+     */
+    static final String INVOKE_BATCH_BYTES = "INVOKE_BATCH_BYTES";
+
+    /**
+     * ENV VAR key holding how long a batch of input frames that is not full may wait for more frames.
+     */
+    static final String INVOKE_BATCH_LINGER = "INVOKE_BATCH_LINGER";
+
+    /**
+     * ENV VAR key holding the maximum number of header pairs in the dictionary of an invocation stream, {@code 0}
+     * disabling header dictionaries. Only used if the function supports them.
+     */
+    static final String HEADER_DICTIONARY_SIZE = "HEADER_DICTIONARY_SIZE";
+
+    /**
+     * ENV VAR key holding how long to wait at startup for the function to acknowledge the invocation capabilities asked
+     * for (persistent streams, batches, header dictionaries), before falling back to the default behavior.
+     */
+    static final String NEGOTIATION_TIMEOUT = "NEGOTIATION_TIMEOUT";
+
+    /**
+     * ENV VAR key holding how to compress messages sent to the function, one of {@link Compression#CODECS}.
+     * Output streams are configured with the {@link StreamBinding#COMPRESSION} metadata instead.
+     */
+    static final String FUNCTION_COMPRESSION = "FUNCTION_COMPRESSION";
+
+    /**
+     * ENV VAR key holding the number of records requested ahead from each input partition.
+     */
+    static final String RECEIVE_PREFETCH = "RECEIVE_PREFETCH";
+
+    /**
+     * ENV VAR key holding the maximum number of records received but not fully processed yet, {@code 0} meaning
+     * unbounded. This is the upper bound of the limit when {@link #IN_FLIGHT_LATENCY_TARGET} is set. When unset, the
+     * {@link Processor} picks a limit bounding what rails buffer, if there are several of them.
+     */
+    static final String IN_FLIGHT_LIMIT = "IN_FLIGHT_LIMIT";
+
+    /**
+     * ENV VAR key holding the latency (from the end of a window to the publication of its results) the limit of records
+     * in flight adapts to, or {@code 0} for a fixed limit.
+     */
+    static final String IN_FLIGHT_LATENCY_TARGET = "IN_FLIGHT_LATENCY_TARGET";
+
+    /**
+     * ENV VAR key holding how long to wait, upon shutdown, for in-flight windows to be processed and their offsets
+     * acked, before closing connections anyway.
+     */
+    static final String SHUTDOWN_TIMEOUT = "SHUTDOWN_TIMEOUT";
+
+    /**
+     * ENV VAR key holding the delay before resubscribing to an input stream after losing its gateway, doubled after
+     * each consecutive failure (with jitter).
+     */
+    static final String RESUBSCRIBE_BACKOFF = "RESUBSCRIBE_BACKOFF";
+
+    /**
+     * ENV VAR key holding the maximum delay before resubscribing to an input stream.
+     */
+    static final String RESUBSCRIBE_MAX_BACKOFF = "RESUBSCRIBE_MAX_BACKOFF";
+
+    /**
+     * ENV VAR key holding how long a function endpoint is left out of the balancing after it could not be reached, when
+     * FUNCTION lists several endpoints.
+     */
+    static final String FUNCTION_EJECTION_TIME = "FUNCTION_EJECTION_TIME";
+
+    /**
+     * ENV VAR key holding the directory where to spill results while they wait to be published (spilling is disabled
+     * when unset).
+     */
+    static final String SPILL_DIR = "SPILL_DIR";
+
+    /**
+     * ENV VAR key holding the size (in bytes) of the spill file.
+     */
+    static final String SPILL_SIZE = "SPILL_SIZE";
+
+    /**
+     * ENV VAR key holding the size (in bytes) below which messages are sent uncompressed, even when compression is on.
+     */
+    static final String COMPRESSION_THRESHOLD = "COMPRESSION_THRESHOLD";
+
+    private static final Pattern DURATION = Pattern.compile("(\\d+)\\s*(ms|s|m|h)?");
+
+    private final int ackBatchSize;
+
+    private final Duration ackInterval;
+
+    private final Duration ackLogInterval;
+
+    private final int publishMaxInFlight;
+
+    private final PublishBatching publishBatching;
+
+    private final String windowing;
+
+    private final DebugMode debugMode;
+
+    private final EventIdGenerator eventIdGenerator;
+
+    private final int partitionRails;
+
+    private final int metricsPort;
+
+    private final Duration lagInterval;
+
+    private final int channelFlowControlWindow;
+
+    private final int channelMaxInboundMessageSize;
+
+    private final Duration channelKeepAliveTime;
+
+    private final boolean channelNativeTransport;
+
+    private final int channelEventLoopThreads;
+
+    private final boolean channelDirectExecutor;
+
+    private final int gatewayChannels;
+
+    private final FunctionInvoker.Mode invokeMode;
+
+    private final FrameBatching invokeBatching;
+
+    private final int headerDictionarySize;
+
+    private final Duration negotiationTimeout;
+
+    private final String functionCompression;
+
+    private final int compressionThreshold;
+
+    private final int receivePrefetch;
+
+    private final int inFlightLimit;
+
+    private final Duration inFlightLatencyTarget;
+
+    private final Duration shutdownTimeout;
+
+    private final Duration resubscribeBackoff;
+
+    private final Duration resubscribeMaxBackoff;
+
+    private final Duration functionEjectionTime;
+
+    private final String spillDir;
+
+    private final int spillSize;
+
+    private ProcessorSettings(Function<String, String> env) {
+        this.ackBatchSize = intValue(env, ACK_BATCH_SIZE, 100);
+        this.ackInterval = durationValue(env, ACK_INTERVAL, Duration.ofSeconds(1));
+        this.ackLogInterval = durationValue(env, ACK_LOG_INTERVAL, Duration.ofSeconds(30));
+        this.publishMaxInFlight = intValue(env, PUBLISH_MAX_IN_FLIGHT, 1);
+        if (publishMaxInFlight < 1) {
+            throw new IllegalArgumentException(String.format("%s should be at least 1, got %d", PUBLISH_MAX_IN_FLIGHT, publishMaxInFlight));
+        }
+        this.publishBatching = new PublishBatching(
+                intValue(env, PUBLISH_BATCH_SIZE, 1),
+                intValue(env, PUBLISH_BATCH_BYTES, 1024 * 1024),
+                durationValue(env, PUBLISH_BATCH_LINGER, Duration.ofMillis(5)));
+        this.windowing = stringValue(env, WINDOWING, null);
+        this.debugMode = DebugMode.parse(stringValue(env, DEBUG_MODE, DebugMode.OFF.name()));
+        this.eventIdGenerator = EventIdGenerator.named(stringValue(env, EVENT_ID_GENERATOR, "ulid"));
+        this.metricsPort = intValue(env, METRICS_PORT, -1);
+        this.lagInterval = durationValue(env, LAG_INTERVAL, Duration.ofSeconds(15));
+        this.partitionRails = intValue(env, PARTITION_RAILS, 1);
+        if (partitionRails < 1) {
+            throw new IllegalArgumentException(String.format("%s should be at least 1, got %d", PARTITION_RAILS, partitionRails));
+        }
+        this.channelFlowControlWindow = intValue(env, CHANNEL_FLOW_CONTROL_WINDOW, 1024 * 1024);
+        this.channelMaxInboundMessageSize = intValue(env, CHANNEL_MAX_INBOUND_MESSAGE_SIZE, 4 * 1024 * 1024);
+        this.channelKeepAliveTime = durationValue(env, CHANNEL_KEEPALIVE_TIME, Duration.ZERO);
+        this.channelNativeTransport = booleanValue(env, CHANNEL_NATIVE_TRANSPORT, true);
+        this.channelEventLoopThreads = intValue(env, CHANNEL_EVENT_LOOP_THREADS, Runtime.getRuntime().availableProcessors());
+        this.channelDirectExecutor = booleanValue(env, CHANNEL_DIRECT_EXECUTOR, false);
+        this.invokeMode = FunctionInvoker.Mode.parse(stringValue(env, INVOKE_MODE, FunctionInvoker.Mode.WINDOW.name()));
+        this.invokeBatching = new FrameBatching(
+                intValue(env, INVOKE_BATCH_SIZE, 1),
+                intValue(env, INVOKE_BATCH_BYTES, 64 * 1024),
+                durationValue(env, INVOKE_BATCH_LINGER, Duration.ofMillis(5)));
+        this.headerDictionarySize = intValue(env, HEADER_DICTIONARY_SIZE, 0);
+        this.negotiationTimeout = durationValue(env, NEGOTIATION_TIMEOUT, Duration.ofSeconds(5));
+        this.functionCompression = Compression.parse(stringValue(env, FUNCTION_COMPRESSION, Compression.IDENTITY));
+        this.compressionThreshold = intValue(env, COMPRESSION_THRESHOLD, 1024);
+        this.receivePrefetch = intValue(env, RECEIVE_PREFETCH, 256);
+        if (receivePrefetch < 1) {
+            throw new IllegalArgumentException(String.format("%s should be at least 1, got %d", RECEIVE_PREFETCH, receivePrefetch));
+        }
+        this.inFlightLimit = intValue(env, IN_FLIGHT_LIMIT, -1);
+        this.inFlightLatencyTarget = durationValue(env, IN_FLIGHT_LATENCY_TARGET, Duration.ZERO);
+        if (inFlightLimit <= 0 && !inFlightLatencyTarget.isZero()) {
+            throw new IllegalArgumentException(String.format("%s requires %s to be set", IN_FLIGHT_LATENCY_TARGET, IN_FLIGHT_LIMIT));
+        }
+        this.shutdownTimeout = durationValue(env, SHUTDOWN_TIMEOUT, Duration.ofSeconds(30));
+        this.resubscribeBackoff = durationValue(env, RESUBSCRIBE_BACKOFF, Duration.ofMillis(100));
+        this.resubscribeMaxBackoff = durationValue(env, RESUBSCRIBE_MAX_BACKOFF, Duration.ofSeconds(10));
+        this.functionEjectionTime = durationValue(env, FUNCTION_EJECTION_TIME, Duration.ofSeconds(10));
+        this.spillDir = stringValue(env, SPILL_DIR, null);
+        this.spillSize = intValue(env, SPILL_SIZE, 64 * 1024 * 1024);
+        if (spillSize < 1) {
+            throw new IllegalArgumentException(String.format("%s should be at least 1, got %d", SPILL_SIZE, spillSize));
+        }
+        this.gatewayChannels = intValue(env, GATEWAY_CHANNELS, 1);
+        if (gatewayChannels < 1) {
+            throw new IllegalArgumentException(String.format("%s should be at least 1, got %d", GATEWAY_CHANNELS, gatewayChannels));
+        }
+    }
+
+    static ProcessorSettings fromEnvironment() {
+        return new ProcessorSettings(System::getenv);
+    }
+
+    static ProcessorSettings fromMap(Map<String, String> values) {
+        return new ProcessorSettings(values::get);
+    }
+
+    int getAckBatchSize() {
+        return ackBatchSize;
+    }
+
+    Duration getAckInterval() {
+        return ackInterval;
+    }
+
+    Duration getAckLogInterval() {
+        return ackLogInterval;
+    }
+
+    int getPublishMaxInFlight() {
+        return publishMaxInFlight;
+    }
+
+    PublishBatching getPublishBatching() {
+        return publishBatching;
+    }
+
+    /**
+     * Returns the windowing specification set explicitly, if any.
+     */
+    Optional<String> getWindowing() {
+        return Optional.ofNullable(windowing);
+    }
+
+    DebugMode getDebugMode() {
+        return debugMode;
+    }
+
+    EventIdGenerator getEventIdGenerator() {
+        return eventIdGenerator;
+    }
+
+    int getPartitionRails() {
+        return partitionRails;
+    }
+
+    /**
+     * Returns the port to expose metrics on, if enabled.
+     */
+    OptionalInt getMetricsPort() {
+        return metricsPort < 0 ? OptionalInt.empty() : OptionalInt.of(metricsPort);
+    }
+
+    Duration getLagInterval() {
+        return lagInterval;
+    }
+
+    int getChannelFlowControlWindow() {
+        return channelFlowControlWindow;
+    }
+
+    int getChannelMaxInboundMessageSize() {
+        return channelMaxInboundMessageSize;
+    }
+
+    Duration getChannelKeepAliveTime() {
+        return channelKeepAliveTime;
+    }
+
+    boolean isChannelNativeTransport() {
+        return channelNativeTransport;
+    }
+
+    int getChannelEventLoopThreads() {
+        return channelEventLoopThreads;
+    }
+
+    boolean isChannelDirectExecutor() {
+        return channelDirectExecutor;
+    }
+
+    int getGatewayChannels() {
+        return gatewayChannels;
+    }
+
+    FunctionInvoker.Mode getInvokeMode() {
+        return invokeMode;
+    }
+
+    FrameBatching getInvokeBatching() {
+        return invokeBatching;
+    }
+
+    int getHeaderDictionarySize() {
+        return headerDictionarySize;
+    }
+
+    Duration getNegotiationTimeout() {
+        return negotiationTimeout;
+    }
+
+    String getFunctionCompression() {
+        return functionCompression;
+    }
+
+    int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    int getReceivePrefetch() {
+        return receivePrefetch;
+    }
+
+    /**
+     * Returns the limit of records in flight, if set.
+     */
+    OptionalInt getInFlightLimit() {
+        return inFlightLimit < 0 ? OptionalInt.empty() : OptionalInt.of(inFlightLimit);
+    }
+
+    Duration getInFlightLatencyTarget() {
+        return inFlightLatencyTarget;
+    }
+
+    Duration getShutdownTimeout() {
+        return shutdownTimeout;
+    }
+
+    Duration getResubscribeBackoff() {
+        return resubscribeBackoff;
+    }
+
+    Duration getResubscribeMaxBackoff() {
+        return resubscribeMaxBackoff;
+    }
+
+    Duration getFunctionEjectionTime() {
+        return functionEjectionTime;
+    }
+
+    Optional<Path> getSpillDir() {
+        return Optional.ofNullable(spillDir).map(Paths::get);
+    }
+
+    int getSpillSize() {
+        return spillSize;
+    }
+
+    private static String stringValue(Function<String, String> env, String key, String defaultValue) {
+        String value = env.apply(key);
+        return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+    }
+
+    private static int intValue(Function<String, String> env, String key, int defaultValue) {
+        String value = stringValue(env, key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(String.format("%s should be an integer, got '%s'", key, value), e);
+        }
+    }
+
+    private static boolean booleanValue(Function<String, String> env, String key, boolean defaultValue) {
+        String value = stringValue(env, key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        switch (value.toLowerCase()) {
+            case "true":
+                return true;
+            case "false":
+                return false;
+            default:
+                throw new IllegalArgumentException(String.format("%s should be either true or false, got '%s'", key, value));
+        }
+    }
+
+    private static Duration durationValue(Function<String, String> env, String key, Duration defaultValue) {
+        String value = stringValue(env, key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return parseDuration(value);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(String.format("%s should be a duration, got '%s'", key, value), e);
+        }
+    }
+
+    /**
+     * Parses either an ISO-8601 duration ({@code PT1.5S}) or a number followed by one of
+     * {@code ms}, {@code s}, {@code m} or {@code h} (defaulting to milliseconds).
+     */
+    static Duration parseDuration(String value) {
+        if (value.startsWith("P") || value.startsWith("p")) {
+            return Duration.parse(value);
+        }
+        Matcher matcher = DURATION.matcher(value.trim());
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Unparseable duration: " + value);
+        }
+        long amount = Long.parseLong(matcher.group(1));
+        String unit = matcher.group(2) == null ? "ms" : matcher.group(2);
+        switch (unit) {
+            case "s":
+                return Duration.ofSeconds(amount);
+            case "m":
+                return Duration.ofMinutes(amount);
+            case "h":
+                return Duration.ofHours(amount);
+            default:
+                return Duration.ofMillis(amount);
+        }
+    }
+}
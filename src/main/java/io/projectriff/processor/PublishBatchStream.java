@@ -0,0 +1,380 @@
+package io.projectriff.processor;
+
+import com.github.bsideup.liiklus.protocol.PublishBatchReply;
+import com.github.bsideup.liiklus.protocol.PublishBatchRequest;
+import com.github.bsideup.liiklus.protocol.PublishRequest;
+import com.github.bsideup.liiklus.protocol.ReactorLiiklusServiceGrpc;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Timer;
+import org.reactivestreams.Subscription;
+import reactor.core.Disposable;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import reactor.core.publisher.UnicastProcessor;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A long-lived {@code PublishBatch} stream to an output stream, shared by all windows publishing to it, so that
+ * batches fill up across windows rather than ending with each of them.
+ *
+ * <p>Replies come in the order batches were sent, and must hold one reply per request of their batch. A window
+ * completes once all of its requests have been acknowledged. Should the stream fail, reply with the wrong number of
+ * events, or complete while batches await a reply, all windows still publishing over it fail, and the next window
+ * opens a new stream.</p>
+ *
+ * <p>Windows are only granted requests as long as fewer than {@link #MAX_BATCHES_AWAITING_REPLY} batches worth of
+ * requests await a reply, so that a slow gateway holds back the function results rather than piling them up.</p>
+ */
+final class PublishBatchStream {
+
+    /**
+     * How many batches worth of requests may await a reply.
+     */
+    static final int MAX_BATCHES_AWAITING_REPLY = 16;
+
+    private final ReactorLiiklusServiceGrpc.ReactorLiiklusServiceStub stub;
+
+    private final String topic;
+
+    private final PublishBatching batching;
+
+    private final PipelineMetrics metrics;
+
+    private final Timer latency;
+
+    private final Counter failures;
+
+    private final AtomicReference<Generation> current = new AtomicReference<>();
+
+    PublishBatchStream(ReactorLiiklusServiceGrpc.ReactorLiiklusServiceStub stub, String topic, PublishBatching batching,
+                       PipelineMetrics metrics, Timer latency, Counter failures) {
+        this.stub = stub;
+        this.topic = topic;
+        this.batching = batching;
+        this.metrics = metrics;
+        this.latency = latency;
+        this.failures = failures;
+    }
+
+    /**
+     * Publishes the requests of a window, completing once they have all been acknowledged.
+     */
+    Mono<Void> publish(Flux<PublishRequest> requests) {
+        return Mono.create(sink -> {
+            Generation.Window window = null;
+            while (window == null) {
+                // null if the stream just ended, a new one is then opened
+                window = generation().register(sink);
+            }
+            Generation.Window registered = window;
+            sink.onDispose(registered::release);
+            requests.subscribe(registered);
+        });
+    }
+
+    /**
+     * Ends the stream once the requests sent so far have been acknowledged.
+     */
+    void close() {
+        Generation generation = current.getAndSet(null);
+        if (generation != null) {
+            generation.close();
+        }
+    }
+
+    private Generation generation() {
+        for (; ; ) {
+            Generation generation = current.get();
+            if (generation != null) {
+                return generation;
+            }
+            Generation created = new Generation();
+            if (current.compareAndSet(null, created)) {
+                created.start();
+                return created;
+            }
+        }
+    }
+
+    /**
+     * A single {@code PublishBatch} call, and the windows publishing over it.
+     */
+    private final class Generation {
+
+        private final UnicastProcessor<Pending> pending = UnicastProcessor.create();
+
+        private final FluxSink<Pending> pendingSink = pending.sink();
+
+        /**
+         * Batches sent and awaiting a reply, in order.
+         */
+        private final Queue<Batch> inFlight = new ConcurrentLinkedQueue<>();
+
+        private final Set<Window> windows = ConcurrentHashMap.newKeySet();
+
+        /**
+         * Requests that may still be granted to windows, returned as they are acknowledged.
+         */
+        private long credits = (long) MAX_BATCHES_AWAITING_REPLY * batching.getMaxRequests();
+
+        /**
+         * Windows waiting for credits, in arrival order.
+         */
+        private final Queue<Window> starved = new ArrayDeque<>();
+
+        private volatile Disposable call;
+
+        private boolean ended;
+
+        /**
+         * Whether no more windows are accepted, the stream then ends once the last batches have been acknowledged.
+         */
+        private boolean closed;
+
+        void start() {
+            Flux<PublishBatchRequest> batches = batching.batches(pending, item -> item.request.getSerializedSize())
+                    .map(this::send);
+            call = stub.publishBatch(batches).subscribe(this::replied, this::fail, this::completed);
+        }
+
+        /**
+         * Returns a new window publishing over this stream, or null if it has ended or been closed.
+         */
+        synchronized Window register(MonoSink<Void> sink) {
+            if (ended || closed) {
+                return null;
+            }
+            Window window = new Window(sink);
+            windows.add(window);
+            return window;
+        }
+
+        void close() {
+            synchronized (this) {
+                closed = true;
+            }
+            pendingSink.complete();
+        }
+
+        private PublishBatchRequest send(List<Pending> batch) {
+            inFlight.offer(new Batch(batch, System.nanoTime()));
+            metrics.publishesInFlight().incrementAndGet();
+            PublishBatchRequest.Builder request = PublishBatchRequest.newBuilder();
+            for (Pending pending : batch) {
+                request.addRequests(pending.request);
+            }
+            return request.build();
+        }
+
+        private void replied(PublishBatchReply reply) {
+            Batch batch = inFlight.poll();
+            if (batch == null) {
+                fail(new IllegalStateException(String.format("Unexpected reply from PublishBatch to %s, no batch awaiting one", topic)));
+                return;
+            }
+            metrics.publishesInFlight().decrementAndGet();
+            if (reply.getRepliesCount() != batch.requests.size()) {
+                fail(new IllegalStateException(String.format("PublishBatch to %s replied with %d events for a batch of %d",
+                        topic, reply.getRepliesCount(), batch.requests.size())));
+                return;
+            }
+            latency.record(System.nanoTime() - batch.sentAt, TimeUnit.NANOSECONDS);
+            for (Pending pending : batch.requests) {
+                pending.window.acked();
+            }
+            returnCredits(batch.requests.size());
+        }
+
+        /**
+         * Grants a window up to a batch worth of requests, as credits allow, or else queues it until some are
+         * returned.
+         */
+        private synchronized long grant(Window window) {
+            if (!windows.contains(window)) {
+                return 0L;
+            }
+            long grant = Math.min(credits, batching.getMaxRequests());
+            if (grant == 0L) {
+                starved.offer(window);
+                return 0L;
+            }
+            credits -= grant;
+            window.granted += grant;
+            return grant;
+        }
+
+        private void returnCredits(long returned) {
+            List<Window> woken;
+            synchronized (this) {
+                credits += returned;
+                woken = new ArrayList<>(starved);
+                starved.clear();
+            }
+            woken.forEach(Window::replenish);
+        }
+
+        private void completed() {
+            synchronized (this) {
+                if (inFlight.isEmpty() && windows.isEmpty()) {
+                    end();
+                    return;
+                }
+            }
+            fail(new IllegalStateException(String.format("PublishBatch to %s completed with %d batches awaiting a reply",
+                    topic, inFlight.size())));
+        }
+
+        private void fail(Throwable failure) {
+            List<Window> failed;
+            synchronized (this) {
+                if (ended) {
+                    return;
+                }
+                end();
+                failed = new ArrayList<>(windows);
+                windows.clear();
+            }
+            failures.increment();
+            metrics.publishesInFlight().addAndGet(-inFlight.size());
+            inFlight.clear();
+            Disposable call = this.call;
+            if (call != null) {
+                call.dispose();
+            }
+            failed.forEach(window -> window.sink.error(failure));
+        }
+
+        private synchronized void end() {
+            ended = true;
+            current.compareAndSet(this, null);
+        }
+
+        /**
+         * The requests of a window, completing once all of them have been enqueued and acknowledged.
+         */
+        private final class Window extends BaseSubscriber<PublishRequest> {
+
+            private final MonoSink<Void> sink;
+
+            private int unacked;
+
+            private boolean enqueued;
+
+            /**
+             * Requests granted and not received yet, guarded by the stream lock.
+             */
+            private long granted;
+
+            private Window(MonoSink<Void> sink) {
+                this.sink = sink;
+            }
+
+            @Override
+            protected void hookOnSubscribe(Subscription subscription) {
+                replenish();
+            }
+
+            @Override
+            protected void hookOnNext(PublishRequest request) {
+                boolean exhausted;
+                synchronized (Generation.this) {
+                    exhausted = --granted == 0L;
+                }
+                synchronized (this) {
+                    unacked++;
+                }
+                pendingSink.next(new Pending(request, this));
+                if (exhausted) {
+                    replenish();
+                }
+            }
+
+            @Override
+            protected void hookOnComplete() {
+                boolean done;
+                synchronized (this) {
+                    enqueued = true;
+                    done = unacked == 0;
+                }
+                if (done) {
+                    sink.success();
+                }
+            }
+
+            @Override
+            protected void hookOnError(Throwable throwable) {
+                sink.error(throwable);
+            }
+
+            void acked() {
+                boolean done;
+                synchronized (this) {
+                    done = --unacked == 0 && enqueued;
+                }
+                if (done) {
+                    sink.success();
+                }
+            }
+
+            void replenish() {
+                long grant = grant(this);
+                if (grant > 0L) {
+                    request(grant);
+                }
+            }
+
+            /**
+             * Stops publishing over the stream, returning the credits granted but not used.
+             */
+            void release() {
+                long unused;
+                synchronized (Generation.this) {
+                    windows.remove(this);
+                    starved.remove(this);
+                    unused = granted;
+                    granted = 0L;
+                }
+                dispose();
+                if (unused > 0L) {
+                    returnCredits(unused);
+                }
+            }
+        }
+    }
+
+    private static final class Pending {
+
+        private final PublishRequest request;
+
+        private final PublishBatchStream.Generation.Window window;
+
+        private Pending(PublishRequest request, PublishBatchStream.Generation.Window window) {
+            this.request = request;
+            this.window = window;
+        }
+    }
+
+    private static final class Batch {
+
+        private final List<Pending> requests;
+
+        private final long sentAt;
+
+        private Batch(List<Pending> requests, long sentAt) {
+            this.requests = requests;
+            this.sentAt = sentAt;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package io.projectriff.processor;
+
+import com.github.bsideup.liiklus.protocol.PublishBatchRequest;
+import reactor.core.publisher.Flux;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+/**
+ * Coalesces the publish requests to an output stream into {@link PublishBatchRequest}s, for gateways that support
+ * {@code PublishBatch}. Batches are bounded as described by {@link Batcher}, and may hold results of several windows
+ * (see {@link PublishBatchStream}).
+ */
+final class PublishBatching {
+
+    /**
+     * Publishes every event with its own {@code Publish} call.
+     */
+    static final PublishBatching NONE = new PublishBatching(1, Integer.MAX_VALUE, Duration.ofMillis(1));
+
+    private final Batcher batcher;
+
+    PublishBatching(int maxRequests, int maxBytes, Duration linger) {
+        this.batcher = new Batcher(maxRequests, maxBytes, linger);
+    }
+
+    int getMaxRequests() {
+        return batcher.getMaxItems();
+    }
+
+    boolean isEnabled() {
+        return batcher.isEnabled();
+    }
+
+    /**
+     * Groups items holding publish requests into batches.
+     *
+     * @param sizeOf the serialized size of the request held by an item
+     */
+    <T> Flux<List<T>> batches(Flux<T> items, ToIntFunction<? super T> sizeOf) {
+        return batcher.batches(items, sizeOf);
+    }
+}
@@ -0,0 +1,461 @@
+package io.projectriff.processor;
+
+import io.grpc.Status;
+import io.projectriff.invoker.rpc.OutputFrame;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+import reactor.core.publisher.MonoSink;
+import reactor.core.publisher.SignalType;
+import reactor.core.publisher.UnicastProcessor;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.retry.Retry;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+/**
+ * A bounded, append-only buffer of function results on their way to the gateways, backed by a memory-mapped file.
+ *
+ * <p>Results are written to the file as length-prefixed {@link OutputFrame}s as they come out of the function, which
+ * frees the rail to invoke its next window while the results are published in the background. The results of a window
+ * are published, in order, once the window has ended, or as soon as the buffer gets full, so that windows larger than
+ * the buffer are spilled in several parts. Once all results of a window have been published, their space is reclaimed
+ * and the window is reported as processed, so that offsets of its records are only acked then.</p>
+ *
+ * <p>Publish failures the gateway may recover from (unavailable, deadline exceeded or resource exhausted) are retried
+ * with backoff for as long as it takes. Any other failure is final: spilling then fails, and so does the processor, as
+ * it would without spilling.</p>
+ *
+ * <p>When the buffer is full, spilling waits for space to be reclaimed, so that backpressure applies again. A result
+ * larger than the whole buffer is published directly, once the buffer has been drained. The file is not read back
+ * after a restart: as offsets of spilled records have not been acked, they are received again instead.</p>
+ */
+final class SpillBuffer {
+
+    private static final Logger logger = LoggerFactory.getLogger(SpillBuffer.class);
+
+    /**
+     * Publish failures worth retrying, others fail the processor.
+     */
+    private static final Set<Status.Code> TRANSIENT_FAILURES = EnumSet.of(Status.Code.UNAVAILABLE,
+            Status.Code.DEADLINE_EXCEEDED, Status.Code.RESOURCE_EXHAUSTED);
+
+    private final Path file;
+
+    private final MappedByteBuffer buffer;
+
+    private final int capacity;
+
+    private final Function<Flux<OutputFrame>, Mono<Void>> publisher;
+
+    private final Duration retryBackoff;
+
+    private final Duration maxRetryBackoff;
+
+    private final UnicastProcessor<Segment> spilled = UnicastProcessor.create();
+
+    private final FluxSink<Segment> spilledSink = spilled.sink();
+
+    /**
+     * Completes once all spilled results have been published after {@link #complete()}, or fails with the first
+     * publish failure that can't be retried.
+     */
+    private final MonoProcessor<Void> drained = MonoProcessor.create();
+
+    /**
+     * Logical position of the next byte to write. Physical positions are logical ones modulo {@link #capacity}.
+     */
+    private long tail;
+
+    /**
+     * Segments holding results not published yet, by logical position of their first frame. As segments of windows
+     * spilled concurrently interleave, the first one tells where the space still in use starts.
+     */
+    private final TreeMap<Long, Segment> live = new TreeMap<>();
+
+    /**
+     * Frames waiting for space, in arrival order.
+     */
+    private final Queue<PendingFrame> pending = new ArrayDeque<>();
+
+    private Throwable failure;
+
+    /**
+     * @param publisher publishes results, completing once they have all been acknowledged
+     */
+    private SpillBuffer(Path file, MappedByteBuffer buffer, Function<Flux<OutputFrame>, Mono<Void>> publisher,
+                        Duration retryBackoff, Duration maxRetryBackoff) {
+        this.file = file;
+        this.buffer = buffer;
+        this.capacity = buffer.capacity();
+        this.publisher = publisher;
+        this.retryBackoff = retryBackoff;
+        this.maxRetryBackoff = maxRetryBackoff;
+    }
+
+    /**
+     * Creates a new spill file of {@code capacity} bytes in {@code directory}.
+     */
+    static SpillBuffer open(Path directory, int capacity, Function<Flux<OutputFrame>, Mono<Void>> publisher,
+                            Duration retryBackoff, Duration maxRetryBackoff) {
+        try {
+            Files.createDirectories(directory);
+            Path file = Files.createTempFile(directory, "spill-", ".seg");
+            file.toFile().deleteOnExit();
+            try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+                raf.setLength(capacity);
+                // the mapping outlives the channel
+                MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+                logger.info("Spilling results to {} ({} bytes)", file, capacity);
+                return new SpillBuffer(file, buffer, publisher, retryBackoff, maxRetryBackoff);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Starts publishing spilled results, one segment at a time.
+     */
+    Disposable start() {
+        // segments are handed over while holding the lock, publishing them must not happen on the same thread
+        return spilled.publishOn(Schedulers.parallel(), 1)
+                .concatMap(segment -> publish(read(segment))
+                        .then(Mono.fromRunnable(() -> reclaim(segment))), 1)
+                .subscribe(null, this::failed, drained::onComplete);
+    }
+
+    /**
+     * Spills all results of a window, completing once they have been written, which may have to wait for space to be
+     * reclaimed. {@code onPublished} runs once they have all been published. Should the results fail, those not handed
+     * over for publishing yet are discarded, as the window is to be processed again.
+     */
+    Mono<Void> spill(Flux<OutputFrame> results, Runnable onPublished) {
+        return Mono.defer(() -> {
+            SpilledWindow window = new SpilledWindow(onPublished);
+            return results.concatMap(result -> write(window, result.toByteArray()))
+                    .then(Mono.<Void>fromRunnable(() -> ended(window)))
+                    .doFinally(signal -> {
+                        if (signal != SignalType.ON_COMPLETE) {
+                            discard(window);
+                        }
+                    });
+        });
+    }
+
+    /**
+     * Stops accepting results, completing once all spilled results have been published.
+     */
+    Mono<Void> complete() {
+        spilledSink.complete();
+        return drained;
+    }
+
+    /**
+     * Fails with the first publish failure that can't be retried, never completes otherwise.
+     */
+    Mono<Void> failure() {
+        return drained.then(Mono.never());
+    }
+
+    synchronized long getUsedBytes() {
+        return tail - head();
+    }
+
+    void close() {
+        spilledSink.complete();
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            logger.warn("Could not delete spill file {}", file, e);
+        }
+    }
+
+    private Mono<Void> write(SpilledWindow window, byte[] frame) {
+        return Mono.<PendingFrame>create(sink -> {
+            PendingFrame pendingFrame = new PendingFrame(window, frame, sink);
+            sink.onCancel(() -> {
+                synchronized (this) {
+                    pending.remove(pendingFrame);
+                }
+            });
+            List<PendingFrame> written;
+            Throwable failure;
+            synchronized (this) {
+                failure = this.failure;
+                pending.offer(pendingFrame);
+                written = failure == null ? writePending() : new ArrayList<>(pending);
+                if (failure != null) {
+                    pending.clear();
+                }
+            }
+            if (failure != null) {
+                written.forEach(waiting -> waiting.sink.error(failure));
+            } else {
+                written.forEach(PendingFrame::written);
+            }
+        }).flatMap(written -> written.direct
+                // too large to be spilled, published once everything spilled before has been
+                ? publish(Flux.just(parse(written.bytes)))
+                : Mono.<Void>empty());
+    }
+
+    private void ended(SpilledWindow window) {
+        boolean published;
+        synchronized (this) {
+            seal(window);
+            window.ended = true;
+            published = window.unpublished == 0;
+        }
+        if (published) {
+            window.onPublished.run();
+        }
+    }
+
+    private void discard(SpilledWindow window) {
+        List<PendingFrame> written;
+        synchronized (this) {
+            window.discarded = true;
+            Segment segment = window.current;
+            if (segment == null) {
+                return;
+            }
+            window.current = null;
+            live.remove(segment.first);
+            written = writePending();
+        }
+        written.forEach(PendingFrame::written);
+    }
+
+    private void reclaim(Segment segment) {
+        List<PendingFrame> written;
+        boolean published;
+        synchronized (this) {
+            live.remove(segment.first);
+            SpilledWindow window = segment.window;
+            published = --window.unpublished == 0 && window.ended;
+            written = writePending();
+        }
+        if (published) {
+            segment.window.onPublished.run();
+        }
+        written.forEach(PendingFrame::written);
+    }
+
+    private void failed(Throwable failure) {
+        logger.error("Publishing spilled results failed", failure);
+        List<PendingFrame> waiting;
+        synchronized (this) {
+            this.failure = failure;
+            waiting = new ArrayList<>(pending);
+            pending.clear();
+        }
+        waiting.forEach(frame -> frame.sink.error(failure));
+        drained.onError(failure);
+    }
+
+    /**
+     * Returns the logical position of the oldest byte still in use.
+     */
+    private long head() {
+        return live.isEmpty() ? tail : live.firstKey();
+    }
+
+    /**
+     * Writes as many pending frames as fit, in order, returning those written to be completed outside the lock.
+     */
+    private List<PendingFrame> writePending() {
+        List<PendingFrame> written = new ArrayList<>(1);
+        for (PendingFrame frame = pending.peek(); frame != null; frame = pending.peek()) {
+            if (!write(frame)) {
+                // space is only reclaimed once published, so hand over what windows have spilled so far, including
+                // those waiting behind this frame
+                new ArrayList<>(live.values()).forEach(segment -> seal(segment.window));
+                break;
+            }
+            pending.poll();
+            written.add(frame);
+        }
+        return written;
+    }
+
+    private boolean write(PendingFrame frame) {
+        if (frame.window.discarded) {
+            return true;
+        }
+        int size = Integer.BYTES + frame.bytes.length;
+        if (size > capacity) {
+            frame.direct = true;
+            return live.isEmpty();
+        }
+        if (live.isEmpty()) {
+            // empty, start over from the beginning of the file
+            tail = (tail + capacity - 1) / capacity * capacity;
+        }
+        int position = (int) (tail % capacity);
+        // a frame is kept contiguous, skipping the end of the file if need be
+        long skip = position + size > capacity ? capacity - position : 0L;
+        if (capacity - (tail - head()) < skip + size) {
+            return false;
+        }
+        long start = tail + skip;
+        ByteBuffer target = buffer.duplicate();
+        target.position((int) (start % capacity));
+        target.putInt(frame.bytes.length);
+        target.put(frame.bytes);
+        tail = start + size;
+        SpilledWindow window = frame.window;
+        if (window.current == null) {
+            window.current = new Segment(window, start);
+            live.put(start, window.current);
+        }
+        window.current.add(start);
+        return true;
+    }
+
+    /**
+     * Hands over the results of a window spilled so far for publishing.
+     */
+    private void seal(SpilledWindow window) {
+        Segment segment = window.current;
+        if (segment != null) {
+            window.current = null;
+            window.unpublished++;
+            spilledSink.next(segment);
+        }
+    }
+
+    /**
+     * Publishes results, retrying (all of them) until they have been acknowledged, as long as failures are transient.
+     */
+    private Mono<Void> publish(Flux<OutputFrame> results) {
+        return Mono.defer(() -> publisher.apply(results))
+                .retryWhen(Retry.backoff(Long.MAX_VALUE, retryBackoff)
+                        .maxBackoff(maxRetryBackoff)
+                        .filter(e -> TRANSIENT_FAILURES.contains(Status.fromThrowable(e).getCode()))
+                        .doBeforeRetry(signal -> logger.warn("Publishing spilled results failed ({}), retrying",
+                                signal.failure().toString())));
+    }
+
+    private Flux<OutputFrame> read(Segment segment) {
+        return Flux.defer(() -> {
+            ByteBuffer source = buffer.duplicate();
+            return Flux.range(0, segment.frames).map(i -> {
+                source.position((int) (segment.starts[i] % capacity));
+                byte[] frame = new byte[source.getInt()];
+                source.get(frame);
+                return parse(frame);
+            });
+        });
+    }
+
+    private static OutputFrame parse(byte[] frame) {
+        try {
+            return OutputFrame.parseFrom(frame);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * The results of a window being spilled. Guarded by the buffer lock.
+     */
+    private static final class SpilledWindow {
+
+        private final Runnable onPublished;
+
+        /**
+         * The segment results are currently written to, if any.
+         */
+        private Segment current;
+
+        /**
+         * Segments handed over for publishing and not published yet.
+         */
+        private int unpublished;
+
+        private boolean ended;
+
+        /**
+         * Whether the results failed, and are not to be written anymore.
+         */
+        private boolean discarded;
+
+        private SpilledWindow(Runnable onPublished) {
+            this.onPublished = onPublished;
+        }
+    }
+
+    /**
+     * Consecutive results of a window, published together.
+     */
+    private static final class Segment {
+
+        private final SpilledWindow window;
+
+        private final long first;
+
+        /**
+         * The logical positions of the frames, which may be interleaved with those of other windows.
+         */
+        private long[] starts = new long[16];
+
+        private int frames;
+
+        private Segment(SpilledWindow window, long first) {
+            this.window = window;
+            this.first = first;
+        }
+
+        private void add(long start) {
+            if (frames == starts.length) {
+                starts = Arrays.copyOf(starts, frames * 2);
+            }
+            starts[frames++] = start;
+        }
+    }
+
+    private static final class PendingFrame {
+
+        private final SpilledWindow window;
+
+        private final byte[] bytes;
+
+        private final MonoSink<PendingFrame> sink;
+
+        /**
+         * Whether the frame doesn't fit in the buffer, and has to be published directly.
+         */
+        private boolean direct;
+
+        private PendingFrame(SpilledWindow window, byte[] bytes, MonoSink<PendingFrame> sink) {
+            this.window = window;
+            this.bytes = bytes;
+            this.sink = sink;
+        }
+
+        private void written() {
+            sink.success(this);
+        }
+    }
+}
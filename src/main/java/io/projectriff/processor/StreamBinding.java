@@ -17,6 +17,19 @@ public class StreamBinding {
 
     public static final String CONTENT_TYPE = "contentType";
 
+    /**
+     * Metadata key holding the windowing specification to use, when set on an input binding.
+     *
+     * @see WindowingStrategies#parse(String)
+     */
+    public static final String WINDOWING = "windowing";
+
+    /**
+     * Metadata key holding how to compress the events published to an output binding, one of
+     * {@link Compression#CODECS} (defaulting to {@code identity}, <em>ie</em> no compression).
+     */
+    public static final String COMPRESSION = "compression";
+
     private final String gatewayAddress;
 
     private final String topic;
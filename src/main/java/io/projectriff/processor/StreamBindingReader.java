@@ -9,11 +9,16 @@ import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 import static io.projectriff.processor.StreamBindingPaths.inputBindingPath;
 import static io.projectriff.processor.StreamBindingPaths.outputBindingPath;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
+/**
+ * Reads the input and output bindings mounted under a root directory. Bindings are read in parallel, as each of them
+ * spans several small files, which may sit on a slow volume.
+ */
 public class StreamBindingReader {
 
 	private final File rootDirectory;
@@ -28,19 +33,32 @@ public class StreamBindingReader {
 
 	public List<StreamBinding> readInputStreamBindings(int count) {
 		return IntStream.range(0, count)
-				.mapToObj(i -> readStreamBinding(rootDirectory.toPath().resolve(inputBindingPath(i))))
+				.parallel()
+				.mapToObj(i -> {
+					Path bindingRoot = rootDirectory.toPath().resolve(inputBindingPath(i));
+					StreamBinding streamBinding = readStreamBinding(bindingRoot);
+					return new StreamBinding(
+							streamBinding.getGatewayAddress(),
+							streamBinding.getTopic(),
+							readMetadata(bindingRoot));
+				})
 				.collect(Collectors.toList());
 	}
 
 	public List<StreamBinding> readOutputStreamBindings(int count) {
 		return IntStream.range(0, count)
+				.parallel()
 				.mapToObj(i -> {
 					Path bindingRoot = rootDirectory.toPath().resolve(outputBindingPath(i));
 					StreamBinding streamBinding = readStreamBinding(bindingRoot);
+					Map<String, String> metadata = readMetadata(bindingRoot);
+					if (!metadata.containsKey(StreamBinding.CONTENT_TYPE)) {
+						throw new RuntimeException(String.format("Missing %s metadata for output binding %s", StreamBinding.CONTENT_TYPE, bindingRoot));
+					}
 					return new StreamBinding(
 							streamBinding.getGatewayAddress(),
 							streamBinding.getTopic(),
-							readMetadata(bindingRoot));
+							metadata);
 				})
 				.collect(Collectors.toList());
 	}
@@ -57,11 +75,22 @@ public class StreamBindingReader {
 		}
 	}
 
+	/*
+	 * Reads every entry of the (optional) metadata directory, skipping the hidden entries created by Kubernetes volumes
+	 */
 	private static Map<String, String> readMetadata(Path root) {
-		try {
-			Map<String, String> result = new HashMap<>(1, 1.f);
-			Path path = root.resolve("metadata").resolve("contentType");
-			result.put(StreamBinding.CONTENT_TYPE, new String(Files.readAllBytes(path), UTF_8));
+		Path metadataRoot = root.resolve("metadata");
+		if (!Files.isDirectory(metadataRoot)) {
+			return new HashMap<>(1, 1.f);
+		}
+		try (Stream<Path> entries = Files.list(metadataRoot)) {
+			Map<String, String> result = new HashMap<>();
+			for (Path path : entries.collect(Collectors.toList())) {
+				String key = path.getFileName().toString();
+				if (!key.startsWith(".") && Files.isRegularFile(path)) {
+					result.put(key, new String(Files.readAllBytes(path), UTF_8));
+				}
+			}
 			return result;
 		}
 		catch (IOException e) {
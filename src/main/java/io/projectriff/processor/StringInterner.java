@@ -0,0 +1,64 @@
+package io.projectriff.processor;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A bounded cache of canonical strings, for values that repeat across messages such as header keys and values.
+ *
+ * <p>Interned strings let records held in memory share a single copy of their headers, and have their hash code
+ * computed once. A string is only cached the second time it is seen, so that values unique to a message (ids,
+ * timestamps, trace ids...) don't take the room of those that actually repeat. Once {@code maxSize} strings are
+ * cached, or for strings longer than {@code maxLength}, strings are returned as is.</p>
+ */
+final class StringInterner {
+
+    /**
+     * How many strings seen once are remembered per cache entry, before starting over.
+     */
+    private static final int MAX_CANDIDATES_PER_ENTRY = 4;
+
+    private final int maxSize;
+
+    private final int maxLength;
+
+    private final ConcurrentMap<String, String> strings = new ConcurrentHashMap<>();
+
+    /**
+     * Strings seen once, admitted in the cache if seen again.
+     */
+    private final Set<String> candidates = ConcurrentHashMap.newKeySet();
+
+    StringInterner(int maxSize, int maxLength) {
+        this.maxSize = maxSize;
+        this.maxLength = maxLength;
+    }
+
+    String intern(String value) {
+        String canonical = strings.get(value);
+        if (canonical != null) {
+            return canonical;
+        }
+        if (value.length() > maxLength || strings.size() >= maxSize || !seenBefore(value)) {
+            return value;
+        }
+        canonical = strings.putIfAbsent(value, value);
+        return canonical == null ? value : canonical;
+    }
+
+    int size() {
+        return strings.size();
+    }
+
+    private boolean seenBefore(String value) {
+        if (candidates.remove(value)) {
+            return true;
+        }
+        if (candidates.size() >= maxSize * MAX_CANDIDATES_PER_ENTRY) {
+            candidates.clear();
+        }
+        candidates.add(value);
+        return false;
+    }
+}
@@ -0,0 +1,89 @@
+package io.projectriff.processor;
+
+import io.projectriff.invoker.rpc.InputFrame;
+
+/**
+ * An {@link InputFrame} on its way to the function, together with the partition and offset it was read from,
+ * so that the latter can be acked once the frame has been fully processed.
+ */
+public final class TrackedFrame {
+
+    private final InputFrame frame;
+
+    private final OffsetTracker.PartitionOffsets partition;
+
+    private final long offset;
+
+    private final long eventTime;
+
+    /**
+     * When the record was received, as of {@link System#nanoTime()}.
+     */
+    private final long receivedNanos;
+
+    /**
+     * Whether this is an extra occurrence of a record in another window (see {@link #copy()}).
+     */
+    private final boolean copy;
+
+    TrackedFrame(InputFrame frame, OffsetTracker.PartitionOffsets partition, long offset) {
+        this(frame, partition, offset, System.currentTimeMillis());
+    }
+
+    TrackedFrame(InputFrame frame, OffsetTracker.PartitionOffsets partition, long offset, long eventTime) {
+        this(frame, partition, offset, eventTime, System.nanoTime(), false);
+    }
+
+    private TrackedFrame(InputFrame frame, OffsetTracker.PartitionOffsets partition, long offset, long eventTime,
+                         long receivedNanos, boolean copy) {
+        this.frame = frame;
+        this.partition = partition;
+        this.offset = offset;
+        this.eventTime = eventTime;
+        this.receivedNanos = receivedNanos;
+        this.copy = copy;
+    }
+
+    public InputFrame getFrame() {
+        return frame;
+    }
+
+    OffsetTracker.PartitionOffsets getPartition() {
+        return partition;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Returns when the record happened, in milliseconds since the epoch, as told by the gateway, or else when it was
+     * received.
+     */
+    public long getEventTime() {
+        return eventTime;
+    }
+
+    long getReceivedNanos() {
+        return receivedNanos;
+    }
+
+    /**
+     * Returns another occurrence of this record, for windowing strategies that put a record in several windows. Only
+     * the original is acked, so it has to go to the window that is processed last.
+     */
+    TrackedFrame copy() {
+        return new TrackedFrame(frame, partition, offset, eventTime, receivedNanos, true);
+    }
+
+    boolean isCopy() {
+        return copy;
+    }
+
+    /**
+     * Registers this frame as in-flight, to be called before it enters invocation windows.
+     */
+    void track() {
+        partition.track(offset);
+    }
+}
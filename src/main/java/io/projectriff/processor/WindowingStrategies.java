@@ -0,0 +1,166 @@
+package io.projectriff.processor;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+
+/**
+ * Built-in {@link WindowingStrategy windowing strategies}, selectable by textual specification (see {@link #parse(String)}).
+ */
+public final class WindowingStrategies {
+
+    /**
+     * The strategy in use when none is specified: windows of one minute of wall-clock time.
+     */
+    public static final String DEFAULT = "time:60s";
+
+    private WindowingStrategies() {
+    }
+
+    /**
+     * Windows spanning a fixed amount of wall-clock time.
+     */
+    public static WindowingStrategy time(Duration duration) {
+        return records -> records.window(duration);
+    }
+
+    /**
+     * Windows of a fixed number of records.
+     */
+    public static WindowingStrategy count(int maxRecords) {
+        return new WindowingStrategy() {
+            @Override
+            public Flux<Flux<TrackedFrame>> window(Flux<TrackedFrame> records) {
+                return records.window(maxRecords);
+            }
+
+            @Override
+            public int recordsToClose() {
+                return maxRecords;
+            }
+        };
+    }
+
+    /**
+     * Windows closing as soon as the accumulated size of their payloads reaches {@code maxBytes}. Each record counts
+     * for at least one byte, so that windows of empty payloads close too, after at most {@code maxBytes} records.
+     */
+    public static WindowingStrategy size(long maxBytes) {
+        return new WindowingStrategy() {
+            @Override
+            public Flux<Flux<TrackedFrame>> window(Flux<TrackedFrame> records) {
+                return Flux.defer(() -> {
+                    long[] accumulated = new long[1];
+                    return records.windowUntil(record -> {
+                        accumulated[0] += Math.max(1, record.getFrame().getPayload().size());
+                        if (accumulated[0] >= maxBytes) {
+                            accumulated[0] = 0L;
+                            return true;
+                        }
+                        return false;
+                    });
+                });
+            }
+
+            @Override
+            public int recordsToClose() {
+                return (int) Math.min(maxBytes, Integer.MAX_VALUE);
+            }
+        };
+    }
+
+    /**
+     * Windows closing after {@code maxRecords} records, or once {@code maxDuration} has elapsed, whichever comes first.
+     */
+    public static WindowingStrategy timeOrCount(int maxRecords, Duration maxDuration) {
+        return records -> records.windowTimeout(maxRecords, maxDuration);
+    }
+
+    /**
+     * Session windows, closing once no record has been received for {@code gap}.
+     */
+    public static WindowingStrategy idle(Duration gap) {
+        return records -> records.publish(shared -> shared.window(shared.switchMap(record -> Mono.delay(gap))));
+    }
+
+    /**
+     * Tumbling ({@code slide} equal to {@code size}) or sliding windows of event time, closed once the watermark of
+     * every active partition has passed their end (see {@link EventTimeWindows}).
+     *
+     * @param maxOutOfOrderness how far behind the latest event time seen on a partition its watermark lags
+     * @param idleTimeout       how long a partition may go without records before it stops holding windows back
+     */
+    public static WindowingStrategy eventTime(Duration size, Duration slide, Duration maxOutOfOrderness, Duration idleTimeout) {
+        return new EventTimeWindows(size, slide, maxOutOfOrderness, idleTimeout);
+    }
+
+    /**
+     * Parses a windowing specification, one of
+     * <ul>
+     *     <li>{@code time:<duration>}</li>
+     *     <li>{@code count:<records>}</li>
+     *     <li>{@code size:<bytes>}</li>
+     *     <li>{@code timeout:<records>,<duration>}</li>
+     *     <li>{@code idle:<duration>}</li>
+     *     <li>{@code event:<size>[,<slide>[,<max out-of-orderness>[,<idle timeout>]]]}, the slide defaulting to the
+     *     size (tumbling windows), the out-of-orderness to 5s and the idle timeout to 30s</li>
+     *     <li>the fully qualified name of a custom {@link WindowingStrategy} implementation</li>
+     * </ul>
+     */
+    public static WindowingStrategy parse(String spec) {
+        String trimmed = spec.trim();
+        int colon = trimmed.indexOf(':');
+        String name = colon == -1 ? trimmed : trimmed.substring(0, colon);
+        String args = colon == -1 ? "" : trimmed.substring(colon + 1).trim();
+        try {
+            switch (name) {
+                case "time":
+                    return time(ProcessorSettings.parseDuration(args));
+                case "count":
+                    return count(Integer.parseInt(args));
+                case "size":
+                    return size(Long.parseLong(args));
+                case "timeout":
+                    String[] parts = args.split(",");
+                    if (parts.length != 2) {
+                        throw new IllegalArgumentException("Expected <records>,<duration>");
+                    }
+                    return timeOrCount(Integer.parseInt(parts[0].trim()), ProcessorSettings.parseDuration(parts[1].trim()));
+                case "idle":
+                    return idle(ProcessorSettings.parseDuration(args));
+                case "event":
+                    String[] durations = args.split(",");
+                    if (durations.length > 4 || durations[0].trim().isEmpty()) {
+                        throw new IllegalArgumentException("Expected <size>[,<slide>[,<max out-of-orderness>[,<idle timeout>]]]");
+                    }
+                    Duration windowSize = ProcessorSettings.parseDuration(durations[0].trim());
+                    return eventTime(windowSize,
+                            durations.length > 1 ? ProcessorSettings.parseDuration(durations[1].trim()) : windowSize,
+                            durations.length > 2 ? ProcessorSettings.parseDuration(durations[2].trim()) : Duration.ofSeconds(5),
+                            durations.length > 3 ? ProcessorSettings.parseDuration(durations[3].trim()) : Duration.ofSeconds(30));
+                default:
+                    return instantiate(trimmed);
+            }
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(String.format("Invalid windowing specification '%s': %s", spec, e.getMessage()), e);
+        }
+    }
+
+    /**
+     * Instantiates a custom strategy by reflection. In a native image, this only works if the class is registered for
+     * reflection, which the native image build picks up from a {@code META-INF/native-image/.../reflect-config.json}
+     * entry shipped along with the class.
+     */
+    private static WindowingStrategy instantiate(String className) {
+        try {
+            return Class.forName(className)
+                    .asSubclass(WindowingStrategy.class)
+                    .getDeclaredConstructor()
+                    .newInstance();
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            throw new IllegalArgumentException("Unknown windowing strategy " + className
+                    + " (custom strategies need a reflect-config.json entry to be found in a native image)", e);
+        }
+    }
+}
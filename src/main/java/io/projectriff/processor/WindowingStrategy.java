@@ -0,0 +1,41 @@
+package io.projectriff.processor;
+
+import reactor.core.publisher.Flux;
+
+/**
+ * Decides how records are arranged into function invocation windows.
+ *
+ * <p>Each window emitted by {@link #window(Flux)} results in a separate invocation of the function, whose records are
+ * acked once all results of that invocation have been published. Shorter windows mean lower end-to-end latency,
+ * longer windows amortize the cost of setting up invocations.</p>
+ *
+ * <p>Built-in strategies are available through {@link WindowingStrategies}. Custom implementations need to expose a
+ * public no-arg constructor and can be selected by fully qualified class name. To be found in a native image, they
+ * also need to be registered for reflection, in a {@code META-INF/native-image/<group>/<artifact>/reflect-config.json}
+ * file shipped along with them.</p>
+ */
+public interface WindowingStrategy {
+
+    /**
+     * Splits the linear flow of input records into invocation windows.
+     */
+    Flux<Flux<TrackedFrame>> window(Flux<TrackedFrame> records);
+
+    /**
+     * Returns how many records a window may need to receive before it closes, or {@code 0} if windows always close
+     * eventually (with time). Limits of records in flight must leave room for that many records on each rail, lest no
+     * window ever closes.
+     */
+    default int recordsToClose() {
+        return 0;
+    }
+
+    /**
+     * Returns whether windows depend on {@link TrackedFrame#getEventTime() event time}, which is otherwise not read
+     * from records, and left to when they were received.
+     */
+    default boolean requiresEventTime() {
+        return false;
+    }
+
+}
@@ -34,6 +34,9 @@ public class StreamBindingWriter {
 					Path bindingRootDirectory = rootDirectory.toPath().resolve(StreamBindingPaths.inputBindingPath(i));
 
 					tryWriteBinding(bindingRootDirectory, streamBinding);
+					if (!streamBinding.getMetadata().isEmpty()) {
+						tryWriteMetadata(bindingRootDirectory, streamBinding.getMetadata());
+					}
 				});
 	}
 
@@ -44,6 +47,7 @@ public class StreamBindingWriter {
 					Path bindingRootDirectory = rootDirectory.toPath().resolve(StreamBindingPaths.outputBindingPath(i));
 
 					tryWriteBinding(bindingRootDirectory, streamBinding);
+					requireNonNull(streamBinding.getMetadata().get(StreamBinding.CONTENT_TYPE));
 					tryWriteMetadata(bindingRootDirectory, streamBinding.getMetadata());
 				});
 
@@ -94,8 +98,9 @@ public class StreamBindingWriter {
 		File metadataDir = new File(root.toFile(), "metadata");
 		Files.createDirectory(metadataDir.toPath());
 
-		File contentType = new File(metadataDir, "contentType");
-		byte[] gatewayAddress = requireNonNull(metadata.get(StreamBinding.CONTENT_TYPE)).getBytes(US_ASCII);
-		Files.write(contentType.toPath(), gatewayAddress);
+		for (Map.Entry<String, String> entry : metadata.entrySet()) {
+			File file = new File(metadataDir, entry.getKey());
+			Files.write(file.toPath(), entry.getValue().getBytes(US_ASCII));
+		}
 	}
 }
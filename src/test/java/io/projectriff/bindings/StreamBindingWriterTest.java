@@ -52,6 +52,23 @@ public class StreamBindingWriterTest {
 		assertThat(result).isEqualTo(initialInputs);
 	}
 
+	@Test
+	public void writes_and_read_input_bindings_metadata() {
+		Map<String, String> metadata = new HashMap<>(1, 1.f);
+		metadata.put(StreamBinding.WINDOWING, "count:100");
+		List<StreamBinding> inputs = Arrays.asList(
+			new StreamBinding("gateway1.example.com:6565", "in1", metadata),
+			new StreamBinding("gateway2.example.com:6565", "in2")
+		);
+		StreamBindingWriter writer = StreamBindingWriter.init(baseDirectory);
+		writer.writeInputStreamBindings(inputs);
+		StreamBindingReader reader = StreamBindingReader.init(baseDirectory);
+
+		List<StreamBinding> result = reader.readInputStreamBindings(inputs.size());
+
+		assertThat(result).isEqualTo(inputs);
+	}
+
 	@Test
 	public void writes_and_read_output_bindings() {
 		StreamBindingWriter writer = StreamBindingWriter.init(baseDirectory);
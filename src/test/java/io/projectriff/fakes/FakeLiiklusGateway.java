@@ -0,0 +1,201 @@
+package io.projectriff.fakes;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.github.bsideup.liiklus.protocol.AckRequest;
+import com.github.bsideup.liiklus.protocol.Assignment;
+import com.github.bsideup.liiklus.protocol.GetEndOffsetsReply;
+import com.github.bsideup.liiklus.protocol.GetEndOffsetsRequest;
+import com.github.bsideup.liiklus.protocol.GetOffsetsReply;
+import com.github.bsideup.liiklus.protocol.GetOffsetsRequest;
+import com.github.bsideup.liiklus.protocol.PublishBatchReply;
+import com.github.bsideup.liiklus.protocol.PublishBatchRequest;
+import com.github.bsideup.liiklus.protocol.PublishReply;
+import com.github.bsideup.liiklus.protocol.PublishRequest;
+import com.github.bsideup.liiklus.protocol.ReactorLiiklusServiceGrpc;
+import com.github.bsideup.liiklus.protocol.ReceiveReply;
+import com.github.bsideup.liiklus.protocol.ReceiveRequest;
+import com.github.bsideup.liiklus.protocol.SubscribeReply;
+import com.github.bsideup.liiklus.protocol.SubscribeRequest;
+import com.google.protobuf.Empty;
+import io.grpc.Status;
+import reactor.core.publisher.DirectProcessor;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import static com.github.bsideup.liiklus.protocol.SubscribeRequest.AutoOffsetReset.EARLIEST;
+
+/**
+ * An in-memory stand-in for a liiklus gateway, serving {@link InMemoryTopic}s.
+ *
+ * <p>Topics are created on first use, with the configured number of partitions. Every subscription is assigned all
+ * partitions of its topic, and receives start after the offset last acked by the consumer group, or else as dictated
+ * by the subscription auto offset reset. Request/reply calls (publish, ack and offsets) are delayed by the configured
+ * latency, and so is every batch of {@code PublishBatch}.</p>
+ *
+ * <p>Gateway failures can be simulated with {@link #disconnect()}.</p>
+ *
+ * <p>A live gateway never completes subscriptions nor receives, like a real one. A bounded gateway completes them
+ * once the end of the partitions (as of the receive) is reached, so that a processor run over pre-filled topics
+ * terminates.</p>
+ */
+public class FakeLiiklusGateway extends ReactorLiiklusServiceGrpc.LiiklusServiceImplBase {
+
+	private final int partitions;
+
+	private final int retention;
+
+	private final Duration latency;
+
+	private final boolean bounded;
+
+	private final ConcurrentMap<String, InMemoryTopic> topics = new ConcurrentHashMap<>();
+
+	private final ConcurrentMap<String, SubscribeRequest> sessions = new ConcurrentHashMap<>();
+
+	/**
+	 * Last acked offsets, keyed by {@code group/topic/partition}.
+	 */
+	private final ConcurrentMap<String, Long> acked = new ConcurrentHashMap<>();
+
+	private final DirectProcessor<Boolean> disconnects = DirectProcessor.create();
+
+	public FakeLiiklusGateway(int partitions) {
+		this(partitions, 1_000_000, Duration.ZERO, false);
+	}
+
+	public FakeLiiklusGateway(int partitions, int retention, Duration latency, boolean bounded) {
+		this.partitions = partitions;
+		this.retention = retention;
+		this.latency = latency;
+		this.bounded = bounded;
+	}
+
+	/**
+	 * Returns the topic with the given name, creating it if needed.
+	 */
+	public InMemoryTopic topic(String name) {
+		return topics.computeIfAbsent(name, n -> new InMemoryTopic(n, partitions, retention));
+	}
+
+	public Map<String, Long> getAcked() {
+		return acked;
+	}
+
+	/**
+	 * Fails all ongoing subscriptions and receives with {@code UNAVAILABLE}, as if the gateway had been lost.
+	 */
+	public void disconnect() {
+		disconnects.onNext(Boolean.TRUE);
+	}
+
+	@Override
+	public Flux<SubscribeReply> subscribe(Mono<SubscribeRequest> request) {
+		return request.flatMapMany(subscribe -> {
+			String sessionId = UUID.randomUUID().toString();
+			sessions.put(sessionId, subscribe);
+			Flux<SubscribeReply> assignments = Flux.range(0, topic(subscribe.getTopic()).getPartitionCount())
+					.map(partition -> SubscribeReply.newBuilder()
+							.setAssignment(Assignment.newBuilder()
+									.setSessionId(sessionId)
+									.setPartition(partition))
+							.build());
+			return disconnectable(bounded ? assignments : assignments.concatWith(Flux.never()))
+					.doFinally(signal -> sessions.remove(sessionId));
+		});
+	}
+
+	@Override
+	public Flux<ReceiveReply> receive(Mono<ReceiveRequest> request) {
+		return request.flatMapMany(receive -> {
+			SubscribeRequest subscription = sessions.get(receive.getAssignment().getSessionId());
+			if (subscription == null) {
+				return Flux.error(Status.NOT_FOUND.withDescription("Unknown session " + receive.getAssignment().getSessionId()).asException());
+			}
+			InMemoryTopic topic = topic(subscription.getTopic());
+			int partition = receive.getAssignment().getPartition();
+			Long committed = acked.get(key(subscription.getGroup(), topic.getName(), partition));
+			long start = committed != null
+					? committed + 1
+					: subscription.getAutoOffsetReset() == EARLIEST ? 0L : topic.endOffset(partition);
+			// like real gateways, can't tell an explicit last known offset of 0 from the proto3 default
+			if (receive.getLastKnownOffset() > 0) {
+				start = Math.max(start, receive.getLastKnownOffset() + 1);
+			}
+			return disconnectable(topic.read(partition, start, !bounded));
+		});
+	}
+
+	@Override
+	public Mono<PublishReply> publish(Mono<PublishRequest> request) {
+		return delayed(request.map(publish -> topic(publish.getTopic()).append(publish.getKey(), publish.getLiiklusEvent())));
+	}
+
+	@Override
+	public Flux<PublishBatchReply> publishBatch(Flux<PublishBatchRequest> request) {
+		return request.concatMap(batch -> delayed(Mono.fromCallable(() -> {
+			PublishBatchReply.Builder reply = PublishBatchReply.newBuilder();
+			for (PublishRequest publish : batch.getRequestsList()) {
+				reply.addReplies(topic(publish.getTopic()).append(publish.getKey(), publish.getLiiklusEvent()));
+			}
+			return reply.build();
+		})));
+	}
+
+	@Override
+	public Mono<Empty> ack(Mono<AckRequest> request) {
+		return delayed(request.map(ack -> {
+			acked.merge(key(ack.getGroup(), ack.getTopic(), ack.getPartition()), ack.getOffset(), Math::max);
+			return Empty.getDefaultInstance();
+		}));
+	}
+
+	@Override
+	public Mono<GetOffsetsReply> getOffsets(Mono<GetOffsetsRequest> request) {
+		return delayed(request.map(offsets -> {
+			GetOffsetsReply.Builder reply = GetOffsetsReply.newBuilder();
+			for (int partition = 0; partition < topic(offsets.getTopic()).getPartitionCount(); partition++) {
+				Long offset = acked.get(key(offsets.getGroup(), offsets.getTopic(), partition));
+				if (offset != null) {
+					reply.putOffsets(partition, offset);
+				}
+			}
+			return reply.build();
+		}));
+	}
+
+	@Override
+	public Mono<GetEndOffsetsReply> getEndOffsets(Mono<GetEndOffsetsRequest> request) {
+		return delayed(request.map(offsets -> {
+			InMemoryTopic topic = topic(offsets.getTopic());
+			GetEndOffsetsReply.Builder reply = GetEndOffsetsReply.newBuilder();
+			for (int partition = 0; partition < topic.getPartitionCount(); partition++) {
+				reply.putOffsets(partition, topic.endOffset(partition));
+			}
+			return reply.build();
+		}));
+	}
+
+	private <T> Flux<T> disconnectable(Flux<T> stream) {
+		return Flux.defer(() -> {
+			AtomicBoolean disconnected = new AtomicBoolean();
+			return stream.takeUntilOther(disconnects.doOnNext(disconnected::set))
+					.concatWith(Mono.defer(() -> disconnected.get()
+							? Mono.error(Status.UNAVAILABLE.withDescription("Gateway disconnected").asException())
+							: Mono.empty()));
+		});
+	}
+
+	private <T> Mono<T> delayed(Mono<T> reply) {
+		return latency.isZero() ? reply : reply.delayElement(latency);
+	}
+
+	private static String key(String group, String topic, int partition) {
+		return group + "/" + topic + "/" + partition;
+	}
+}
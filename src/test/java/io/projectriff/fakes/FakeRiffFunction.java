@@ -0,0 +1,134 @@
+package io.projectriff.fakes;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+
+import com.google.protobuf.ByteString;
+import io.projectriff.invoker.rpc.Header;
+import io.projectriff.invoker.rpc.InputFrame;
+import io.projectriff.invoker.rpc.InputSignal;
+import io.projectriff.invoker.rpc.OutputBatch;
+import io.projectriff.invoker.rpc.OutputFrame;
+import io.projectriff.invoker.rpc.OutputSignal;
+import io.projectriff.invoker.rpc.ReactorRiffGrpc;
+import io.projectriff.invoker.rpc.StartAck;
+import reactor.core.publisher.Flux;
+
+/**
+ * An in-memory stand-in for a riff function, transforming the payload of every input frame and emitting the result
+ * to each of its {@code results}, with the content type and headers of the input.
+ *
+ * <p>Each input frame costs {@code cost} of busy CPU time, to simulate functions doing actual work. Long-lived
+ * invocation streams are supported, window boundaries being echoed as soon as they are received, and so are batches:
+ * the results of a batch of inputs are sent as a single batch, and so are header dictionaries.</p>
+ */
+public class FakeRiffFunction extends ReactorRiffGrpc.RiffImplBase {
+
+	private static final String WINDOW_BOUNDARIES = "window-boundaries";
+
+	private static final String BATCHES = "batches";
+
+	private static final String HEADER_DICTIONARY = "header-dictionary";
+
+	private static final List<String> SUPPORTED_CAPABILITIES = Arrays.asList(WINDOW_BOUNDARIES, BATCHES, HEADER_DICTIONARY);
+
+	private final UnaryOperator<ByteString> transform;
+
+	private final long costNanos;
+
+	private final int results;
+
+	/**
+	 * Echoes every input frame to the first result, as is.
+	 */
+	public FakeRiffFunction() {
+		this(UnaryOperator.identity(), Duration.ZERO, 1);
+	}
+
+	public FakeRiffFunction(UnaryOperator<ByteString> transform, Duration cost, int results) {
+		this.transform = transform;
+		this.costNanos = cost.toNanos();
+		this.results = results;
+	}
+
+	/**
+	 * Upper-cases UTF-8 payloads.
+	 */
+	public static UnaryOperator<ByteString> uppercase() {
+		return payload -> ByteString.copyFromUtf8(payload.toStringUtf8().toUpperCase());
+	}
+
+	@Override
+	public Flux<OutputSignal> invoke(Flux<InputSignal> request) {
+		return request.switchOnFirst((first, signals) -> {
+			List<String> capabilities = first.hasValue()
+					? first.get().getStart().getCapabilitiesList().stream().filter(SUPPORTED_CAPABILITIES::contains).collect(Collectors.toList())
+					: Collections.emptyList();
+			boolean batches = capabilities.contains(BATCHES);
+			List<Header> dictionary = first.hasValue() ? new ArrayList<>(first.get().getStart().getHeaderDictionaryList()) : new ArrayList<>();
+			Flux<OutputSignal> results = signals.concatMapIterable(signal -> results(signal, batches, dictionary));
+			return capabilities.isEmpty()
+					? results
+					: results.startWith(OutputSignal.newBuilder()
+							.setStartAck(StartAck.newBuilder().addAllCapabilities(capabilities))
+							.build());
+		});
+	}
+
+	private List<OutputSignal> results(InputSignal signal, boolean batches, List<Header> dictionary) {
+		switch (signal.getFrameCase()) {
+			case DICTIONARY:
+				dictionary.addAll(signal.getDictionary().getHeadersList());
+				return Collections.emptyList();
+			case BOUNDARY:
+				return Collections.singletonList(OutputSignal.newBuilder().setBoundary(signal.getBoundary()).build());
+			case DATA:
+				return results(signal.getData(), dictionary).stream()
+						.map(frame -> OutputSignal.newBuilder().setData(frame).build())
+						.collect(Collectors.toList());
+			case BATCH:
+				List<OutputFrame> frames = signal.getBatch().getFramesList().stream()
+						.flatMap(in -> results(in, dictionary).stream())
+						.collect(Collectors.toList());
+				if (batches) {
+					return Collections.singletonList(OutputSignal.newBuilder().setBatch(OutputBatch.newBuilder().addAllFrames(frames)).build());
+				}
+				return frames.stream()
+						.map(frame -> OutputSignal.newBuilder().setData(frame).build())
+						.collect(Collectors.toList());
+			default:
+				return Collections.emptyList();
+		}
+	}
+
+	private List<OutputFrame> results(InputFrame in, List<Header> dictionary) {
+		spin();
+		OutputFrame.Builder out = OutputFrame.newBuilder()
+				.setPayload(transform.apply(in.getPayload()))
+				.setContentType(in.getContentType())
+				.putAllHeaders(in.getHeadersMap());
+		for (int ref : in.getHeaderRefsList()) {
+			out.putHeaders(dictionary.get(ref).getKey(), dictionary.get(ref).getValue());
+		}
+		OutputFrame[] frames = new OutputFrame[results];
+		for (int i = 0; i < results; i++) {
+			frames[i] = out.setResultIndex(i).build();
+		}
+		return Arrays.asList(frames);
+	}
+
+	private void spin() {
+		if (costNanos == 0L) {
+			return;
+		}
+		long deadline = System.nanoTime() + costNanos;
+		while (System.nanoTime() < deadline) {
+			// busy wait
+		}
+	}
+}
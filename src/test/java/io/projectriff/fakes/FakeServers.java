@@ -0,0 +1,127 @@
+package io.projectriff.fakes;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.function.UnaryOperator;
+
+import com.github.bsideup.liiklus.protocol.LiiklusEvent;
+import com.google.protobuf.ByteString;
+import io.grpc.Server;
+import io.grpc.netty.NettyServerBuilder;
+import picocli.CommandLine;
+import picocli.CommandLine.Command;
+import reactor.core.publisher.Flux;
+
+import static picocli.CommandLine.Option;
+
+/**
+ * CLI that serves a {@link FakeLiiklusGateway} and a {@link FakeRiffFunction} over the network, so that a
+ * {@link io.projectriff.processor.Processor} can be load tested on a single machine.<br/>
+ *
+ * Example invocation, to be paired with bindings generated by
+ * {@link io.projectriff.bindings.LocalStreamBindingsGenerator} for the {@code localhost:6565} gateway:
+ * <code><pre>
+ * ./fake-servers --gateway-port 6565 --function-port 8081 \
+ * 	--partitions 4 --gateway-latency-ms 2 \
+ * 	--transform uppercase --function-cost-us 50 \
+ * 	--produce default_in --rate 20000 --payload-size 512
+ * </pre></code>
+ */
+@Command(name = "fake-servers", mixinStandardHelpOptions = true, sortOptions = false, usageHelpWidth = 120)
+public class FakeServers implements Callable<Integer> {
+
+	enum Transform {
+		echo, uppercase
+	}
+
+	@Option(names = {"--gateway-port"}, description = "port of the fake liiklus gateway (default: ${DEFAULT-VALUE})")
+	int gatewayPort = 6565;
+
+	@Option(names = {"--function-port"}, description = "port of the fake riff function (default: ${DEFAULT-VALUE})")
+	int functionPort = 8081;
+
+	@Option(names = {"--partitions"}, description = "number of partitions of every topic (default: ${DEFAULT-VALUE})")
+	int partitions = 4;
+
+	@Option(names = {"--retention"}, description = "number of events retained per partition (default: ${DEFAULT-VALUE})")
+	int retention = 1_000_000;
+
+	@Option(names = {"--gateway-latency-ms"}, description = "delay of publish, ack and offsets calls (default: ${DEFAULT-VALUE})")
+	long gatewayLatencyMillis = 0L;
+
+	@Option(names = {"--transform"}, description = "what the function does to payloads, one of ${COMPLETION-CANDIDATES} (default: ${DEFAULT-VALUE})")
+	Transform transform = Transform.echo;
+
+	@Option(names = {"--function-cost-us"}, description = "CPU time spent by the function on every input (default: ${DEFAULT-VALUE})")
+	long functionCostMicros = 0L;
+
+	@Option(names = {"--results"}, description = "number of function results every input is sent to (default: ${DEFAULT-VALUE})")
+	int results = 1;
+
+	@Option(names = {"--produce"}, paramLabel = "TOPIC", description = "topic(s) to continuously append events to")
+	List<String> producedTopics = new ArrayList<>();
+
+	@Option(names = {"--rate"}, description = "number of events appended per second, to each produced topic (default: ${DEFAULT-VALUE})")
+	int rate = 1000;
+
+	@Option(names = {"--payload-size"}, description = "size in bytes of produced event payloads (default: ${DEFAULT-VALUE})")
+	int payloadSize = 256;
+
+	public Integer call() throws IOException, InterruptedException {
+		FakeLiiklusGateway gateway = new FakeLiiklusGateway(partitions, retention, Duration.ofMillis(gatewayLatencyMillis), false);
+		UnaryOperator<ByteString> payloadTransform = transform == Transform.uppercase ? FakeRiffFunction.uppercase() : UnaryOperator.identity();
+		FakeRiffFunction function = new FakeRiffFunction(payloadTransform, Duration.ofNanos(functionCostMicros * 1000), results);
+
+		Server gatewayServer = NettyServerBuilder.forPort(gatewayPort).addService(gateway).build().start();
+		Server functionServer = NettyServerBuilder.forPort(functionPort).addService(function).build().start();
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			gatewayServer.shutdownNow();
+			functionServer.shutdownNow();
+		}));
+		System.out.println(String.format("Fake gateway listening on port %d, fake function on port %d", gatewayPort, functionPort));
+
+		produce(gateway);
+		gatewayServer.awaitTermination();
+		return 0;
+	}
+
+	/**
+	 * Appends events to the produced topics, in bursts every 10ms.
+	 */
+	private void produce(FakeLiiklusGateway gateway) {
+		if (producedTopics.isEmpty() || rate <= 0) {
+			return;
+		}
+		LiiklusEvent event = LiiklusEvent.newBuilder()
+				.setId("fake")
+				.setType("riff-event")
+				.setSource("fake-servers")
+				.setDataContentType("text/plain")
+				.setData(ByteString.copyFromUtf8(payload()))
+				.build();
+		int perBurst = Math.max(1, rate / 100);
+		Flux.interval(Duration.ofMillis(10))
+				.onBackpressureDrop()
+				.subscribe(tick -> producedTopics.forEach(topic -> {
+					InMemoryTopic inMemoryTopic = gateway.topic(topic);
+					for (int i = 0; i < perBurst; i++) {
+						inMemoryTopic.append(ByteString.EMPTY, event);
+					}
+				}));
+	}
+
+	private String payload() {
+		StringBuilder payload = new StringBuilder(payloadSize);
+		for (int i = 0; i < payloadSize; i++) {
+			payload.append((char) ('a' + i % 26));
+		}
+		return payload.toString();
+	}
+
+	public static void main(String... args) {
+		System.exit(new CommandLine(new FakeServers()).execute(args));
+	}
+}
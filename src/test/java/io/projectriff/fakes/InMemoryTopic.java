@@ -0,0 +1,167 @@
+package io.projectriff.fakes;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.bsideup.liiklus.protocol.LiiklusEvent;
+import com.github.bsideup.liiklus.protocol.PublishReply;
+import com.github.bsideup.liiklus.protocol.ReceiveReply;
+import com.google.protobuf.ByteString;
+import reactor.core.publisher.DirectProcessor;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.Mono;
+
+/**
+ * A partitioned, in-memory topic of {@link FakeLiiklusGateway}.
+ *
+ * <p>Each partition retains up to {@code retention} events, older events being dropped as new ones are appended,
+ * and offsets keep increasing. Events with a key are routed to a partition by hashing the key, other events are
+ * spread evenly over all partitions.</p>
+ */
+public class InMemoryTopic {
+
+	private final String name;
+
+	private final Partition[] partitions;
+
+	private final AtomicInteger roundRobin = new AtomicInteger();
+
+	InMemoryTopic(String name, int partitions, int retention) {
+		this.name = name;
+		this.partitions = new Partition[partitions];
+		for (int i = 0; i < partitions; i++) {
+			this.partitions[i] = new Partition(retention);
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getPartitionCount() {
+		return partitions.length;
+	}
+
+	/**
+	 * Appends an event, returning where it has been stored.
+	 */
+	public PublishReply append(ByteString key, LiiklusEvent event) {
+		int partition = key.isEmpty()
+				? Math.floorMod(roundRobin.getAndIncrement(), partitions.length)
+				: Math.floorMod(key.hashCode(), partitions.length);
+		long offset = partitions[partition].append(event);
+		return PublishReply.newBuilder()
+				.setTopic(name)
+				.setPartition(partition)
+				.setOffset(offset)
+				.build();
+	}
+
+	/**
+	 * Appends the same event {@code count} times to every partition.
+	 */
+	public void fill(int count, LiiklusEvent event) {
+		for (Partition partition : partitions) {
+			for (int i = 0; i < count; i++) {
+				partition.append(event);
+			}
+		}
+	}
+
+	/**
+	 * Returns the offset the next event appended to the given partition will get.
+	 */
+	public long endOffset(int partition) {
+		return partitions[partition].end();
+	}
+
+	/**
+	 * Reads a partition, starting at {@code offset} (or at the first retained offset, if it has been dropped). When
+	 * {@code follow} is set, newly appended events are emitted as they arrive. Otherwise, completes once the end of
+	 * the partition (as of subscription) is reached.
+	 */
+	Flux<ReceiveReply> read(int partition, long offset, boolean follow) {
+		return partitions[partition].read(offset, follow);
+	}
+
+	private static final class Partition {
+
+		private final int retention;
+
+		private final DirectProcessor<Long> appended = DirectProcessor.create();
+
+		private final FluxSink<Long> appendedSink = appended.sink();
+
+		/**
+		 * Retained events, the event at offset {@code o} being stored at index {@code o % ring.length}. The ring
+		 * grows until it reaches {@code retention}, which can only happen before any wrap around.
+		 */
+		private LiiklusEvent[] ring;
+
+		private long next;
+
+		Partition(int retention) {
+			this.retention = retention;
+			this.ring = new LiiklusEvent[Math.min(retention, 1024)];
+		}
+
+		long append(LiiklusEvent event) {
+			long offset;
+			synchronized (this) {
+				if (next == ring.length && ring.length < retention) {
+					LiiklusEvent[] grown = new LiiklusEvent[(int) Math.min(retention, 2L * ring.length)];
+					System.arraycopy(ring, 0, grown, 0, ring.length);
+					ring = grown;
+				}
+				offset = next++;
+				ring[(int) (offset % ring.length)] = event;
+			}
+			appendedSink.next(offset);
+			return offset;
+		}
+
+		synchronized long end() {
+			return next;
+		}
+
+		/**
+		 * Returns the first retained record at or after {@code offset}, or null if there is none yet.
+		 */
+		private synchronized ReceiveReply.LiiklusEventRecord recordFrom(long offset) {
+			long first = Math.max(0L, next - ring.length);
+			long actual = Math.max(offset, first);
+			if (actual >= next) {
+				return null;
+			}
+			return ReceiveReply.LiiklusEventRecord.newBuilder()
+					.setOffset(actual)
+					.setEvent(ring[(int) (actual % ring.length)])
+					.build();
+		}
+
+		Flux<ReceiveReply> read(long offset, boolean follow) {
+			return Flux.defer(() -> {
+				AtomicLong cursor = new AtomicLong(offset);
+				if (!follow) {
+					return upTo(cursor, end());
+				}
+				// subscribe to appends before the initial catch up, so that none is missed in between
+				return Flux.merge(appended.onBackpressureLatest(), Mono.just(-1L))
+						.concatMap(tick -> upTo(cursor, Long.MAX_VALUE));
+			});
+		}
+
+		private Flux<ReceiveReply> upTo(AtomicLong cursor, long end) {
+			return Flux.generate(sink -> {
+				ReceiveReply.LiiklusEventRecord record = cursor.get() < end ? recordFrom(cursor.get()) : null;
+				if (record == null || record.getOffset() >= end) {
+					sink.complete();
+					return;
+				}
+				cursor.set(record.getOffset() + 1);
+				sink.next(ReceiveReply.newBuilder().setLiiklusEventRecord(record).build());
+			});
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package io.projectriff.processor;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.reactivestreams.Subscription;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Flux;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class BatcherTest {
+
+	@Test
+	public void batches_are_bounded_by_count_and_by_bytes() {
+		Batcher batcher = new Batcher(3, 10, Duration.ofMinutes(1));
+
+		List<List<String>> batches = batcher.batches(Flux.just("aaaa", "bbbb", "cccc", "d", "e", "ffffffffffff"), String::length)
+				.collectList()
+				.block(Duration.ofSeconds(5));
+
+		assertThat(batches).containsExactly(
+				Arrays.asList("aaaa", "bbbb"),
+				Arrays.asList("cccc"),
+				Arrays.asList("d", "e"),
+				Arrays.asList("ffffffffffff"));
+	}
+
+	@Test
+	public void batches_that_are_not_full_are_emitted_after_the_linger() {
+		Batcher batcher = new Batcher(100, 1024, Duration.ofMillis(50));
+
+		List<String> first = batcher.batches(Flux.concat(Flux.just("a", "b"), Flux.never()), String::length)
+				.blockFirst(Duration.ofSeconds(5));
+
+		assertThat(first).containsExactly("a", "b");
+	}
+
+	@Test
+	public void batches_lingering_without_demand_wait_for_it() throws InterruptedException {
+		Batcher batcher = new Batcher(100, 1024, Duration.ofMillis(10));
+		List<List<String>> received = new CopyOnWriteArrayList<>();
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		BaseSubscriber<List<String>> subscriber = new BaseSubscriber<List<String>>() {
+			@Override
+			protected void hookOnSubscribe(Subscription subscription) {
+				// requests nothing yet
+			}
+
+			@Override
+			protected void hookOnNext(List<String> batch) {
+				received.add(batch);
+			}
+
+			@Override
+			protected void hookOnError(Throwable throwable) {
+				failure.set(throwable);
+			}
+		};
+		batcher.batches(Flux.concat(Flux.just("a", "b"), Flux.never()), String::length).subscribe(subscriber);
+
+		Thread.sleep(100);
+		assertThat(failure.get()).isNull();
+		assertThat(received).isEmpty();
+
+		subscriber.request(1);
+		assertThat(received).containsExactly(Arrays.asList("a", "b"));
+		subscriber.dispose();
+	}
+
+	@Test
+	public void items_are_only_requested_as_batches_are() {
+		Batcher batcher = new Batcher(3, 1024, Duration.ofMinutes(1));
+		AtomicLong requested = new AtomicLong();
+
+		batcher.batches(Flux.range(0, 100).doOnRequest(requested::addAndGet), i -> 1)
+				.take(2)
+				.blockLast(Duration.ofSeconds(5));
+
+		assertThat(requested.get()).isLessThanOrEqualTo(9L);
+	}
+
+	@Test
+	public void invalid_limits_are_rejected() {
+		assertThatThrownBy(() -> new Batcher(0, 1024, Duration.ofMillis(5))).isInstanceOf(IllegalArgumentException.class);
+		assertThatThrownBy(() -> new Batcher(1, 1024, Duration.ZERO)).isInstanceOf(IllegalArgumentException.class);
+	}
+}
@@ -0,0 +1,143 @@
+package io.projectriff.processor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.github.bsideup.liiklus.protocol.LiiklusEvent;
+import com.github.bsideup.liiklus.protocol.PublishRequest;
+import com.github.bsideup.liiklus.protocol.ReactorLiiklusServiceGrpc;
+import com.google.protobuf.ByteString;
+import io.grpc.CompressorRegistry;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.Server;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.ServerInterceptors;
+import io.grpc.netty.NettyChannelBuilder;
+import io.grpc.netty.NettyServerBuilder;
+import io.projectriff.fakes.FakeLiiklusGateway;
+import io.projectriff.fakes.InMemoryTopic;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class CompressionTest {
+
+	private static final Metadata.Key<String> GRPC_ENCODING = Metadata.Key.of("grpc-encoding", Metadata.ASCII_STRING_MARSHALLER);
+
+	private Server server;
+
+	private ManagedChannel channel;
+
+	@After
+	public void tearDown() {
+		if (channel != null) {
+			channel.shutdownNow();
+		}
+		if (server != null) {
+			server.shutdownNow();
+		}
+	}
+
+	@Test
+	public void codecs_round_trip() throws IOException {
+		byte[] payload = new byte[4096];
+		Arrays.fill(payload, (byte) 'a');
+		for (String codec : Compression.CODECS) {
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+			try (OutputStream out = Compression.COMPRESSORS.lookupCompressor(codec).compress(compressed)) {
+				out.write(payload);
+			}
+			ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+			try (InputStream in = Compression.DECOMPRESSORS.lookupDecompressor(codec).decompress(new ByteArrayInputStream(compressed.toByteArray()))) {
+				byte[] buffer = new byte[1024];
+				for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+					decompressed.write(buffer, 0, read);
+				}
+			}
+
+			assertThat(decompressed.toByteArray()).as(codec).isEqualTo(payload);
+		}
+	}
+
+	@Test
+	public void unknown_codecs_are_rejected() {
+		assertThat(Compression.parse(" ZSTD")).isEqualTo(Compression.ZSTD);
+		assertThatThrownBy(() -> Compression.parse("lz4")).isInstanceOf(IllegalArgumentException.class);
+	}
+
+	@Test
+	public void only_large_messages_are_compressed() {
+		CompressionInterceptor interceptor = new CompressionInterceptor(1024);
+
+		assertThat(interceptor.shouldCompress(publishRequest(16))).isFalse();
+		assertThat(interceptor.shouldCompress(publishRequest(2048))).isTrue();
+	}
+
+	@Test
+	public void jni_codecs_are_only_available_on_the_jvm() {
+		assertThat(Compression.codecs(false)).contains(Compression.SNAPPY, Compression.ZSTD);
+		assertThat(Compression.codecs(true)).containsExactly(Compression.IDENTITY, Compression.GZIP);
+	}
+
+	@Test
+	public void codecs_are_not_registered_jvm_wide() {
+		assertThat(Compression.COMPRESSORS.lookupCompressor(Compression.ZSTD)).isNotNull();
+		assertThat(CompressorRegistry.getDefaultInstance().lookupCompressor(Compression.ZSTD)).isNull();
+		assertThat(CompressorRegistry.getDefaultInstance().lookupCompressor(Compression.SNAPPY)).isNull();
+	}
+
+	@Test
+	public void compressed_publish_requests_reach_the_gateway() throws IOException {
+		FakeLiiklusGateway gateway = new FakeLiiklusGateway(1);
+		List<String> encodings = new CopyOnWriteArrayList<>();
+		ServerInterceptor encodingCapture = new ServerInterceptor() {
+			@Override
+			public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+				encodings.add(String.valueOf(headers.get(GRPC_ENCODING)));
+				return next.startCall(call, headers);
+			}
+		};
+		// over the network, as the in-process transport never compresses anything
+		server = NettyServerBuilder.forPort(0)
+				.decompressorRegistry(Compression.DECOMPRESSORS)
+				.addService(ServerInterceptors.intercept(gateway, encodingCapture))
+				.build()
+				.start();
+		channel = NettyChannelBuilder.forAddress("localhost", server.getPort())
+				.usePlaintext()
+				.compressorRegistry(Compression.COMPRESSORS)
+				.decompressorRegistry(Compression.DECOMPRESSORS)
+				.intercept(new CompressionInterceptor(1024))
+				.build();
+		ReactorLiiklusServiceGrpc.ReactorLiiklusServiceStub stub = Compression.apply(ReactorLiiklusServiceGrpc.newReactorStub(channel), Compression.ZSTD);
+
+		stub.publish(publishRequest(16)).block();
+		stub.publish(publishRequest(65536)).block();
+
+		assertThat(encodings).containsExactly(Compression.ZSTD, Compression.ZSTD);
+		InMemoryTopic topic = gateway.topic("some-topic");
+		assertThat(topic.endOffset(0)).isEqualTo(2L);
+	}
+
+	private static PublishRequest publishRequest(int size) {
+		byte[] payload = new byte[size];
+		Arrays.fill(payload, (byte) '{');
+		return PublishRequest.newBuilder()
+				.setTopic("some-topic")
+				.setLiiklusEvent(LiiklusEvent.newBuilder()
+						.setId("some-id")
+						.setData(ByteString.copyFrom(payload)))
+				.build();
+	}
+}
@@ -0,0 +1,137 @@
+package io.projectriff.processor;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.projectriff.invoker.rpc.InputFrame;
+import io.projectriff.invoker.rpc.OutputFrame;
+import io.projectriff.invoker.rpc.OutputSignal;
+import io.projectriff.invoker.rpc.ReactorRiffGrpc;
+import org.junit.After;
+import org.junit.Test;
+import reactor.core.publisher.Flux;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class FunctionEndpointsTest {
+
+	private final Map<String, ManagedChannel> channels = new HashMap<>();
+
+	private final FunctionEndpoints endpoints = FunctionEndpoints.of(Arrays.asList("a", "b"), this::stub, Duration.ofMinutes(1));
+
+	@After
+	public void tearDown() {
+		channels.values().forEach(ManagedChannel::shutdownNow);
+	}
+
+	@Test
+	public void addresses_are_listed_separated_by_commas_without_duplicates() {
+		assertThat(FunctionEndpoints.parseAddresses("a:8081, b:8081,,a:8081"))
+				.containsExactly("a:8081", "b:8081");
+	}
+
+	@Test
+	public void unmarked_host_names_are_not_expanded() {
+		assertThat(FunctionEndpoints.parseAddresses("localhost:8081"))
+				.containsExactly("localhost:8081");
+	}
+
+	@Test
+	public void loopback_addresses_are_only_kept_once() {
+		List<String> addresses = FunctionEndpoints.parseAddresses("dns:///localhost:8081");
+
+		assertThat(addresses).hasSize(1);
+		assertThat(addresses.get(0)).isIn("127.0.0.1:8081", "[0:0:0:0:0:0:0:1]:8081");
+	}
+
+	@Test
+	public void resolved_ipv6_addresses_are_bracketed() {
+		assertThat(FunctionEndpoints.parseAddresses("dns:///[2001:db8::1]:8081, dns:///192.0.2.1:8081"))
+				.containsExactly("[2001:db8:0:0:0:0:0:1]:8081", "192.0.2.1:8081");
+	}
+
+	@Test
+	public void unresolvable_addresses_are_left_to_the_channel() {
+		assertThat(FunctionEndpoints.parseAddresses("dns:///unknown.invalid:8081"))
+				.containsExactly("dns:///unknown.invalid:8081");
+	}
+
+	@Test
+	public void the_least_loaded_endpoint_is_picked() {
+		FunctionEndpoints.Endpoint first = endpoints.acquire(null, null);
+		FunctionEndpoints.Endpoint second = endpoints.acquire(first, null);
+
+		assertThat(second).isNotSameAs(first);
+	}
+
+	@Test
+	public void the_previous_endpoint_is_kept_when_as_loaded_as_others() {
+		FunctionEndpoints.Endpoint b = endpoints.all().get(1);
+
+		for (int i = 0; i < 3; i++) {
+			FunctionEndpoints.Endpoint picked = endpoints.acquire(b, null);
+			endpoints.release(picked, null);
+
+			assertThat(picked).isSameAs(b);
+		}
+	}
+
+	@Test
+	public void failed_endpoints_are_ejected() {
+		FunctionEndpoints.Endpoint a = endpoints.acquire(null, null);
+		endpoints.release(a, new RuntimeException("boom"));
+
+		for (int i = 0; i < 3; i++) {
+			FunctionEndpoints.Endpoint picked = endpoints.acquire(a, null);
+			endpoints.release(picked, null);
+
+			assertThat(picked).isNotSameAs(a);
+		}
+	}
+
+	@Test
+	public void windows_failing_before_any_result_are_invoked_again_on_another_endpoint() {
+		ReactorRiffGrpc.ReactorRiffStub failing = endpoints.all().get(0).getStub();
+		BalancedFunctionInvoker invoker = new BalancedFunctionInvoker(endpoints, stub -> stub == failing
+				? window -> window.thenMany(Flux.error(Status.UNAVAILABLE.asRuntimeException()))
+				: window -> window.map(frame -> OutputSignal.newBuilder()
+						.setData(OutputFrame.newBuilder().setPayload(frame.getPayload()))
+						.build()));
+
+		List<OutputSignal> results = invoker.invoke(Flux.range(0, 3).map(i -> InputFrame.getDefaultInstance()))
+				.collectList()
+				.block(Duration.ofSeconds(5));
+
+		assertThat(results).hasSize(3);
+	}
+
+	@Test
+	public void function_failures_are_neither_retried_nor_ejected() {
+		AtomicInteger invocations = new AtomicInteger();
+		BalancedFunctionInvoker invoker = new BalancedFunctionInvoker(endpoints, stub -> window -> window
+				.doOnSubscribe(subscription -> invocations.incrementAndGet())
+				.thenMany(Flux.error(Status.UNKNOWN.withDescription("poison record").asRuntimeException())));
+
+		assertThatThrownBy(() -> invoker.invoke(Flux.just(InputFrame.getDefaultInstance())).blockLast(Duration.ofSeconds(5)))
+				.hasMessageContaining("poison record");
+		assertThat(invocations.get()).isEqualTo(1);
+
+		FunctionEndpoints.Endpoint first = endpoints.acquire(null, null);
+		FunctionEndpoints.Endpoint second = endpoints.acquire(first, null);
+		assertThat(Arrays.asList(first, second)).containsExactlyInAnyOrderElementsOf(endpoints.all());
+	}
+
+	private ReactorRiffGrpc.ReactorRiffStub stub(String address) {
+		ManagedChannel channel = InProcessChannelBuilder.forName(address).build();
+		channels.put(address, channel);
+		return ReactorRiffGrpc.newReactorStub(channel);
+	}
+}
@@ -0,0 +1,181 @@
+package io.projectriff.processor;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.protobuf.ByteString;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.projectriff.fakes.FakeRiffFunction;
+import io.projectriff.invoker.rpc.InputFrame;
+import io.projectriff.invoker.rpc.InputSignal;
+import io.projectriff.invoker.rpc.OutputFrame;
+import io.projectriff.invoker.rpc.OutputSignal;
+import io.projectriff.invoker.rpc.ReactorRiffGrpc;
+import io.projectriff.invoker.rpc.StartFrame;
+import io.projectriff.invoker.rpc.WindowBoundary;
+import org.junit.After;
+import org.junit.Test;
+import reactor.core.publisher.Flux;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class FunctionInvokerTest {
+
+	private static final StartFrame START = StartFrame.newBuilder().addInputNames("in").addOutputNames("out").build();
+
+	private Server server;
+
+	private ManagedChannel channel;
+
+	@After
+	public void tearDown() {
+		channel.shutdownNow();
+		server.shutdownNow();
+	}
+
+	@Test
+	public void persistent_invoker_splits_results_per_window() throws IOException {
+		ReactorRiffGrpc.ReactorRiffStub stub = serve(new FakeRiffFunction());
+		FunctionInvoker invoker = FunctionInvoker.persistent(stub, start(FunctionInvoker.WINDOW_BOUNDARIES), FrameBatching.NONE, HeaderEncoding.NONE);
+
+		assertThat(payloads(invoker.invoke(frames("a", "b")))).containsExactly("a", "b");
+		assertThat(payloads(invoker.invoke(frames()))).isEmpty();
+		assertThat(payloads(invoker.invoke(frames("c")))).containsExactly("c");
+		invoker.close();
+	}
+
+	@Test
+	public void persistent_invoker_sends_batches() throws IOException {
+		ReactorRiffGrpc.ReactorRiffStub stub = serve(new FakeRiffFunction());
+		FunctionInvoker invoker = FunctionInvoker.persistent(stub,
+				start(FunctionInvoker.WINDOW_BOUNDARIES, FunctionInvoker.BATCHES),
+				new FrameBatching(2, 1024, Duration.ofMillis(10)),
+				HeaderEncoding.NONE);
+
+		assertThat(payloads(invoker.invoke(frames("a", "b", "c")))).containsExactly("a", "b", "c");
+		assertThat(payloads(invoker.invoke(frames("d")))).containsExactly("d");
+		invoker.close();
+	}
+
+	@Test
+	public void persistent_invoker_fails_on_boundaries_of_other_windows() throws IOException {
+		ReactorRiffGrpc.ReactorRiffStub stub = serve(new ReactorRiffGrpc.RiffImplBase() {
+			@Override
+			public Flux<OutputSignal> invoke(Flux<InputSignal> request) {
+				return request.filter(InputSignal::hasBoundary)
+						.map(signal -> OutputSignal.newBuilder()
+								.setBoundary(WindowBoundary.newBuilder().setWindow(signal.getBoundary().getWindow() + 1))
+								.build());
+			}
+		});
+		FunctionInvoker invoker = FunctionInvoker.persistent(stub, start(FunctionInvoker.WINDOW_BOUNDARIES), FrameBatching.NONE, HeaderEncoding.NONE);
+
+		assertThatThrownBy(() -> payloads(invoker.invoke(frames("a"))))
+				.isInstanceOf(IllegalStateException.class)
+				.hasMessageContaining("boundary of window 1, while window 0 is in flight");
+		invoker.close();
+	}
+
+	@Test
+	public void persistent_invoker_only_requests_results_as_they_are_requested() throws IOException {
+		AtomicLong requested = new AtomicLong();
+		ReactorRiffGrpc.ReactorRiffStub stub = serve(new ReactorRiffGrpc.RiffImplBase() {
+			@Override
+			public Flux<OutputSignal> invoke(Flux<InputSignal> request) {
+				return request.filter(InputSignal::hasData)
+						.next()
+						.flatMapMany(signal -> Flux.range(0, 10_000))
+						.map(i -> OutputSignal.newBuilder().setData(OutputFrame.newBuilder().setPayload(ByteString.copyFromUtf8("r" + i))).build())
+						.doOnRequest(requested::addAndGet);
+			}
+		});
+		FunctionInvoker invoker = FunctionInvoker.persistent(stub, start(FunctionInvoker.WINDOW_BOUNDARIES), FrameBatching.NONE, HeaderEncoding.NONE);
+
+		List<OutputSignal> first = invoker.invoke(frames("a")).limitRequest(5).collectList().block(Duration.ofSeconds(5));
+
+		assertThat(first).hasSize(5);
+		assertThat(requested.get()).isLessThan(10_000L);
+		invoker.close();
+	}
+
+	@Test
+	public void per_window_invoker_sends_batches() throws IOException {
+		ReactorRiffGrpc.ReactorRiffStub stub = serve(new FakeRiffFunction());
+		FunctionInvoker invoker = FunctionInvoker.perWindow(stub, start(FunctionInvoker.BATCHES), new FrameBatching(10, 1024, Duration.ofMillis(10)), HeaderEncoding.NONE);
+
+		assertThat(payloads(invoker.invoke(frames("a", "b", "c")))).containsExactly("a", "b", "c");
+	}
+
+	@Test
+	public void header_dictionaries_are_transparent_to_the_function() throws IOException {
+		ReactorRiffGrpc.ReactorRiffStub stub = serve(new FakeRiffFunction());
+		HeaderEncoding headers = new HeaderEncoding(16);
+		FunctionInvoker invoker = FunctionInvoker.perWindow(stub, start(FunctionInvoker.HEADER_DICTIONARY), FrameBatching.NONE, headers);
+		InputFrame frame = InputFrame.newBuilder()
+				.setPayload(ByteString.copyFromUtf8("a"))
+				.putHeaders("traceparent", "00-0af7651916cd43dd8448eb211c80319c-b7ad6b7169203331-01")
+				.putHeaders("partitionkey", "some-key")
+				.build();
+
+		for (int window = 0; window < 2; window++) {
+			List<OutputFrame> results = invoker.invoke(Flux.just(frame, frame))
+					.transform(Processor::extractWindowResults)
+					.collectList()
+					.block(Duration.ofSeconds(5));
+			assertThat(results).extracting(OutputFrame::getHeadersMap).containsOnly(frame.getHeadersMap());
+		}
+	}
+
+	@Test
+	public void capabilities_are_negotiated() throws IOException {
+		ReactorRiffGrpc.ReactorRiffStub stub = serve(new FakeRiffFunction());
+
+		assertThat(FunctionInvoker.negotiate(stub, START, Arrays.asList(FunctionInvoker.WINDOW_BOUNDARIES, "unknown"), Duration.ofSeconds(5)).block())
+				.containsExactly(FunctionInvoker.WINDOW_BOUNDARIES);
+	}
+
+	@Test
+	public void functions_unaware_of_capabilities_fall_back_to_one_stream_per_window() throws IOException {
+		ReactorRiffGrpc.ReactorRiffStub stub = serve(new ReactorRiffGrpc.RiffImplBase() {
+			@Override
+			public Flux<OutputSignal> invoke(Flux<InputSignal> request) {
+				return request.filter(InputSignal::hasData)
+						.map(signal -> OutputSignal.newBuilder()
+								.setData(OutputFrame.newBuilder().setPayload(signal.getData().getPayload()))
+								.build());
+			}
+		});
+
+		assertThat(FunctionInvoker.negotiate(stub, START, Arrays.asList(FunctionInvoker.WINDOW_BOUNDARIES), Duration.ofMillis(200)).block()).isEmpty();
+		assertThat(payloads(FunctionInvoker.perWindow(stub, START, FrameBatching.NONE, HeaderEncoding.NONE).invoke(frames("a")))).containsExactly("a");
+	}
+
+	private ReactorRiffGrpc.ReactorRiffStub serve(ReactorRiffGrpc.RiffImplBase function) throws IOException {
+		String name = InProcessServerBuilder.generateName();
+		server = InProcessServerBuilder.forName(name).addService(function).build().start();
+		channel = InProcessChannelBuilder.forName(name).build();
+		return ReactorRiffGrpc.newReactorStub(channel);
+	}
+
+	private static StartFrame start(String... capabilities) {
+		return START.toBuilder().addAllCapabilities(Arrays.asList(capabilities)).build();
+	}
+
+	private static Flux<InputFrame> frames(String... payloads) {
+		return Flux.just(payloads).map(payload -> InputFrame.newBuilder().setPayload(ByteString.copyFromUtf8(payload)).build());
+	}
+
+	private static List<String> payloads(Flux<OutputSignal> results) {
+		return results.transform(Processor::extractWindowResults)
+				.map(frame -> frame.getPayload().toStringUtf8())
+				.collectList()
+				.block(Duration.ofSeconds(5));
+	}
+}
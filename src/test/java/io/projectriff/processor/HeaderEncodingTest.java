@@ -0,0 +1,55 @@
+package io.projectriff.processor;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import com.google.protobuf.ByteString;
+import io.projectriff.invoker.rpc.Header;
+import io.projectriff.invoker.rpc.InputFrame;
+import io.projectriff.invoker.rpc.InputSignal;
+import org.junit.Test;
+import reactor.core.publisher.Flux;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HeaderEncodingTest {
+
+	private final HeaderEncoding headers = new HeaderEncoding(16);
+
+	@Test
+	public void only_repeated_pairs_enter_the_dictionary() {
+		List<InputSignal> encoded = headers.newStream()
+				.encode(Flux.range(0, 3).map(i -> signal("00-0af7651916cd43dd8448eb211c8031" + i + "-b7ad6b7169203331-01")))
+				.collectList()
+				.block(Duration.ofSeconds(5));
+
+		assertThat(encoded.stream().filter(InputSignal::hasDictionary).count()).isEqualTo(1L);
+		assertThat(encoded.get(0).getData().getHeadersMap()).containsKeys("traceparent", "partitionkey");
+		assertThat(keys(headers.newStream().initial())).containsExactly("partitionkey");
+	}
+
+	@Test
+	public void pairs_seen_by_previous_streams_count_as_repeated() {
+		headers.newStream().encode(Flux.just(signal("some-trace"))).blockLast(Duration.ofSeconds(5));
+
+		HeaderEncoding.Encoder second = headers.newStream();
+		List<InputSignal> encoded = second.encode(Flux.just(signal("other-trace"))).collectList().block(Duration.ofSeconds(5));
+
+		assertThat(encoded.get(0).getDictionary().getHeadersList()).extracting(Header::getKey).containsExactly("partitionkey");
+		assertThat(encoded.get(1).getData().getHeadersMap()).containsOnlyKeys("traceparent");
+	}
+
+	private static InputSignal signal(String traceparent) {
+		return InputSignal.newBuilder()
+				.setData(InputFrame.newBuilder()
+						.setPayload(ByteString.copyFromUtf8("a"))
+						.putHeaders("traceparent", traceparent)
+						.putHeaders("partitionkey", "some-key"))
+				.build();
+	}
+
+	private static List<String> keys(List<Header> dictionary) {
+		return dictionary.stream().map(Header::getKey).collect(Collectors.toList());
+	}
+}
@@ -0,0 +1,98 @@
+package io.projectriff.processor;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Test;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class InFlightLimiterTest {
+
+	private final List<Integer> received = new CopyOnWriteArrayList<>();
+
+	@Test
+	public void records_are_let_in_as_others_complete() {
+		InFlightLimiter limiter = new InFlightLimiter(10, 0, Duration.ZERO, PipelineMetrics.disabled());
+		Disposable subscription = limiter.gate(Flux.range(0, 100)).subscribe(received::add);
+
+		assertThat(received).hasSize(10);
+
+		limiter.completed(4, 0L);
+
+		assertThat(received).hasSize(14);
+		assertThat(limiter.getDemand()).isZero();
+		subscription.dispose();
+	}
+
+	@Test
+	public void no_limit_leaves_records_alone() {
+		InFlightLimiter limiter = new InFlightLimiter(0, 0, Duration.ZERO, PipelineMetrics.disabled());
+		limiter.gate(Flux.range(0, 100)).subscribe(received::add);
+
+		assertThat(received).hasSize(100);
+	}
+
+	@Test
+	public void adaptive_limit_grows_while_under_target_and_saturated() {
+		InFlightLimiter limiter = new InFlightLimiter(1000, 0, Duration.ofSeconds(1), PipelineMetrics.disabled());
+		Disposable subscription = limiter.gate(Flux.range(0, 10_000)).subscribe(received::add);
+
+		assertThat(limiter.getLimit()).isEqualTo(64);
+
+		limiter.completed(64, Duration.ofMillis(10).toNanos());
+
+		assertThat(limiter.getLimit()).isEqualTo(128);
+		assertThat(received).hasSize(64 + 128);
+		subscription.dispose();
+	}
+
+	@Test
+	public void adaptive_limit_shrinks_above_target() throws InterruptedException {
+		InFlightLimiter limiter = new InFlightLimiter(1000, 0, Duration.ofMillis(1), PipelineMetrics.disabled());
+		Disposable subscription = limiter.gate(Flux.range(0, 10_000)).subscribe(received::add);
+		for (int i = 0; i < 4; i++) {
+			limiter.completed(64, 0L);
+		}
+		int grown = limiter.getLimit();
+		Thread.sleep(2);
+
+		limiter.completed(64, Duration.ofMillis(5).toNanos());
+
+		assertThat(limiter.getLimit()).isLessThan(grown).isGreaterThanOrEqualTo(64);
+		subscription.dispose();
+	}
+
+	@Test
+	public void adaptive_limit_never_shrinks_below_what_windows_need_to_close() throws InterruptedException {
+		// windows of 100 records over 2 rails: below 199 records, both rails could be stuck with 99 records each
+		int minLimit = Processor.minInFlightLimit(WindowingStrategies.count(100), 2);
+		InFlightLimiter limiter = new InFlightLimiter(1000, minLimit, Duration.ofMillis(1), PipelineMetrics.disabled());
+		Disposable subscription = limiter.gate(Flux.range(0, 10_000)).subscribe(received::add);
+
+		assertThat(limiter.getLimit()).isEqualTo(199);
+		assertThat(received).hasSize(199);
+
+		Thread.sleep(2);
+		limiter.completed(100, Duration.ofMillis(5).toNanos());
+
+		assertThat(limiter.getLimit()).isEqualTo(199);
+		subscription.dispose();
+	}
+
+	@Test
+	public void fixed_limit_must_let_windows_close() {
+		assertThatThrownBy(() -> new InFlightLimiter(100, 199, Duration.ZERO, PipelineMetrics.disabled()))
+				.isInstanceOf(IllegalArgumentException.class);
+	}
+
+	@Test
+	public void adaptive_limit_requires_a_maximum() {
+		assertThatThrownBy(() -> new InFlightLimiter(0, 0, Duration.ofSeconds(1), PipelineMetrics.disabled()))
+				.isInstanceOf(IllegalArgumentException.class);
+	}
+}
@@ -0,0 +1,60 @@
+package io.projectriff.processor;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MonotonicEventIdGeneratorTest {
+
+	private final MonotonicEventIdGenerator generator = new MonotonicEventIdGenerator();
+
+	@Test
+	public void ids_are_26_crockford_base32_characters() {
+		assertThat(generator.nextId()).matches("[0-9A-HJKMNP-TV-Z]{26}");
+	}
+
+	@Test
+	public void ids_from_a_single_thread_are_increasing() {
+		List<String> ids = IntStream.range(0, 1000)
+				.mapToObj(i -> generator.nextId())
+				.collect(Collectors.toList());
+
+		assertThat(ids).isSorted().doesNotHaveDuplicates();
+	}
+
+	@Test
+	public void ids_from_concurrent_threads_are_unique() throws InterruptedException {
+		Set<String> ids = ConcurrentHashMap.newKeySet();
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		CountDownLatch done = new CountDownLatch(4);
+		for (int t = 0; t < 4; t++) {
+			executor.execute(() -> {
+				for (int i = 0; i < 10_000; i++) {
+					ids.add(generator.nextId());
+				}
+				done.countDown();
+			});
+		}
+
+		assertThat(done.await(10, TimeUnit.SECONDS)).isTrue();
+		executor.shutdown();
+		assertThat(ids).hasSize(40_000);
+	}
+
+	@Test
+	public void distinct_instances_do_not_collide() {
+		MonotonicEventIdGenerator other = new MonotonicEventIdGenerator();
+
+		assertThat(generator.nextId().substring(10, 16)).isNotEqualTo(other.nextId().substring(10, 16));
+	}
+}
@@ -0,0 +1,97 @@
+package io.projectriff.processor;
+
+import java.time.Duration;
+import java.util.HashMap;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class OffsetTrackerTest {
+
+	private final OffsetTracker.PartitionOffsets partition = new OffsetTracker.PartitionOffsets(null, "topic", 0, null);
+
+	@Test
+	public void nothing_is_committed_until_records_complete() {
+		partition.track(0L);
+		partition.track(1L);
+
+		assertThat(partition.takeCommitted()).isEqualTo(-1L);
+	}
+
+	@Test
+	public void commits_highest_contiguous_completed_offset() {
+		partition.track(3L);
+		partition.track(4L);
+		partition.track(7L);
+		partition.completed(3L);
+		partition.completed(4L);
+
+		assertThat(partition.takeCommitted()).isEqualTo(4L);
+	}
+
+	@Test
+	public void out_of_order_completion_waits_for_earlier_records() {
+		partition.track(0L);
+		partition.track(1L);
+		partition.track(2L);
+		partition.completed(2L);
+		partition.completed(1L);
+
+		assertThat(partition.takeCommitted()).isEqualTo(-1L);
+
+		partition.completed(0L);
+
+		assertThat(partition.takeCommitted()).isEqualTo(2L);
+	}
+
+	@Test
+	public void committed_offset_is_only_taken_once() {
+		partition.track(0L);
+		partition.completed(0L);
+
+		assertThat(partition.takeCommitted()).isEqualTo(0L);
+		assertThat(partition.takeCommitted()).isEqualTo(-1L);
+	}
+
+	@Test
+	public void completing_an_untracked_offset_is_ignored() {
+		partition.track(5L);
+		partition.completed(4L);
+
+		assertThat(partition.takeCommitted()).isEqualTo(-1L);
+	}
+
+	@Test
+	public void revoked_partitions_start_afresh_and_ignore_records_of_the_previous_generation() {
+		OffsetTracker tracker = new OffsetTracker("group", 100, Duration.ofHours(1), Duration.ZERO, PipelineMetrics.disabled());
+		StreamBinding input = new StreamBinding("gateway", "topic", new HashMap<>());
+		OffsetTracker.PartitionOffsets revoked = tracker.partition(input, null, 0);
+		revoked.received(1L);
+		revoked.track(0L);
+		revoked.track(1L);
+		revoked.completed(0L);
+
+		tracker.release(input, revoked, true);
+		revoked.completed(1L);
+
+		// only what was committed upon revocation is acked
+		assertThat(revoked.takeCommitted()).isEqualTo(0L);
+		OffsetTracker.PartitionOffsets reassigned = tracker.partition(input, null, 0);
+		assertThat(reassigned).isNotSameAs(revoked);
+		assertThat(reassigned.getLastReceived()).isEqualTo(-1L);
+	}
+
+	@Test
+	public void partition_state_survives_failed_receive_streams() {
+		OffsetTracker tracker = new OffsetTracker("group", 100, Duration.ofHours(1), Duration.ZERO, PipelineMetrics.disabled());
+		StreamBinding input = new StreamBinding("gateway", "topic", new HashMap<>());
+		OffsetTracker.PartitionOffsets failed = tracker.partition(input, null, 0);
+		failed.received(1L);
+
+		tracker.release(input, failed, false);
+
+		assertThat(tracker.partition(input, null, 0)).isSameAs(failed);
+		assertThat(failed.getLastReceived()).isEqualTo(1L);
+	}
+}
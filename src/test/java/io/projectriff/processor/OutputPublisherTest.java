@@ -0,0 +1,211 @@
+package io.projectriff.processor;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.bsideup.liiklus.protocol.PublishBatchReply;
+import com.github.bsideup.liiklus.protocol.PublishBatchRequest;
+import com.github.bsideup.liiklus.protocol.PublishReply;
+import com.github.bsideup.liiklus.protocol.PublishRequest;
+import com.github.bsideup.liiklus.protocol.ReactorLiiklusServiceGrpc;
+import com.google.protobuf.ByteString;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.projectriff.fakes.FakeLiiklusGateway;
+import io.projectriff.invoker.rpc.OutputFrame;
+import org.junit.After;
+import org.junit.Test;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class OutputPublisherTest {
+
+	private static final StreamBinding OUTPUT = new StreamBinding("in-process", "out", Collections.singletonMap(StreamBinding.CONTENT_TYPE, "text/plain"));
+
+	private final AtomicInteger batches = new AtomicInteger();
+
+	private Server server;
+
+	private ManagedChannel channel;
+
+	@After
+	public void tearDown() {
+		channel.shutdownNow();
+		server.shutdownNow();
+	}
+
+	@Test
+	public void results_are_published_in_batches() throws IOException {
+		FakeLiiklusGateway gateway = new FakeLiiklusGateway(1) {
+			@Override
+			public Flux<PublishBatchReply> publishBatch(Flux<PublishBatchRequest> request) {
+				return super.publishBatch(request.doOnNext(batch -> batches.incrementAndGet()));
+			}
+		};
+		OutputPublisher publisher = publisher(gateway, new PublishBatching(4, 1024 * 1024, Duration.ofMillis(100)));
+
+		publisher.publish(results(10)).block(Duration.ofSeconds(5));
+
+		assertThat(gateway.topic("out").endOffset(0)).isEqualTo(10L);
+		assertThat(batches.get()).isEqualTo(3);
+	}
+
+	@Test
+	public void batches_span_windows_published_concurrently() throws IOException {
+		FakeLiiklusGateway gateway = new FakeLiiklusGateway(1) {
+			@Override
+			public Flux<PublishBatchReply> publishBatch(Flux<PublishBatchRequest> request) {
+				return super.publishBatch(request.doOnNext(batch -> batches.incrementAndGet()));
+			}
+		};
+		OutputPublisher publisher = publisher(gateway, new PublishBatching(10, 1024 * 1024, Duration.ofMillis(200)));
+
+		Mono.when(publisher.publish(results(3)), publisher.publish(results(3))).block(Duration.ofSeconds(5));
+
+		assertThat(gateway.topic("out").endOffset(0)).isEqualTo(6L);
+		assertThat(batches.get()).isEqualTo(1);
+	}
+
+	@Test
+	public void results_are_held_back_while_the_gateway_does_not_reply() throws Exception {
+		AtomicLong sent = new AtomicLong();
+		FakeLiiklusGateway gateway = new FakeLiiklusGateway(1) {
+			@Override
+			public Flux<PublishBatchReply> publishBatch(Flux<PublishBatchRequest> request) {
+				// only ever completes the probe, without replying
+				return request.doOnNext(batch -> sent.addAndGet(batch.getRequestsCount())).thenMany(Flux.empty());
+			}
+		};
+		OutputPublisher publisher = publisher(gateway, new PublishBatching(4, 1024 * 1024, Duration.ofMillis(10)));
+
+		Disposable publishing = publisher.publish(results(1000)).subscribe();
+		Thread.sleep(300);
+
+		assertThat(sent.get()).isPositive().isLessThanOrEqualTo(PublishBatchStream.MAX_BATCHES_AWAITING_REPLY * 4L);
+		publishing.dispose();
+	}
+
+	@Test
+	public void results_are_published_in_order_and_acked_after_every_earlier_publish() throws IOException {
+		List<String> received = new CopyOnWriteArrayList<>();
+		List<String> replied = new CopyOnWriteArrayList<>();
+		AtomicInteger inFlight = new AtomicInteger();
+		AtomicInteger maxInFlight = new AtomicInteger();
+		FakeLiiklusGateway gateway = new FakeLiiklusGateway(1) {
+			@Override
+			public Mono<PublishReply> publish(Mono<PublishRequest> request) {
+				return request.flatMap(publish -> {
+					String result = publish.getLiiklusEvent().getData().toStringUtf8();
+					received.add(result);
+					maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+					// the first result is replied to last
+					Duration latency = Duration.ofMillis(result.equals("result-0") ? 300 : 10);
+					return super.publish(Mono.just(publish))
+							.delayElement(latency)
+							.doOnNext(reply -> {
+								inFlight.decrementAndGet();
+								replied.add(result);
+							});
+				});
+			}
+		};
+		OutputPublisher publisher = publisher(gateway, PublishBatching.NONE, 4);
+
+		publisher.publish(results(4))
+				.doOnSuccess(v -> replied.add("acked"))
+				.block(Duration.ofSeconds(5));
+
+		assertThat(received).containsExactly("result-0", "result-1", "result-2", "result-3");
+		assertThat(maxInFlight.get()).isGreaterThan(1);
+		assertThat(replied).endsWith("result-0", "acked")
+				.containsExactlyInAnyOrderElementsOf(Arrays.asList("result-0", "result-1", "result-2", "result-3", "acked"));
+	}
+
+	@Test
+	public void replies_must_cover_every_request_of_their_batch() throws IOException {
+		FakeLiiklusGateway gateway = new FakeLiiklusGateway(1) {
+			@Override
+			public Flux<PublishBatchReply> publishBatch(Flux<PublishBatchRequest> request) {
+				return request.map(batch -> PublishBatchReply.newBuilder().addReplies(PublishReply.getDefaultInstance()).build());
+			}
+		};
+		OutputPublisher publisher = publisher(gateway, new PublishBatching(4, 1024 * 1024, Duration.ofMillis(100)));
+
+		assertThatThrownBy(() -> publisher.publish(results(4)).block(Duration.ofSeconds(5)))
+				.isInstanceOf(IllegalStateException.class)
+				.hasMessageContaining("replied with 1 events for a batch of 4");
+	}
+
+	@Test
+	public void streams_completing_with_batches_awaiting_a_reply_fail() throws IOException {
+		FakeLiiklusGateway gateway = new FakeLiiklusGateway(1) {
+			@Override
+			public Flux<PublishBatchReply> publishBatch(Flux<PublishBatchRequest> request) {
+				return request.next().thenMany(Flux.empty());
+			}
+		};
+		OutputPublisher publisher = publisher(gateway, new PublishBatching(4, 1024 * 1024, Duration.ofMillis(100)));
+
+		assertThatThrownBy(() -> publisher.publish(results(4)).block(Duration.ofSeconds(5)))
+				.isInstanceOf(IllegalStateException.class)
+				.hasMessageContaining("awaiting a reply");
+	}
+
+	@Test
+	public void gateways_without_batches_are_published_to_one_event_at_a_time() throws IOException {
+		FakeLiiklusGateway gateway = new FakeLiiklusGateway(1) {
+			@Override
+			public Flux<PublishBatchReply> publishBatch(Flux<PublishBatchRequest> request) {
+				batches.incrementAndGet();
+				return Flux.error(Status.UNIMPLEMENTED.asException());
+			}
+		};
+		OutputPublisher publisher = publisher(gateway, new PublishBatching(4, 1024 * 1024, Duration.ofSeconds(1)));
+
+		publisher.publish(results(10)).block(Duration.ofSeconds(5));
+		publisher.publish(results(10)).block(Duration.ofSeconds(5));
+
+		assertThat(gateway.topic("out").endOffset(0)).isEqualTo(20L);
+		// the gateway is only probed once
+		assertThat(batches.get()).isEqualTo(1);
+	}
+
+	private OutputPublisher publisher(FakeLiiklusGateway gateway, PublishBatching batching) throws IOException {
+		return publisher(gateway, batching, 1);
+	}
+
+	private OutputPublisher publisher(FakeLiiklusGateway gateway, PublishBatching batching, int maxInFlight) throws IOException {
+		String name = InProcessServerBuilder.generateName();
+		// calls are handled as they are made, so that the gateway sees publish requests in the order they are sent
+		server = InProcessServerBuilder.forName(name).directExecutor().addService(gateway).build().start();
+		channel = InProcessChannelBuilder.forName(name).build();
+		return new OutputPublisher(Collections.singletonList(OUTPUT),
+				Collections.singletonMap(OUTPUT.getGatewayAddress(), ReactorLiiklusServiceGrpc.newReactorStub(channel)),
+				"some-group",
+				maxInFlight,
+				EventIdGenerator.monotonic(),
+				batching,
+				PipelineMetrics.disabled());
+	}
+
+	private static Flux<OutputFrame> results(int count) {
+		return Flux.range(0, count)
+				.map(i -> OutputFrame.newBuilder()
+						.setPayload(ByteString.copyFromUtf8("result-" + i))
+						.setContentType("text/plain")
+						.build());
+	}
+}
@@ -0,0 +1,25 @@
+package io.projectriff.processor;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PipelineMetricsTest {
+
+	@Test
+	public void groups_that_acked_nothing_lag_by_the_whole_partition() {
+		assertThat(PipelineMetrics.lag(9L, -1L)).isEqualTo(10L);
+		assertThat(PipelineMetrics.lag(0L, -1L)).isEqualTo(1L);
+	}
+
+	@Test
+	public void groups_that_acked_the_end_offset_are_caught_up() {
+		assertThat(PipelineMetrics.lag(9L, 9L)).isEqualTo(0L);
+		assertThat(PipelineMetrics.lag(9L, 6L)).isEqualTo(3L);
+	}
+
+	@Test
+	public void groups_ahead_of_a_stale_end_offset_do_not_lag() {
+		assertThat(PipelineMetrics.lag(9L, 12L)).isEqualTo(0L);
+	}
+}
@@ -0,0 +1,181 @@
+package io.projectriff.processor;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.github.bsideup.liiklus.protocol.LiiklusEvent;
+import com.google.protobuf.ByteString;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.projectriff.fakes.FakeLiiklusGateway;
+import io.projectriff.fakes.FakeRiffFunction;
+import io.projectriff.fakes.InMemoryTopic;
+import io.projectriff.invoker.rpc.ReactorRiffGrpc;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ProcessorTest {
+
+	private static final int PARTITIONS = 2;
+
+	private static final LiiklusEvent EVENT = LiiklusEvent.newBuilder()
+			.setId("some-id")
+			.setDataContentType("text/plain")
+			.setData(ByteString.copyFromUtf8("hello"))
+			.build();
+
+	private final FakeLiiklusGateway gateway = new FakeLiiklusGateway(PARTITIONS);
+
+	private Server server;
+
+	private ManagedChannel channel;
+
+	private Processor processor;
+
+	@Before
+	public void setUp() throws IOException {
+		String name = InProcessServerBuilder.generateName();
+		server = InProcessServerBuilder.forName(name)
+				.addService(gateway)
+				.addService(new FakeRiffFunction())
+				.build()
+				.start();
+		channel = InProcessChannelBuilder.forName(name).build();
+	}
+
+	@After
+	public void tearDown() throws InterruptedException {
+		if (processor != null) {
+			processor.drain(Duration.ofSeconds(5));
+		}
+		channel.shutdownNow();
+		server.shutdownNow();
+	}
+
+	@Test
+	public void receive_resumes_after_the_last_record_received_upon_gateway_disconnect() throws InterruptedException {
+		Map<String, String> env = new HashMap<>();
+		env.put(ProcessorSettings.WINDOWING, "count:10");
+		env.put(ProcessorSettings.RESUBSCRIBE_BACKOFF, "10ms");
+		// nothing gets acked, so that resuming from the committed offsets would replay everything
+		env.put(ProcessorSettings.ACK_INTERVAL, "1h");
+		env.put(ProcessorSettings.ACK_BATCH_SIZE, "1000000");
+		start(ProcessorSettings.fromMap(env));
+		gateway.topic("in").fill(50, EVENT);
+		awaitPublished(100);
+
+		gateway.disconnect();
+		gateway.topic("in").fill(50, EVENT);
+		awaitPublished(200);
+		Thread.sleep(200);
+
+		assertThat(published()).isEqualTo(200L);
+	}
+
+	@Test
+	public void receive_resumes_after_offset_zero() throws InterruptedException {
+		Map<String, String> env = new HashMap<>();
+		env.put(ProcessorSettings.WINDOWING, "count:1");
+		env.put(ProcessorSettings.RESUBSCRIBE_BACKOFF, "10ms");
+		env.put(ProcessorSettings.ACK_INTERVAL, "1h");
+		env.put(ProcessorSettings.ACK_BATCH_SIZE, "1000000");
+		start(ProcessorSettings.fromMap(env));
+		// a single record per partition, so that the last received offset is 0, which reads as unset on the wire
+		gateway.topic("in").fill(1, EVENT);
+		awaitPublished(2);
+
+		gateway.disconnect();
+		gateway.topic("in").fill(1, EVENT);
+		awaitPublished(4);
+		Thread.sleep(200);
+
+		assertThat(published()).isEqualTo(4L);
+	}
+
+	@Test
+	public void records_in_flight_upon_shutdown_are_processed_and_acked() throws InterruptedException {
+		Map<String, String> env = new HashMap<>();
+		// windows that would only close long after shutdown
+		env.put(ProcessorSettings.WINDOWING, "time:1h");
+		env.put(ProcessorSettings.ACK_INTERVAL, "1h");
+		start(ProcessorSettings.fromMap(env));
+		gateway.topic("in").fill(10, EVENT);
+		Thread.sleep(500);
+
+		assertThat(published()).isZero();
+		assertThat(processor.drain(Duration.ofSeconds(5))).isTrue();
+
+		assertThat(published()).isEqualTo(20L);
+		assertThat(gateway.getAcked()).containsEntry("some-group/in/0", 9L).containsEntry("some-group/in/1", 9L);
+	}
+
+	@Test
+	public void adaptive_in_flight_limit_leaves_room_for_count_windows_on_every_rail() throws InterruptedException {
+		Map<String, String> env = new HashMap<>();
+		// larger than the initial adaptive limit, which used to stall for good
+		env.put(ProcessorSettings.WINDOWING, "count:100");
+		env.put(ProcessorSettings.PARTITION_RAILS, "2");
+		env.put(ProcessorSettings.IN_FLIGHT_LIMIT, "1000");
+		env.put(ProcessorSettings.IN_FLIGHT_LATENCY_TARGET, "1s");
+		start(ProcessorSettings.fromMap(env));
+		gateway.topic("in").fill(200, EVENT);
+
+		awaitPublished(400);
+	}
+
+	@Test
+	public void in_flight_limits_too_low_for_count_windows_are_rejected() {
+		Map<String, String> env = new HashMap<>();
+		env.put(ProcessorSettings.WINDOWING, "count:100");
+		env.put(ProcessorSettings.PARTITION_RAILS, "2");
+		env.put(ProcessorSettings.IN_FLIGHT_LIMIT, "150");
+
+		assertThatThrownBy(() -> start(ProcessorSettings.fromMap(env)))
+				.isInstanceOf(IllegalArgumentException.class)
+				.hasMessageContaining(ProcessorSettings.IN_FLIGHT_LIMIT);
+	}
+
+	private void start(ProcessorSettings settings) {
+		processor = new Processor(
+				Collections.singletonList(new StreamBinding("in-process", "in", new HashMap<>())),
+				Collections.singletonList(new StreamBinding("in-process", "out", Collections.singletonMap(StreamBinding.CONTENT_TYPE, "text/plain"))),
+				Collections.singletonList("in"),
+				Collections.singletonList("earliest"),
+				Collections.singletonList("out"),
+				Collections.singletonList("text/plain"),
+				"some-group",
+				FunctionEndpoints.single(ReactorRiffGrpc.newReactorStub(channel)),
+				address -> channel,
+				settings,
+				PipelineMetrics.disabled());
+		Thread thread = new Thread(processor::run, "processor");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private long published() {
+		InMemoryTopic output = gateway.topic("out");
+		long published = 0L;
+		for (int partition = 0; partition < PARTITIONS; partition++) {
+			published += output.endOffset(partition);
+		}
+		return published;
+	}
+
+	private void awaitPublished(long count) throws InterruptedException {
+		long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+		while (published() < count && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		assertThat(published()).isGreaterThanOrEqualTo(count);
+	}
+}
@@ -0,0 +1,150 @@
+package io.projectriff.processor;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import com.google.protobuf.ByteString;
+import io.grpc.Status;
+import io.projectriff.invoker.rpc.OutputFrame;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class SpillBufferTest {
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private final List<String> published = new CopyOnWriteArrayList<>();
+
+	private final AtomicInteger processed = new AtomicInteger();
+
+	private SpillBuffer spill;
+
+	private Disposable draining;
+
+	@After
+	public void tearDown() {
+		draining.dispose();
+		spill.close();
+	}
+
+	@Test
+	public void spilled_results_are_published_in_order_before_being_reported_processed() {
+		open(1024, frames -> frames.doOnNext(frame -> published.add(frame.getPayload().toStringUtf8())).then());
+
+		spill.spill(results("a", "b"), processed::incrementAndGet).block(Duration.ofSeconds(5));
+		spill.spill(results("c"), processed::incrementAndGet).block(Duration.ofSeconds(5));
+		spill.complete().block(Duration.ofSeconds(5));
+
+		assertThat(published).containsExactly("a", "b", "c");
+		assertThat(processed.get()).isEqualTo(2);
+		assertThat(spill.getUsedBytes()).isZero();
+	}
+
+	@Test
+	public void failed_publishes_are_retried() {
+		AtomicInteger attempts = new AtomicInteger();
+		open(1024, frames -> attempts.incrementAndGet() == 1
+				? Mono.error(Status.UNAVAILABLE.withDescription("gateway unavailable").asRuntimeException())
+				: frames.doOnNext(frame -> published.add(frame.getPayload().toStringUtf8())).then());
+
+		spill.spill(results("a"), processed::incrementAndGet).block(Duration.ofSeconds(5));
+		spill.complete().block(Duration.ofSeconds(5));
+
+		assertThat(published).containsExactly("a");
+		assertThat(processed.get()).isEqualTo(1);
+	}
+
+	@Test
+	public void failures_that_cant_be_retried_fail_spilling() {
+		open(1024, frames -> Mono.error(new IllegalStateException("invalid topic")));
+
+		spill.spill(results("a"), processed::incrementAndGet).block(Duration.ofSeconds(5));
+
+		assertThatThrownBy(() -> spill.failure().block(Duration.ofSeconds(5)))
+				.hasMessageContaining("invalid topic");
+		assertThatThrownBy(() -> spill.spill(results("b"), processed::incrementAndGet).block(Duration.ofSeconds(5)))
+				.hasMessageContaining("invalid topic");
+		assertThat(processed.get()).isZero();
+	}
+
+	@Test
+	public void results_of_failed_windows_are_discarded() {
+		open(1024, frames -> frames.doOnNext(frame -> published.add(frame.getPayload().toStringUtf8())).then());
+
+		Flux<OutputFrame> failing = results("a", "b").concatWith(Flux.error(new IllegalStateException("function failed")));
+		assertThatThrownBy(() -> spill.spill(failing, processed::incrementAndGet).block(Duration.ofSeconds(5)))
+				.hasMessageContaining("function failed");
+		assertThat(spill.getUsedBytes()).isZero();
+
+		spill.spill(results("c"), processed::incrementAndGet).block(Duration.ofSeconds(5));
+		spill.complete().block(Duration.ofSeconds(5));
+
+		assertThat(published).containsExactly("c");
+		assertThat(processed.get()).isEqualTo(1);
+	}
+
+	@Test
+	public void windows_larger_than_the_buffer_are_spilled_in_parts() {
+		open(40, frames -> frames.doOnNext(frame -> published.add(frame.getPayload().toStringUtf8())).then());
+
+		spill.spill(results("aaaaaaaaaa", "bbbbbbbbbb", "cccccccccc", "dddddddddd"), processed::incrementAndGet).block(Duration.ofSeconds(5));
+		spill.complete().block(Duration.ofSeconds(5));
+
+		assertThat(published).containsExactly("aaaaaaaaaa", "bbbbbbbbbb", "cccccccccc", "dddddddddd");
+		assertThat(processed.get()).isEqualTo(1);
+	}
+
+	@Test
+	public void spilling_waits_for_space_once_full() {
+		MonoProcessor<Void> gatewayBack = MonoProcessor.create();
+		open(48, frames -> frames.doOnNext(frame -> published.add(frame.getPayload().toStringUtf8())).then(gatewayBack));
+
+		spill.spill(results("aaaaaaaaaa", "bbbbbbbbbb"), processed::incrementAndGet).block(Duration.ofSeconds(5));
+		Disposable waiting = spill.spill(results("cccccccccc", "dddddddddd"), processed::incrementAndGet).subscribe();
+
+		assertThat(processed.get()).isZero();
+		assertThat(published).containsExactly("aaaaaaaaaa", "bbbbbbbbbb");
+
+		gatewayBack.onComplete();
+		spill.complete().block(Duration.ofSeconds(5));
+
+		assertThat(published).containsExactly("aaaaaaaaaa", "bbbbbbbbbb", "cccccccccc", "dddddddddd");
+		assertThat(processed.get()).isEqualTo(2);
+		waiting.dispose();
+	}
+
+	@Test
+	public void results_larger_than_the_buffer_are_published_directly() {
+		open(8, frames -> frames.doOnNext(frame -> published.add(frame.getPayload().toStringUtf8())).then());
+
+		spill.spill(results("aaaaaaaaaa", "bbbbbbbbbb"), processed::incrementAndGet).block(Duration.ofSeconds(5));
+
+		assertThat(published).containsExactly("aaaaaaaaaa", "bbbbbbbbbb");
+		assertThat(processed.get()).isEqualTo(1);
+	}
+
+	private void open(int capacity, Function<Flux<OutputFrame>, Mono<Void>> publisher) {
+		spill = SpillBuffer.open(temporaryFolder.getRoot().toPath(), capacity, publisher, Duration.ofMillis(1), Duration.ofMillis(10));
+		draining = spill.start();
+	}
+
+	private static Flux<OutputFrame> results(String... payloads) {
+		return Flux.fromArray(payloads)
+				.map(payload -> OutputFrame.newBuilder()
+						.setPayload(ByteString.copyFromUtf8(payload))
+						.build());
+	}
+}
@@ -0,0 +1,34 @@
+package io.projectriff.processor;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StringInternerTest {
+
+	@Test
+	public void strings_are_only_interned_once_they_repeat() {
+		StringInterner interner = new StringInterner(2, 64);
+
+		for (int i = 0; i < 100; i++) {
+			interner.intern("unique-" + i);
+		}
+		String first = interner.intern(new String("repeated"));
+		String second = interner.intern(new String("repeated"));
+		String third = interner.intern(new String("repeated"));
+
+		assertThat(interner.size()).isEqualTo(1);
+		assertThat(first).isNotSameAs(second);
+		assertThat(third).isSameAs(second);
+	}
+
+	@Test
+	public void long_strings_are_not_interned() {
+		StringInterner interner = new StringInterner(2, 4);
+
+		interner.intern("too long");
+		interner.intern("too long");
+
+		assertThat(interner.size()).isZero();
+	}
+}
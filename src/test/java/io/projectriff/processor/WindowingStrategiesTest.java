@@ -0,0 +1,196 @@
+package io.projectriff.processor;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import com.google.protobuf.ByteString;
+import io.projectriff.invoker.rpc.InputFrame;
+import org.junit.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class WindowingStrategiesTest {
+
+	private final OffsetTracker.PartitionOffsets partition = new OffsetTracker.PartitionOffsets(null, "topic", 0, null);
+
+	private final OffsetTracker.PartitionOffsets otherPartition = new OffsetTracker.PartitionOffsets(null, "topic", 1, null);
+
+	@Test
+	public void count_windows() {
+		List<List<Long>> windows = windowOffsets(WindowingStrategies.parse("count:2"), 5, 1);
+
+		assertThat(windows).containsExactly(offsets(0, 1), offsets(2, 3), offsets(4));
+	}
+
+	@Test
+	public void size_windows() {
+		List<List<Long>> windows = windowOffsets(WindowingStrategies.parse("size:25"), 7, 10);
+
+		assertThat(windows).containsExactly(offsets(0, 1, 2), offsets(3, 4, 5), offsets(6));
+	}
+
+	@Test
+	public void time_or_count_windows() {
+		List<List<Long>> windows = windowOffsets(WindowingStrategies.parse("timeout:3, 1m"), 4, 1);
+
+		assertThat(windows).containsExactly(offsets(0, 1, 2), offsets(3));
+	}
+
+	@Test
+	public void event_time_tumbling_windows() {
+		WindowingStrategy strategy = WindowingStrategies.parse("event:60s,60s,0s,1h");
+
+		List<List<Long>> windows = windowOffsets(strategy, Flux.just(
+				record(partition, 0, 0L),
+				record(partition, 1, 10_000L),
+				record(partition, 2, 65_000L),
+				record(partition, 3, 70_000L),
+				record(partition, 4, 130_000L)));
+
+		assertThat(windows).containsExactly(offsets(0, 1), offsets(2, 3), offsets(4));
+	}
+
+	@Test
+	public void event_time_windows_wait_for_out_of_order_records() {
+		WindowingStrategy strategy = WindowingStrategies.parse("event:60s,60s,10s,1h");
+
+		List<List<Long>> windows = windowOffsets(strategy, Flux.just(
+				record(partition, 0, 0L),
+				record(partition, 1, 50_000L),
+				record(partition, 2, 65_000L),
+				record(partition, 3, 55_000L),
+				record(partition, 4, 130_000L)));
+
+		assertThat(windows).containsExactly(offsets(0, 1, 3), offsets(2), offsets(4));
+	}
+
+	@Test
+	public void late_records_go_to_the_oldest_open_window() {
+		WindowingStrategy strategy = WindowingStrategies.parse("event:60s,60s,0s,1h");
+
+		List<List<Long>> windows = windowOffsets(strategy, Flux.just(
+				record(partition, 0, 0L),
+				record(partition, 1, 65_000L),
+				record(partition, 2, 5_000L)));
+
+		assertThat(windows).containsExactly(offsets(0), offsets(1, 2));
+	}
+
+	@Test
+	public void sliding_event_time_windows_only_ack_records_in_their_last_window() {
+		WindowingStrategy strategy = WindowingStrategies.parse("event:60s,30s,0s,1h");
+
+		List<List<TrackedFrame>> windows = strategy.window(Flux.just(record(partition, 0, 10_000L), record(partition, 1, 40_000L)))
+				.concatMap(Flux::collectList)
+				.collectList()
+				.block();
+
+		assertThat(windows.stream().map(window -> window.stream().map(TrackedFrame::getOffset).collect(Collectors.toList())))
+				.containsExactly(offsets(0), offsets(0, 1), offsets(1));
+		assertThat(windows.stream().map(window -> window.stream().map(TrackedFrame::isCopy).collect(Collectors.toList())))
+				.containsExactly(Arrays.asList(true), Arrays.asList(false, true), Arrays.asList(false));
+	}
+
+	@Test
+	public void idle_partitions_do_not_hold_event_time_windows_back() {
+		WindowingStrategy strategy = WindowingStrategies.parse("event:60s,60s,0s,50ms");
+
+		List<Long> first = strategy.window(Flux.concat(
+				Flux.just(record(partition, 0, 0L), record(otherPartition, 0, 0L)),
+				Mono.delay(Duration.ofMillis(200)).thenReturn(record(partition, 1, 70_000L)),
+				Flux.never()))
+				.next()
+				.flatMap(window -> window.map(TrackedFrame::getOffset).collectList())
+				.block(Duration.ofSeconds(5));
+
+		assertThat(first).containsExactly(0L, 0L);
+	}
+
+	@Test
+	public void event_time_windows_survive_slow_processing() {
+		WindowingStrategy strategy = WindowingStrategies.parse("event:60s,60s,0s,2ms");
+
+		List<List<Long>> windows = strategy.window(Flux.concat(
+				Flux.just(record(partition, 0, 0L), record(partition, 1, 70_000L)),
+				Flux.never()))
+				// many ticks go by while the first window is processed
+				.concatMap(window -> window.map(TrackedFrame::getOffset).collectList().delayElement(Duration.ofMillis(200)), 1)
+				.take(2)
+				.collectList()
+				.block(Duration.ofSeconds(5));
+
+		assertThat(windows).containsExactly(offsets(0), offsets(1));
+	}
+
+	@Test
+	public void size_windows_need_room_for_as_many_records_as_bytes() {
+		assertThat(WindowingStrategies.parse("size:25").recordsToClose()).isEqualTo(25);
+		assertThat(Processor.minInFlightLimit(WindowingStrategies.size(25), 2)).isEqualTo(49);
+		assertThat(Processor.minInFlightLimit(WindowingStrategies.size(Long.MAX_VALUE), 4)).isEqualTo(Integer.MAX_VALUE);
+	}
+
+	@Test
+	public void only_event_time_windows_read_event_time() {
+		assertThat(WindowingStrategies.parse("event:60s,60s,0s,1h").requiresEventTime()).isTrue();
+		assertThat(WindowingStrategies.parse("count:2").requiresEventTime()).isFalse();
+		assertThat(WindowingStrategies.parse("timeout:3, 1m").requiresEventTime()).isFalse();
+	}
+
+	@Test
+	public void custom_strategy_by_class_name() {
+		WindowingStrategy strategy = WindowingStrategies.parse(EveryRecord.class.getName());
+
+		assertThat(windowOffsets(strategy, 2, 1)).containsExactly(offsets(0), offsets(1));
+	}
+
+	@Test
+	public void rejects_invalid_specifications() {
+		assertThatThrownBy(() -> WindowingStrategies.parse("count:many"))
+				.isInstanceOf(IllegalArgumentException.class)
+				.hasMessageContaining("count:many");
+		assertThatThrownBy(() -> WindowingStrategies.parse("timeout:10"))
+				.isInstanceOf(IllegalArgumentException.class);
+		assertThatThrownBy(() -> WindowingStrategies.parse("com.example.Nope"))
+				.isInstanceOf(IllegalArgumentException.class);
+		assertThatThrownBy(() -> WindowingStrategies.parse("event:30s,60s"))
+				.isInstanceOf(IllegalArgumentException.class);
+	}
+
+	private List<List<Long>> windowOffsets(WindowingStrategy strategy, int records, int payloadSize) {
+		Flux<TrackedFrame> frames = Flux.range(0, records)
+				.map(i -> new TrackedFrame(
+						InputFrame.newBuilder().setPayload(ByteString.copyFrom(new byte[payloadSize])).build(),
+						partition,
+						i));
+		return windowOffsets(strategy, frames);
+	}
+
+	private List<List<Long>> windowOffsets(WindowingStrategy strategy, Flux<TrackedFrame> frames) {
+		return strategy.window(frames)
+				.concatMap(window -> window.map(TrackedFrame::getOffset).collectList())
+				.filter(window -> !window.isEmpty())
+				.collectList()
+				.block();
+	}
+
+	private static TrackedFrame record(OffsetTracker.PartitionOffsets partition, long offset, long eventTime) {
+		return new TrackedFrame(InputFrame.getDefaultInstance(), partition, offset, eventTime);
+	}
+
+	private static List<Long> offsets(long... offsets) {
+		return Arrays.stream(offsets).boxed().collect(Collectors.toList());
+	}
+
+	public static class EveryRecord implements WindowingStrategy {
+
+		@Override
+		public Flux<Flux<TrackedFrame>> window(Flux<TrackedFrame> records) {
+			return records.window(1);
+		}
+	}
+}